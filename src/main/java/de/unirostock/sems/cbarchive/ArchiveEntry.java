@@ -34,8 +34,14 @@ package de.unirostock.sems.cbarchive;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.zip.ZipEntry;
 
 import org.jdom2.JDOMException;
 
@@ -62,6 +68,9 @@ public class ArchiveEntry
 	/** The format, see <a href="https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>. */
 	private URI					format;
 	
+	/** The reader for positional reads, created when it is needed. */
+	private EntryReader			reader;
+	
 	
 	/**
 	 * Instantiates a new archive entry.
@@ -78,7 +87,7 @@ public class ArchiveEntry
 		super ();
 		this.archive = archive;
 		this.relativeName = relativeName;
-		this.format = format;
+		this.format = FormatRegistry.intern (format);
 	}
 	
 	
@@ -116,24 +125,28 @@ public class ArchiveEntry
 	 */
 	public boolean isMainEntry ()
 	{
-		return archive.getMainEntries ().contains (this);
+		return archive.isMainEntry (this);
 	}
 	
 	
 	/**
-	 * Gets the corresponding file.
+	 * Gets the corresponding file. The entry is extracted to a temporary file,
+	 * which will be deleted when the virtual machine terminates.
 	 * 
 	 * @return the file
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
 	 * 
 	 * @deprecated as of version 0.6, replaced by {@link #extractFile (File target)}
+	 *             or {@link #openStream()}
 	 */
 	@Deprecated
 	public File getFile () throws IOException
 	{
-		return extractFile (File.createTempFile ("combineArchive",
-			Utils.getExtension (relativeName.getFileName ().toString ())));
+		File tmp = File.createTempFile ("combineArchive",
+			Utils.getExtension (relativeName.getFileName ().toString ()));
+		tmp.deleteOnExit ();
+		return extractFile (tmp);
 	}
 	
 	
@@ -210,7 +223,242 @@ public class ArchiveEntry
 	 */
 	public void setFormat (URI format)
 	{
-		this.format = format;
+		URI oldFormat = this.format;
+		this.format = FormatRegistry.intern (format);
+		if (archive != null)
+			archive.formatChanged (this, oldFormat);
+	}
+	
+	
+	/**
+	 * Gets the compression method chosen for this entry by the
+	 * {@link CombineArchive#getCompressionPolicy() compression policy} of the
+	 * archive. That method will be used when
+	 * {@link CombineArchive#writeTo(File) writing the archive} to a file.
+	 * 
+	 * @return the method, either {@link ZipEntry#STORED} or
+	 *         {@link ZipEntry#DEFLATED}
+	 */
+	public int getCompressionMethod ()
+	{
+		return archive.getCompressionPolicy ().getMethod (this);
+	}
+	
+	
+	/**
+	 * Gets the compression ratio of this entry as it is currently stored in the
+	 * archive, that is the compressed size divided by the uncompressed size.
+	 * Values close to <code>1</code> indicate that compressing this entry is
+	 * pointless.
+	 * 
+	 * @return the compression ratio, <code>1</code> for empty entries
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public double getCompressionRatio () throws IOException
+	{
+		long size = getSize ();
+		long compressedSize = getCompressedSize ();
+		if (size <= 0 || compressedSize < 0)
+			return 1;
+		return (double) compressedSize / size;
+	}
+	
+	
+	/**
+	 * Opens a stream to read the contents of this entry. The data is read
+	 * directly from the archive, no temporary files are created.
+	 * 
+	 * @return the stream, needs to be closed by the caller
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public InputStream openStream () throws IOException
+	{
+		return Files.newInputStream (relativeName);
+	}
+	
+	
+	/**
+	 * Opens a read-only channel to the contents of this entry. The data is read
+	 * directly from the archive, no temporary files are created.
+	 * <p>
+	 * The channel supports changing its position. As the data of an entry is
+	 * usually compressed, moving the position forward requires decompressing the
+	 * skipped data, and moving it backwards starts decompressing at the
+	 * beginning of the entry.
+	 * </p>
+	 * 
+	 * @return the channel, needs to be closed by the caller
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public SeekableByteChannel openChannel () throws IOException
+	{
+		return new EntryChannel (relativeName, getSize ());
+	}
+	
+	
+	/**
+	 * Maps the contents of this entry into memory, directly from the archive
+	 * file.
+	 * <p>
+	 * That is only possible if the entry is {@link ZipEntry#STORED stored}
+	 * without compression in the archive file, e.g. because it was written using
+	 * {@link CombineArchive#writeTo(File)} with a
+	 * {@link CompressionPolicy compression policy} that stores its format, and
+	 * if it was not modified since the archive was opened. The returned buffer
+	 * is read-only.
+	 * </p>
+	 * <p>
+	 * The buffer maps the archive file itself, and closing the archive may
+	 * rewrite that file. Thus, the buffer must not be used after
+	 * {@link CombineArchive#close() closing} the archive: its contents are
+	 * undefined by then, and accessing it may even crash the JVM if the file
+	 * was truncated. Mapping entries opens a second handle to the archive file,
+	 * which is kept open until the archive is closed.
+	 * </p>
+	 * 
+	 * @return the buffer, or null if this entry cannot be mapped
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public MappedByteBuffer map () throws IOException
+	{
+		return archive.map (this);
+	}
+	
+	
+	/**
+	 * Reads a range of this entry's contents.
+	 * <p>
+	 * Reads the bytes starting at <code>offset</code> until <code>dst</code> is
+	 * full or the end of the entry is reached. For entries that are
+	 * {@link ZipEntry#STORED stored} without compression in the archive file the
+	 * data is read directly from the file, so the costs only depend on the
+	 * length of the range. Compressed entries need to be decompressed up to the
+	 * requested range, but the entry remembers a few positions in the
+	 * decompressed stream as well as recently read data. Thus, reading
+	 * subsequent ranges or reading the same range again won't restart
+	 * decompressing at the beginning of the entry. Entries written by this
+	 * library are sync-flushed every {@link ParallelDeflater#CHUNK_SIZE} bytes,
+	 * so reading backwards only restarts at the closest of these boundaries.
+	 * The memory and the number of streams used for caching are limited for
+	 * the whole archive.
+	 * </p>
+	 * 
+	 * @param offset
+	 *          the position in the entry to start reading
+	 * @param dst
+	 *          the buffer to read into
+	 * @return the number of bytes read, or -1 if <code>offset</code> is at or
+	 *         beyond the end of the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public int read (long offset, ByteBuffer dst) throws IOException
+	{
+		return archive.read (this, offset, dst);
+	}
+	
+	
+	/**
+	 * Gets the reader for positional reads of compressed data. A new reader is
+	 * created if the entry was modified since the last read.
+	 * 
+	 * @param cache
+	 *          the cache shared by all entries of the archive
+	 * @param index
+	 *          the index of the ZIP file, may be null
+	 * @param raw
+	 *          the unmodified and deflated entry in the ZIP file, or null if
+	 *          the entry has to be read through the ZIP file system
+	 * @return the reader
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	synchronized EntryReader getReader (EntryReader.Cache cache,
+		ZipIndex index, ZipIndex.RawEntry raw) throws IOException
+	{
+		long size = getSize ();
+		long crc = getCrc ();
+		if (reader == null || !reader.matches (size, crc, raw))
+		{
+			if (reader != null)
+				reader.close ();
+			reader = new EntryReader (cache, relativeName, size, crc, index, raw);
+		}
+		return reader;
+	}
+	
+	
+	/**
+	 * Gets the uncompressed size of this entry, as recorded in the archive.
+	 * 
+	 * @return the size in bytes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public long getSize () throws IOException
+	{
+		return getZipAttribute ("size");
+	}
+	
+	
+	/**
+	 * Gets the compressed size of this entry, as recorded in the archive.
+	 * 
+	 * @return the compressed size in bytes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public long getCompressedSize () throws IOException
+	{
+		return getZipAttribute ("compressedSize");
+	}
+	
+	
+	/**
+	 * Gets the CRC-32 checksum of the uncompressed contents of this entry, as
+	 * recorded in the archive.
+	 * 
+	 * @return the checksum
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public long getCrc () throws IOException
+	{
+		return getZipAttribute ("crc");
+	}
+	
+	
+	/**
+	 * Reads a numeric attribute of the ZIP file system.
+	 * 
+	 * @param name
+	 *          the name of the attribute
+	 * @return the value
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private long getZipAttribute (String name) throws IOException
+	{
+		return ((Number) Files.getAttribute (relativeName, "zip:" + name))
+			.longValue ();
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataHolder#loadDescriptions()
+	 */
+	@Override
+	protected void loadDescriptions ()
+	{
+		// the archive might have postponed parsing the meta data
+		if (archive != null)
+			archive.loadMetaData ();
 	}
 	
 	
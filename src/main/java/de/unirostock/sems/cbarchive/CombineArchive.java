@@ -32,32 +32,62 @@
  */
 package de.unirostock.sems.cbarchive;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.ProviderNotFoundException;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.TransformerException;
 
-import org.jdom2.Attribute;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
@@ -96,11 +126,14 @@ public class CombineArchive
 	/** The archive entries. */
 	private HashMap<String, ArchiveEntry>	entries;
 	
+	/** The archive entries grouped by their format. */
+	private HashMap<URI, Set<ArchiveEntry>>	formatIndex;
+	
 	/** The zip archive. */
 	private FileSystem										zipfs;
 	
-	/** The main entry. */
-	private List<ArchiveEntry>						mainEntries;
+	/** The main entries, in the order they were added. */
+	private MainEntryList									mainEntries;
 	
 	/** A list of files containing meta data. */
 	private List<Path>										metaDataFiles;
@@ -111,8 +144,20 @@ public class CombineArchive
 	
 	private File													zipFileLocation;
 	
-	private static final String						MIME_REGEX				= "[a-zA-Z0-9+.-]+/[a-zA-Z0-9+.-]+";
-	private static final String						PURL_PREFIX				= "http://purl.org/NET/mediatypes/";
+	/** Meta data files that still need to be parsed (lazy mode only). */
+	private List<Path>										pendingMetaDataFiles;
+	
+	/** The policy to compress entries when writing the archive to a file. */
+	private CompressionPolicy							compressionPolicy;
+	
+	/** The index of the ZIP file on disk, see {@link #getZipIndex()}. */
+	private ZipIndex											zipIndex;
+	
+	/** Did we already try to read the index? */
+	private boolean												zipIndexRead;
+	
+	/** The cache for positional reads, shared by all entries. */
+	private EntryReader.Cache							readCache;
 	
 	
 	/**
@@ -139,7 +184,7 @@ public class CombineArchive
 			ParseException,
 			CombineArchiveException
 	{
-		init (zipFile, false);
+		init (zipFile, false, false);
 	}
 	
 	
@@ -173,7 +218,52 @@ public class CombineArchive
 			ParseException,
 			CombineArchiveException
 	{
-		init (zipFile, continueOnError);
+		init (zipFile, continueOnError, false);
+	}
+	
+	
+	/**
+	 * Instantiates a new combine archive, optionally postponing the parsing of
+	 * the meta data.
+	 * <p>
+	 * If <code>lazyMetaData</code> is true we will only read the manifest when
+	 * opening the archive. The meta data files will be parsed as soon as the
+	 * descriptions of the archive, of one of its entries, or of the meta data
+	 * (see {@link #getMetaOfMeta()}) are requested for the first time. That
+	 * saves time and memory if you're just interested in the entries and their
+	 * formats.
+	 * </p>
+	 * <p>
+	 * <strong>Be aware:</strong> As the meta data is parsed on demand, problems
+	 * in the meta data files cannot be thrown anymore. They will be reported
+	 * through {@link #getErrors()} after the meta data was loaded. Moreover, the
+	 * meta data needs to be accessed before the archive is closed.
+	 * </p>
+	 * 
+	 * @param zipFile
+	 *          the archive to read, will be created if non-existent
+	 * @param continueOnError
+	 *          ignore errors and continue (as far as possible)
+	 * @param lazyMetaData
+	 *          postpone parsing the meta data until it is needed
+	 * 
+	 * @throws IOException
+	 *           if we cannot create a temporary directory
+	 * @throws CombineArchiveException
+	 * 					Signals problems with the Combine Archive concept
+	 * @throws ParseException
+	 * 					Signals problems with the parser
+	 * @throws JDOMException
+	 *           Signals problems with the jDOM parser
+	 */
+	public CombineArchive (File zipFile, boolean continueOnError,
+		boolean lazyMetaData)
+		throws IOException,
+			JDOMException,
+			ParseException,
+			CombineArchiveException
+	{
+		init (zipFile, continueOnError, lazyMetaData);
 	}
 	
 	
@@ -184,6 +274,8 @@ public class CombineArchive
 	 *          the the archive to read, will be created if non-existent
 	 * @param continueOnError
 	 *          ignore errors and continue (as far as possible)
+	 * @param lazyMetaData
+	 *          postpone parsing the meta data until it is needed
 	 * @throws IOException
 	 *           if we cannot create a temporary directory
 	 * @throws CombineArchiveException
@@ -193,7 +285,8 @@ public class CombineArchive
 	 * @throws JDOMException
 	 *           Signals problems with the jDOM parser
 	 */
-	private void init (File zipFile, boolean continueOnError)
+	private void init (File zipFile, boolean continueOnError,
+		boolean lazyMetaData)
 		throws IOException,
 			JDOMException,
 			ParseException,
@@ -209,8 +302,11 @@ public class CombineArchive
 		zipFileLocation = zipFile;
 		
 		errors = new ArrayList<String> ();
-		mainEntries = new ArrayList<ArchiveEntry> ();
+		mainEntries = new MainEntryList ();
 		entries = new HashMap<String, ArchiveEntry> ();
+		formatIndex = new HashMap<URI, Set<ArchiveEntry>> ();
+		compressionPolicy = CompressionPolicy.balanced ();
+		readCache = new EntryReader.Cache ();
 		Map<String, String> zip_properties = new HashMap<String, String> ();
 		zip_properties.put ("create", "true");
 		zip_properties.put ("encoding", "UTF-8");
@@ -232,12 +328,20 @@ public class CombineArchive
 		}
 		
 		metaDataFiles = new ArrayList<Path> ();
-		metaData = new MetaDataFile ();
+		metaData = new MetaDataFile ()
+		{
+			
+			@Override
+			protected void loadDescriptions ()
+			{
+				loadMetaData ();
+			}
+		};
 		
 		// read manifest
 		Path mani = zipfs.getPath (MANIFEST_LOCATION).normalize ();
 		if (Files.isRegularFile (mani))
-			parseManifest (mani, continueOnError);
+			parseManifest (mani, continueOnError, lazyMetaData);
 		else if (existingArchive)
 		{
 			LOGGER.error ("this is not a combine archive");
@@ -278,14 +382,19 @@ public class CombineArchive
 	 */
 	public ArchiveEntry getMainEntry ()
 	{
-		if (mainEntries == null)
+		if (mainEntries == null || mainEntries.isEmpty ())
 			return null;
-		return mainEntries.size () > 0 ? mainEntries.get (0) : null;
+		return mainEntries.get (0);
 	}
 	
 	
 	/**
 	 * Gets the main entries as defined in the archive.
+	 * <p>
+	 * The returned list is the list of main entries of this archive, changes to
+	 * the list will be reflected in the archive. Checking whether an entry is
+	 * contained takes constant time.
+	 * </p>
 	 *
 	 * @return the main entries
 	 */
@@ -295,6 +404,19 @@ public class CombineArchive
 	}
 	
 	
+	/**
+	 * Checks if an entry is a main entry of this archive.
+	 *
+	 * @param entry
+	 *          the entry
+	 * @return true, if <code>entry</code> is a main entry
+	 */
+	public boolean isMainEntry (ArchiveEntry entry)
+	{
+		return mainEntries.contains (entry);
+	}
+	
+	
 	/**
 	 * Sets a main entry of the archive. Other main entries get replaced. Use
 	 * {@link #addMainEntry(ArchiveEntry)} to add another main entry.
@@ -317,7 +439,8 @@ public class CombineArchive
 	 */
 	public void addMainEntry (ArchiveEntry mainEntry)
 	{
-		this.mainEntries.add (mainEntry);
+		if (!this.mainEntries.contains (mainEntry))
+			this.mainEntries.add (mainEntry);
 	}
 	
 	
@@ -329,7 +452,7 @@ public class CombineArchive
 	 */
 	public void removeMainEntry (ArchiveEntry entry)
 	{
-		this.mainEntries.remove (entry);
+		this.mainEntries.removeEntry (entry);
 	}
 	
 	
@@ -345,7 +468,7 @@ public class CombineArchive
 	 *          the location
 	 * @return the string
 	 */
-	private String prepareLocation (String location)
+	static String prepareLocation (String location)
 	{
 		location = Utils.pathFixer (location);
 		if (location.startsWith ("./"))
@@ -386,12 +509,13 @@ public class CombineArchive
 	public boolean removeEntry (String location) throws IOException
 	{
 		location = prepareLocation (location);
+		loadMetaData ();
 		
-		ArchiveEntry entry = entries.remove (location);
+		ArchiveEntry entry = removeFromEntries (location);
 		
 		if (entry != null)
 		{
-			mainEntries.remove (entry);
+			mainEntries.removeEntry (entry);
 			Files.delete (entry.getPath ());
 			return true;
 		}
@@ -410,9 +534,10 @@ public class CombineArchive
 	 */
 	public boolean removeEntry (ArchiveEntry entry) throws IOException
 	{
-		if (entries.remove (entry.getFilePath ()) != null)
+		loadMetaData ();
+		if (removeFromEntries (entry.getFilePath ()) != null)
 		{
-			mainEntries.remove (entry);
+			mainEntries.removeEntry (entry);
 			Files.delete (entry.getPath ());
 			return true;
 		}
@@ -420,6 +545,95 @@ public class CombineArchive
 	}
 	
 	
+	/**
+	 * Puts an entry to the map of entries and updates the format index.
+	 * 
+	 * @param location
+	 *          the location of the entry
+	 * @param entry
+	 *          the entry
+	 */
+	private void putToEntries (String location, ArchiveEntry entry)
+	{
+		ArchiveEntry previous = entries.put (location, entry);
+		if (previous != null)
+			removeFromFormatIndex (previous.getFormat (), previous);
+		addToFormatIndex (entry.getFormat (), entry);
+	}
+	
+	
+	/**
+	 * Removes an entry from the map of entries and updates the format index.
+	 * 
+	 * @param location
+	 *          the location of the entry
+	 * @return the removed entry, or null if there was no entry at
+	 *         <code>location</code>
+	 */
+	private ArchiveEntry removeFromEntries (String location)
+	{
+		ArchiveEntry entry = entries.remove (location);
+		if (entry != null)
+			removeFromFormatIndex (entry.getFormat (), entry);
+		return entry;
+	}
+	
+	
+	/**
+	 * Adds an entry to the format index.
+	 * 
+	 * @param format
+	 *          the format of the entry
+	 * @param entry
+	 *          the entry
+	 */
+	private void addToFormatIndex (URI format, ArchiveEntry entry)
+	{
+		Set<ArchiveEntry> withFormat = formatIndex.get (format);
+		if (withFormat == null)
+		{
+			withFormat = new LinkedHashSet<ArchiveEntry> ();
+			formatIndex.put (format, withFormat);
+		}
+		withFormat.add (entry);
+	}
+	
+	
+	/**
+	 * Removes an entry from the format index.
+	 * 
+	 * @param format
+	 *          the format the entry was indexed with
+	 * @param entry
+	 *          the entry
+	 */
+	private void removeFromFormatIndex (URI format, ArchiveEntry entry)
+	{
+		Set<ArchiveEntry> withFormat = formatIndex.get (format);
+		if (withFormat != null && withFormat.remove (entry)
+			&& withFormat.isEmpty ())
+			formatIndex.remove (format);
+	}
+	
+	
+	/**
+	 * Notifies the archive about an entry that changed its format.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @param oldFormat
+	 *          the previous format of the entry
+	 */
+	void formatChanged (ArchiveEntry entry, URI oldFormat)
+	{
+		// the entry might not (longer) be part of this archive
+		if (entries.get (entry.getFilePath ()) != entry)
+			return;
+		removeFromFormatIndex (oldFormat, entry);
+		addToFormatIndex (entry.getFormat (), entry);
+	}
+	
+	
 	/**
 	 * Retireves an entry by its location.
 	 * 
@@ -452,7 +666,7 @@ public class CombineArchive
 		throws IOException
 	{
 		addEntry (toInsert, oldEntry.getFilePath (), oldEntry.getFormat (), false);
-		entries.put (oldEntry.getFilePath (), oldEntry);
+		putToEntries (oldEntry.getFilePath (), oldEntry);
 		return oldEntry;
 	}
 	
@@ -556,52 +770,28 @@ public class CombineArchive
 	public ArchiveEntry addEntry (File toInsert, String targetName, URI format,
 		boolean mainEntry) throws IOException
 	{
-		targetName = prepareLocation (targetName);
-		
-		if (targetName.equals (MANIFEST_LOCATION))
-			throw new IllegalArgumentException (
-				"it's not allowed to name a file " + MANIFEST_LOCATION);
-		
-		if (targetName.equals (METADATA_LOCATION))
-			throw new IllegalArgumentException (
-				"it's not allowed to name a file " + METADATA_LOCATION);
-		
-		// we also do not allow files with names like metadata-[0-9]*.rdf
-		if (targetName.matches ("^/metadata-[0-9]*\\.rdf$"))
-			throw new IllegalArgumentException (
-				"it's not allowed to name a file like metadata-[0-9]*.rdf");
-		
 		// insert to zip
-		Path insertPath = zipfs.getPath (targetName).normalize ();
-		Files.createDirectories (insertPath.getParent ());
+		Path insertPath = prepareInsertPath (targetName);
 		Files.copy (toInsert.toPath (), insertPath, Utils.COPY_OPTION);
 		
-		ArchiveEntry entry = new ArchiveEntry (this, insertPath, format);
-		entries.put (entry.getFilePath (), entry);
-		
-		if (mainEntry)
-		{
-			LOGGER.debug ("setting main entry:");
-			addMainEntry (entry);
-		}
-		
-		return entry;
+		return registerEntry (insertPath, format, mainEntry);
 	}
 	
 	
 	/**
-	 * Adds an entry to the archive.
+	 * Adds an entry to the archive, reading its contents from a stream.
 	 * <p>
-	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version in
-	 * our archive. The path of this file in the archive will be
-	 * <code>targetName</code>, it may include sub directories, e.g.
-	 * <code>/path/in/archive/file.ext</code>. If there is already a file in the
-	 * archive having the same path we'll overwrite it.
+	 * The data is streamed directly into the archive using a small buffer, there
+	 * is no need to store it in a file first. The path of this entry in the
+	 * archive will be <code>targetName</code>, it may include sub directories,
+	 * e.g. <code>/path/in/archive/file.ext</code>. If there is already a file in
+	 * the archive having the same path we'll overwrite it, but only after the
+	 * stream was read successfully.
 	 * </p>
 	 * 
-	 * @param toInsert
-	 *          the file to insert
+	 * @param in
+	 *          the stream providing the contents, will be read until its end but
+	 *          not closed
 	 * @param targetName
 	 *          the target name of the file in the archive
 	 * @param format
@@ -609,178 +799,337 @@ public class CombineArchive
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
 	 * @param mainEntry
 	 *          the main entry
-	 * @return the archive entry or null if adding failed
+	 * @return the archive entry
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
-	 * @deprecated as of version 0.9, replaced by
-	 *             {@link #addEntry(java.io.File,java.lang.String,java.net.URI,boolean)}
 	 */
-	public ArchiveEntry addEntry (File toInsert, String targetName, String format,
-		boolean mainEntry) throws IOException
+	public ArchiveEntry addEntry (final InputStream in, String targetName,
+		URI format, boolean mainEntry) throws IOException
 	{
-		URI formatUri = null;
-		try
-		{
-			formatUri = new URI (format);
-		}
-		catch (URISyntaxException e)
+		return insertEntry (new EntryContent ()
 		{
-			LOGGER.warn (e, "could not parse URI ", format);
-			errors.add ("could not parse URI " + format);
-			return null;
-		}
-		
-		return addEntry (toInsert, targetName, formatUri, mainEntry);
+			
+			@Override
+			public void writeTo (Path target) throws IOException
+			{
+				Files.copy (in, target);
+			}
+		}, targetName, format, mainEntry);
 	}
 	
 	
 	/**
-	 * Adds an entry to the archive.
+	 * Adds an entry to the archive, reading its contents from a buffer.
 	 * <p>
-	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version in
-	 * our archive. The path of this file in the archive will be the path of
-	 * <code>file</code> relative to <code>baseDir</code>. If there is already a
-	 * file in the archive having the same relative path we'll overwrite it.
+	 * Same as {@link #addEntry(InputStream,String,URI,boolean)}, but the
+	 * contents of the entry are the remaining bytes of <code>buffer</code>. The
+	 * position of <code>buffer</code> will not be modified.
 	 * </p>
 	 * 
-	 * @param baseDir
-	 *          the base dir
-	 * @param file
-	 *          the file
+	 * @param buffer
+	 *          the buffer providing the contents
+	 * @param targetName
+	 *          the target name of the file in the archive
 	 * @param format
 	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
 	 * @param mainEntry
-	 *          is this the main entry of the archive? (default:
-	 *          <code>false</code>)
-	 * @return the archive entry or null if adding failed
+	 *          the main entry
+	 * @return the archive entry
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
 	 */
-	public ArchiveEntry addEntry (File baseDir, File file, URI format,
-		boolean mainEntry) throws IOException
+	public ArchiveEntry addEntry (ByteBuffer buffer, String targetName,
+		URI format, boolean mainEntry) throws IOException
 	{
-		if (!file.exists ())
-			throw new IOException ("file does not exist.");
-		
-		if (!file.getAbsolutePath ().contains (baseDir.getAbsolutePath ()))
-			throw new IOException ("file must be in basedir.");
-		
-		String localName = file.getAbsolutePath ()
-			.replace (baseDir.getAbsolutePath (), "");
-		
-		return addEntry (file, localName, format, mainEntry);
+		final ByteBuffer data = buffer.duplicate ();
+		return insertEntry (new EntryContent ()
+		{
+			
+			@Override
+			public void writeTo (Path target) throws IOException
+			{
+				try (WritableByteChannel out = Files.newByteChannel (target,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+				{
+					while (data.hasRemaining ())
+						out.write (data);
+				}
+			}
+		}, targetName, format, mainEntry);
 	}
 	
 	
 	/**
-	 * Adds an entry to the archive.
+	 * Adds an entry to the archive, reading its contents from a channel.
 	 * <p>
-	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version in
-	 * our archive. The path of this file in the archive will be the path of
-	 * <code>file</code> relative to <code>baseDir</code>. If there is already a
-	 * file in the archive having the same relative path we'll overwrite it.
+	 * Same as {@link #addEntry(InputStream,String,URI,boolean)}, but the
+	 * contents of the entry are read from <code>channel</code>, which needs to
+	 * be in blocking mode.
 	 * </p>
 	 * 
-	 * @param baseDir
-	 *          the base dir
-	 * @param file
-	 *          the file
+	 * @param channel
+	 *          the channel providing the contents, will be read until its end
+	 *          but not closed
+	 * @param targetName
+	 *          the target name of the file in the archive
 	 * @param format
 	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
 	 * @param mainEntry
-	 *          is this the main entry of the archive? (default:
-	 *          <code>false</code>)
-	 * @return the archive entry or null if adding failed
+	 *          the main entry
+	 * @return the archive entry
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
-	 * @deprecated as of version 0.9, replaced by
-	 *             {@link #addEntry(java.io.File,java.io.File,java.net.URI,boolean)}
 	 */
-	public ArchiveEntry addEntry (File baseDir, File file, String format,
-		boolean mainEntry) throws IOException
+	public ArchiveEntry addEntry (final ReadableByteChannel channel,
+		String targetName, URI format, boolean mainEntry) throws IOException
 	{
-		URI formatUri = null;
-		try
-		{
-			formatUri = new URI (format);
-		}
-		catch (URISyntaxException e)
+		return insertEntry (new EntryContent ()
 		{
-			LOGGER.warn (e, "could not parse URI ", format);
-			errors.add ("could not parse URI " + format);
-			return null;
-		}
-		
-		return addEntry (baseDir, file, formatUri, mainEntry);
+			
+			@Override
+			public void writeTo (Path target) throws IOException
+			{
+				try (OutputStream out = Files.newOutputStream (target,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+				{
+					ByteBuffer buf = ByteBuffer.allocate (65536);
+					while (channel.read (buf) >= 0)
+					{
+						out.write (buf.array (), 0, buf.position ());
+						buf.clear ();
+					}
+				}
+			}
+		}, targetName, format, mainEntry);
 	}
 	
 	
 	/**
-	 * Adds an entry to the archive.
-	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version
-	 * in our archive.
-	 * The path of this file in the archive will be the path of <code>file</code>
-	 * relative to <code>baseDir</code>.
-	 * If there is already a file in the archive having the same relative path
-	 * we'll delete it.
+	 * Copies an entry of another archive (or of this archive) into this archive.
+	 * <p>
+	 * The data is transferred without storing it in a temporary file. If
+	 * <code>src</code> belongs to this archive the ZIP file system copies the
+	 * compressed data as it is, otherwise the data is streamed from one archive
+	 * into the other. The new entry will have the format of <code>src</code>.
+	 * If <code>withMetaData</code> is set, copies of all meta data objects
+	 * describing <code>src</code> will be attached to the new entry. If there is
+	 * already a file in the archive having the same path we'll overwrite it.
+	 * </p>
 	 * 
-	 * @param baseDir
-	 *          the base dir
-	 * @param file
-	 *          the file
-	 * @param format
-	 *          the format URI, see <a href=
-	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
-	 * @return the archive entry or null if adding failed
+	 * @param src
+	 *          the entry to copy
+	 * @param targetName
+	 *          the target name of the file in this archive
+	 * @param withMetaData
+	 *          should we copy the meta data of <code>src</code>, too?
+	 * @return the new archive entry
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
 	 */
-	public ArchiveEntry addEntry (File baseDir, File file, URI format)
-		throws IOException
+	public ArchiveEntry copyEntryFrom (ArchiveEntry src, String targetName,
+		boolean withMetaData) throws IOException
 	{
-		if (!file.exists ())
-			throw new IOException ("file does not exist.");
-		
-		if (!file.getAbsolutePath ().contains (baseDir.getAbsolutePath ()))
-			throw new IOException ("file must be in basedir.");
+		final Path source = src.getPath ();
+		final boolean sameArchive = source.getFileSystem () == zipfs;
+		if (sameArchive
+			&& prepareLocation (targetName).equals (src.getFilePath ()))
+			throw new IllegalArgumentException ("cannot copy " + src.getFilePath ()
+				+ " onto itself");
 		
-		String localName = file.getAbsolutePath ()
-			.replace (baseDir.getAbsolutePath (), "");
+		// collect the meta data before we possibly replace an entry
+		List<MetaDataObject> descriptions = withMetaData
+			? new ArrayList<MetaDataObject> (src.getDescriptions ())
+			: new ArrayList<MetaDataObject> ();
 		
-		return addEntry (file, localName, format, false);
+		ArchiveEntry entry = insertEntry (new EntryContent ()
+		{
+			
+			@Override
+			public void writeTo (Path target) throws IOException
+			{
+				if (sameArchive)
+					Files.copy (source, target, StandardCopyOption.COPY_ATTRIBUTES);
+				else
+					try (InputStream in = Files.newInputStream (source))
+					{
+						Files.copy (in, target);
+					}
+			}
+		}, targetName, src.getFormat (), false);
+		
+		for (MetaDataObject meta : descriptions)
+			entry.addDescription (meta.getFragmentIdentifier (), meta.clone ());
+		
+		return entry;
+	}
+	
+	
+	/**
+	 * Inserts an entry whose contents are written by <code>content</code>, see
+	 * {@link #writeEntry(EntryContent,Path)}.
+	 * 
+	 * @param content
+	 *          writes the contents
+	 * @param targetName
+	 *          the target name of the file in the archive
+	 * @param format
+	 *          the format URI
+	 * @param mainEntry
+	 *          the main entry
+	 * @return the archive entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private ArchiveEntry insertEntry (EntryContent content, String targetName,
+		URI format, boolean mainEntry) throws IOException
+	{
+		Path insertPath = prepareInsertPath (targetName);
+		writeEntry (content, insertPath);
+		return registerEntry (insertPath, format, mainEntry);
+	}
+	
+	
+	/**
+	 * Writes the contents of an entry to a temporary file next to the target,
+	 * and moves that file to the target afterwards. Thus, an existing entry is
+	 * not destroyed if writing the contents fails. The parent directory of the
+	 * target needs to exist.
+	 * <p>
+	 * <code>content</code> must not overwrite existing files, so that
+	 * concurrent writes of different entries in the same directory will never
+	 * share a temporary file.
+	 * </p>
+	 * 
+	 * @param content
+	 *          writes the contents
+	 * @param insertPath
+	 *          the path of the entry in the archive
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private static void writeEntry (EntryContent content, Path insertPath)
+		throws IOException
+	{
+		Path part = insertPath.resolveSibling ("." + insertPath.getFileName ()
+			+ ".part");
+		for (int i = 1;; i++)
+		{
+			try
+			{
+				content.writeTo (part);
+				break;
+			}
+			catch (FileAlreadyExistsException e)
+			{
+				// someone else is using that name, try the next one
+				part = insertPath.resolveSibling ("." + insertPath.getFileName ()
+					+ ".part" + i);
+			}
+			catch (IOException e)
+			{
+				LOGGER.error (e, "cannot add entry ", insertPath);
+				Files.deleteIfExists (part);
+				throw e;
+			}
+		}
+		
+		try
+		{
+			Files.move (part, insertPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			LOGGER.error (e, "cannot add entry ", insertPath);
+			Files.deleteIfExists (part);
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Prepares the insertion of an entry: checks the target name, makes sure we
+	 * know the meta data of an entry that's going to be replaced, and creates
+	 * the parent directories.
+	 * 
+	 * @param targetName
+	 *          the target name of the file in the archive
+	 * @return the path to write the entry to
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private Path prepareInsertPath (String targetName) throws IOException
+	{
+		targetName = prepareLocation (targetName);
+		checkTargetName (targetName);
+		
+		// the meta data of an entry that we're going to replace needs to be read
+		// before, otherwise it would be assigned to the new entry
+		if (entries.containsKey (targetName))
+			loadMetaData ();
+		
+		Path insertPath = zipfs.getPath (targetName).normalize ();
+		Files.createDirectories (insertPath.getParent ());
+		return insertPath;
+	}
+	
+	
+	/**
+	 * Registers an entry that was just written to the archive.
+	 * 
+	 * @param insertPath
+	 *          the path of the entry in the archive
+	 * @param format
+	 *          the format URI
+	 * @param mainEntry
+	 *          the main entry
+	 * @return the archive entry
+	 */
+	private ArchiveEntry registerEntry (Path insertPath, URI format,
+		boolean mainEntry)
+	{
+		ArchiveEntry entry = new ArchiveEntry (this, insertPath, format);
+		putToEntries (entry.getFilePath (), entry);
+		
+		if (mainEntry)
+		{
+			LOGGER.debug ("setting main entry:");
+			addMainEntry (entry);
+		}
+		
+		return entry;
 	}
 	
 	
 	/**
 	 * Adds an entry to the archive.
+	 * <p>
 	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version
-	 * in our archive.
-	 * The path of this file in the archive will be the path of <code>file</code>
-	 * relative to <code>baseDir</code>.
-	 * If there is already a file in the archive having the same relative path
-	 * we'll delete it.
+	 * Thus, upcoming modifications of the source file won't affect the version in
+	 * our archive. The path of this file in the archive will be
+	 * <code>targetName</code>, it may include sub directories, e.g.
+	 * <code>/path/in/archive/file.ext</code>. If there is already a file in the
+	 * archive having the same path we'll overwrite it.
+	 * </p>
 	 * 
-	 * @param baseDir
-	 *          the base dir
-	 * @param file
-	 *          the file
+	 * @param toInsert
+	 *          the file to insert
+	 * @param targetName
+	 *          the target name of the file in the archive
 	 * @param format
 	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          the main entry
 	 * @return the archive entry or null if adding failed
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
 	 * @deprecated as of version 0.9, replaced by
-	 *             {@link #addEntry(java.io.File,java.io.File,java.net.URI)}
+	 *             {@link #addEntry(java.io.File,java.lang.String,java.net.URI,boolean)}
 	 */
-	public ArchiveEntry addEntry (File baseDir, File file, String format)
-		throws IOException
+	public ArchiveEntry addEntry (File toInsert, String targetName, String format,
+		boolean mainEntry) throws IOException
 	{
 		URI formatUri = null;
 		try
@@ -794,19 +1143,19 @@ public class CombineArchive
 			return null;
 		}
 		
-		return addEntry (baseDir, file, formatUri, false);
+		return addEntry (toInsert, targetName, formatUri, mainEntry);
 	}
 	
 	
 	/**
 	 * Adds an entry to the archive.
+	 * <p>
 	 * The current version of the concerning file will be copied immediately.
-	 * Thus, upcoming modifications of the source file won't affect the version
-	 * in our archive.
-	 * The path of this file in the archive will be the path of <code>file</code>
-	 * relative to <code>baseDir</code>.
-	 * If there is already a file in the archive having the same relative path
-	 * we'll delete it.
+	 * Thus, upcoming modifications of the source file won't affect the version in
+	 * our archive. The path of this file in the archive will be the path of
+	 * <code>file</code> relative to <code>baseDir</code>. If there is already a
+	 * file in the archive having the same relative path we'll overwrite it.
+	 * </p>
 	 * 
 	 * @param baseDir
 	 *          the base dir
@@ -815,20 +1164,15 @@ public class CombineArchive
 	 * @param format
 	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
-	 * @param description
-	 *          the description
 	 * @param mainEntry
 	 *          is this the main entry of the archive? (default:
 	 *          <code>false</code>)
 	 * @return the archive entry or null if adding failed
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
-	 * @deprecated as of version 0.5, replaced by
-	 *             {@link #addEntry(java.io.File,java.io.File,java.lang.String,boolean)}
 	 */
-	@Deprecated
-	public ArchiveEntry addEntry (File baseDir, File file, String format,
-		OmexDescription description, boolean mainEntry) throws IOException
+	public ArchiveEntry addEntry (File baseDir, File file, URI format,
+		boolean mainEntry) throws IOException
 	{
 		if (!file.exists ())
 			throw new IOException ("file does not exist.");
@@ -839,9 +1183,52 @@ public class CombineArchive
 		String localName = file.getAbsolutePath ()
 			.replace (baseDir.getAbsolutePath (), "");
 		
-		ArchiveEntry entry = addEntry (file, localName, format, mainEntry);
-		entry.addDescription (new OmexMetaDataObject (description));
-		return entry;
+		return addEntry (file, localName, format, mainEntry);
+	}
+	
+	
+	/**
+	 * Adds an entry to the archive.
+	 * <p>
+	 * The current version of the concerning file will be copied immediately.
+	 * Thus, upcoming modifications of the source file won't affect the version in
+	 * our archive. The path of this file in the archive will be the path of
+	 * <code>file</code> relative to <code>baseDir</code>. If there is already a
+	 * file in the archive having the same relative path we'll overwrite it.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base dir
+	 * @param file
+	 *          the file
+	 * @param format
+	 *          the format URI, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          is this the main entry of the archive? (default:
+	 *          <code>false</code>)
+	 * @return the archive entry or null if adding failed
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @deprecated as of version 0.9, replaced by
+	 *             {@link #addEntry(java.io.File,java.io.File,java.net.URI,boolean)}
+	 */
+	public ArchiveEntry addEntry (File baseDir, File file, String format,
+		boolean mainEntry) throws IOException
+	{
+		URI formatUri = null;
+		try
+		{
+			formatUri = new URI (format);
+		}
+		catch (URISyntaxException e)
+		{
+			LOGGER.warn (e, "could not parse URI ", format);
+			errors.add ("could not parse URI " + format);
+			return null;
+		}
+		
+		return addEntry (baseDir, file, formatUri, mainEntry);
 	}
 	
 	
@@ -862,17 +1249,12 @@ public class CombineArchive
 	 * @param format
 	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
-	 * @param description
-	 *          the description
 	 * @return the archive entry or null if adding failed
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
-	 * @deprecated as of version 0.5, replaced by
-	 *             {@link #addEntry(java.io.File,java.io.File,java.lang.String)}
 	 */
-	@Deprecated
-	public ArchiveEntry addEntry (File baseDir, File file, String format,
-		OmexDescription description) throws IOException
+	public ArchiveEntry addEntry (File baseDir, File file, URI format)
+		throws IOException
 	{
 		if (!file.exists ())
 			throw new IOException ("file does not exist.");
@@ -883,43 +1265,397 @@ public class CombineArchive
 		String localName = file.getAbsolutePath ()
 			.replace (baseDir.getAbsolutePath (), "");
 		
-		ArchiveEntry entry = addEntry (file, localName, format, false);
-		entry.addDescription (new OmexMetaDataObject (description));
-		return entry;
+		return addEntry (file, localName, format, false);
 	}
 	
 	
 	/**
-	 * Gets entries sharing a certain format.
+	 * Adds an entry to the archive.
+	 * The current version of the concerning file will be copied immediately.
+	 * Thus, upcoming modifications of the source file won't affect the version
+	 * in our archive.
+	 * The path of this file in the archive will be the path of <code>file</code>
+	 * relative to <code>baseDir</code>.
+	 * If there is already a file in the archive having the same relative path
+	 * we'll delete it.
 	 * 
+	 * @param baseDir
+	 *          the base dir
+	 * @param file
+	 *          the file
 	 * @param format
-	 *          the format URI of interest, see <a href=
+	 *          the format URI, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
-	 * @return the entries with that format
+	 * @return the archive entry or null if adding failed
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @deprecated as of version 0.9, replaced by
+	 *             {@link #addEntry(java.io.File,java.io.File,java.net.URI)}
 	 */
-	public List<ArchiveEntry> getEntriesWithFormat (URI format)
+	public ArchiveEntry addEntry (File baseDir, File file, String format)
+		throws IOException
 	{
+		URI formatUri = null;
+		try
+		{
+			formatUri = new URI (format);
+		}
+		catch (URISyntaxException e)
+		{
+			LOGGER.warn (e, "could not parse URI ", format);
+			errors.add ("could not parse URI " + format);
+			return null;
+		}
 		
-		List<ArchiveEntry> list = new ArrayList<ArchiveEntry> ();
-		for (ArchiveEntry e : entries.values ())
-			if (e.getFormat ().equals (format))
-				list.add (e);
-			
-		return list;
+		return addEntry (baseDir, file, formatUri, false);
 	}
 	
 	
 	/**
-	 * Counts entries with a certain format.
+	 * Adds an entry to the archive.
+	 * The current version of the concerning file will be copied immediately.
+	 * Thus, upcoming modifications of the source file won't affect the version
+	 * in our archive.
+	 * The path of this file in the archive will be the path of <code>file</code>
+	 * relative to <code>baseDir</code>.
+	 * If there is already a file in the archive having the same relative path
+	 * we'll delete it.
 	 * 
+	 * @param baseDir
+	 *          the base dir
+	 * @param file
+	 *          the file
 	 * @param format
-	 *          the format URI of interest, see <a href=
+	 *          the format URI, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param description
+	 *          the description
+	 * @param mainEntry
+	 *          is this the main entry of the archive? (default:
+	 *          <code>false</code>)
+	 * @return the archive entry or null if adding failed
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @deprecated as of version 0.5, replaced by
+	 *             {@link #addEntry(java.io.File,java.io.File,java.lang.String,boolean)}
+	 */
+	@Deprecated
+	public ArchiveEntry addEntry (File baseDir, File file, String format,
+		OmexDescription description, boolean mainEntry) throws IOException
+	{
+		if (!file.exists ())
+			throw new IOException ("file does not exist.");
+		
+		if (!file.getAbsolutePath ().contains (baseDir.getAbsolutePath ()))
+			throw new IOException ("file must be in basedir.");
+		
+		String localName = file.getAbsolutePath ()
+			.replace (baseDir.getAbsolutePath (), "");
+		
+		ArchiveEntry entry = addEntry (file, localName, format, mainEntry);
+		entry.addDescription (new OmexMetaDataObject (description));
+		return entry;
+	}
+	
+	
+	/**
+	 * Adds an entry to the archive.
+	 * The current version of the concerning file will be copied immediately.
+	 * Thus, upcoming modifications of the source file won't affect the version
+	 * in our archive.
+	 * The path of this file in the archive will be the path of <code>file</code>
+	 * relative to <code>baseDir</code>.
+	 * If there is already a file in the archive having the same relative path
+	 * we'll delete it.
+	 * 
+	 * @param baseDir
+	 *          the base dir
+	 * @param file
+	 *          the file
+	 * @param format
+	 *          the format URI, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param description
+	 *          the description
+	 * @return the archive entry or null if adding failed
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @deprecated as of version 0.5, replaced by
+	 *             {@link #addEntry(java.io.File,java.io.File,java.lang.String)}
+	 */
+	@Deprecated
+	public ArchiveEntry addEntry (File baseDir, File file, String format,
+		OmexDescription description) throws IOException
+	{
+		if (!file.exists ())
+			throw new IOException ("file does not exist.");
+		
+		if (!file.getAbsolutePath ().contains (baseDir.getAbsolutePath ()))
+			throw new IOException ("file must be in basedir.");
+		
+		String localName = file.getAbsolutePath ()
+			.replace (baseDir.getAbsolutePath (), "");
+		
+		ArchiveEntry entry = addEntry (file, localName, format, false);
+		entry.addDescription (new OmexMetaDataObject (description));
+		return entry;
+	}
+	
+	
+	/**
+	 * Adds all files in a directory tree to the archive.
+	 * <p>
+	 * Same as
+	 * {@link #addEntries(Path,FormatResolver,PathFilter,ExecutorService)}, but
+	 * uses a temporary thread pool with one thread per available processor to
+	 * copy and compress the files.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the directory to add
+	 * @param formatResolver
+	 *          determines the format of every file
+	 * @param mainEntrySelector
+	 *          selects the files that should become main entries, may be null
+	 * @return the entries that were added, in the order of the directory walk
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public List<ArchiveEntry> addEntries (Path baseDir,
+		FormatResolver formatResolver, PathFilter mainEntrySelector)
+		throws IOException
+	{
+		int threads = Runtime.getRuntime ().availableProcessors ();
+		if (threads < 2)
+			return addEntries (baseDir, formatResolver, mainEntrySelector, null);
+		
+		ExecutorService executor = Executors.newFixedThreadPool (threads);
+		try
+		{
+			return addEntries (baseDir, formatResolver, mainEntrySelector, executor);
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+	
+	
+	/**
+	 * Adds all files in a directory tree to the archive.
+	 * <p>
+	 * The tree is walked once and every regular file is added to the archive.
+	 * The path of a file in the archive will be its path relative to
+	 * <code>baseDir</code>. Files are copied and compressed concurrently using
+	 * <code>executor</code>, and every directory in the archive is created only
+	 * once. If there are already files in the archive having the same path we'll
+	 * overwrite them. Like {@link #addEntry(InputStream,String,URI,boolean)},
+	 * every file is first copied to a temporary file next to its target, so an
+	 * existing entry is not destroyed if copying the file fails.
+	 * </p>
+	 * <p>
+	 * Symbolic links are not followed. Neither links to files nor links to
+	 * directories will be added to the archive.
+	 * </p>
+	 * <p>
+	 * If some of the files cannot be added, all other files will still be added
+	 * before the first exception is thrown.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the directory to add
+	 * @param formatResolver
+	 *          determines the format of every file, will be called from
+	 *          <code>executor</code>'s threads
+	 * @param mainEntrySelector
+	 *          selects the files that should become main entries, may be null
+	 * @param executor
+	 *          the executor to copy the files, if null we'll copy in the calling
+	 *          thread
+	 * @return the entries that were added, in the order of the directory walk
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public List<ArchiveEntry> addEntries (Path baseDir,
+		final FormatResolver formatResolver, PathFilter mainEntrySelector,
+		ExecutorService executor) throws IOException
+	{
+		final Path base = baseDir.toAbsolutePath ().normalize ();
+		if (!Files.isDirectory (base))
+			throw new IOException (base + " is not a directory");
+		
+		// walk the tree once to collect the files and their targets
+		final List<Path> sources = new ArrayList<Path> ();
+		final List<Path> targets = new ArrayList<Path> ();
+		final Path root = zipfs.getPath ("/");
+		Files.walkFileTree (base, new SimpleFileVisitor<Path> ()
+		{
+			
+			@Override
+			public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+			{
+				if (attrs.isRegularFile ())
+				{
+					Path target = root;
+					for (Path name : base.relativize (file))
+						target = target.resolve (name.toString ());
+					checkTargetName (target.toString ());
+					sources.add (file);
+					targets.add (target);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		// the meta data of entries that we're going to replace needs to be read
+		// before, otherwise it would be assigned to the new entries
+		for (Path target : targets)
+			if (entries.containsKey (target.toString ()))
+			{
+				loadMetaData ();
+				break;
+			}
+		
+		// create every directory only once
+		Set<Path> directories = new HashSet<Path> ();
+		for (Path target : targets)
+		{
+			Path dir = target.getParent ();
+			if (directories.add (dir))
+				Files.createDirectories (dir);
+		}
+		
+		// copy the files and determine their formats
+		List<Future<URI>> formats = new ArrayList<Future<URI>> ();
+		for (int i = 0; i < sources.size (); i++)
+		{
+			final Path source = sources.get (i);
+			final Path target = targets.get (i);
+			Callable<URI> task = new Callable<URI> ()
+			{
+				
+				@Override
+				public URI call () throws IOException
+				{
+					writeEntry (new EntryContent ()
+					{
+						
+						@Override
+						public void writeTo (Path part) throws IOException
+						{
+							Files.copy (source, part, StandardCopyOption.COPY_ATTRIBUTES);
+						}
+					}, target);
+					return formatResolver.getFormat (source);
+				}
+			};
+			if (executor == null)
+			{
+				FutureTask<URI> future = new FutureTask<URI> (task);
+				future.run ();
+				formats.add (future);
+			}
+			else
+				formats.add (executor.submit (task));
+		}
+		
+		// register the entries in the order of the walk
+		List<ArchiveEntry> added = new ArrayList<ArchiveEntry> ();
+		IOException failure = null;
+		for (int i = 0; i < sources.size (); i++)
+		{
+			URI format = null;
+			try
+			{
+				format = formats.get (i).get ();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				if (failure == null)
+					failure = new IOException ("interrupted while adding "
+						+ sources.get (i), e);
+				continue;
+			}
+			catch (ExecutionException e)
+			{
+				LOGGER.error (e.getCause (), "cannot add ", sources.get (i));
+				errors.add ("cannot add " + sources.get (i));
+				if (failure == null)
+					failure = new IOException ("cannot add " + sources.get (i),
+						e.getCause ());
+				continue;
+			}
+			
+			ArchiveEntry entry = new ArchiveEntry (this, targets.get (i), format);
+			putToEntries (entry.getFilePath (), entry);
+			if (mainEntrySelector != null
+				&& mainEntrySelector.accept (sources.get (i)))
+				addMainEntry (entry);
+			added.add (entry);
+		}
+		
+		if (failure != null)
+			throw failure;
+		return added;
+	}
+	
+	
+	/**
+	 * Checks whether a file may be named <code>targetName</code> in the archive.
+	 * Manifest and meta data files are reserved.
+	 * 
+	 * @param targetName
+	 *          the target name, as returned by {@link #prepareLocation(String)}
+	 * @throws IllegalArgumentException
+	 *           if the name is reserved
+	 */
+	static void checkTargetName (String targetName)
+	{
+		if (targetName.equals (MANIFEST_LOCATION))
+			throw new IllegalArgumentException (
+				"it's not allowed to name a file " + MANIFEST_LOCATION);
+		
+		if (targetName.equals (METADATA_LOCATION))
+			throw new IllegalArgumentException (
+				"it's not allowed to name a file " + METADATA_LOCATION);
+		
+		// we also do not allow files with names like metadata-[0-9]*.rdf
+		if (targetName.matches ("^/metadata-[0-9]*\\.rdf$"))
+			throw new IllegalArgumentException (
+				"it's not allowed to name a file like metadata-[0-9]*.rdf");
+	}
+	
+	
+	/**
+	 * Gets entries sharing a certain format.
+	 * 
+	 * @param format
+	 *          the format URI of interest, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @return the entries with that format
+	 */
+	public List<ArchiveEntry> getEntriesWithFormat (URI format)
+	{
+		Set<ArchiveEntry> withFormat = formatIndex.get (format);
+		if (withFormat == null)
+			return new ArrayList<ArchiveEntry> ();
+		return new ArrayList<ArchiveEntry> (withFormat);
+	}
+	
+	
+	/**
+	 * Counts entries with a certain format.
+	 * 
+	 * @param format
+	 *          the format URI of interest, see <a href=
 	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
 	 * @return the number of entries with that format
 	 */
 	public int getNumEntriesWithFormat (URI format)
 	{
-		return getEntriesWithFormat (format).size ();
+		Set<ArchiveEntry> withFormat = formatIndex.get (format);
+		return withFormat == null ? 0 : withFormat.size ();
 	}
 	
 	
@@ -934,7 +1670,7 @@ public class CombineArchive
 	 */
 	public boolean hasEntriesWithFormat (URI format)
 	{
-		return getEntriesWithFormat (format).size () > 0;
+		return formatIndex.containsKey (format);
 	}
 	
 	
@@ -1001,6 +1737,50 @@ public class CombineArchive
 	}
 	
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataHolder#loadDescriptions()
+	 */
+	@Override
+	protected void loadDescriptions ()
+	{
+		loadMetaData ();
+	}
+	
+	
+	/**
+	 * Gets the policy to compress entries when writing the archive using
+	 * {@link #writeTo(File,ExecutorService)}.
+	 * 
+	 * @return the compression policy
+	 */
+	public CompressionPolicy getCompressionPolicy ()
+	{
+		return compressionPolicy;
+	}
+	
+	
+	/**
+	 * Sets the policy to compress entries when writing the archive using
+	 * {@link #writeTo(File,ExecutorService)}. Defaults to
+	 * {@link CompressionPolicy#balanced()}.
+	 * <p>
+	 * The policy does not apply when {@link #close() closing} the archive, as
+	 * the ZIP file system deflates all entries.
+	 * </p>
+	 * 
+	 * @param compressionPolicy
+	 *          the compression policy
+	 */
+	public void setCompressionPolicy (CompressionPolicy compressionPolicy)
+	{
+		if (compressionPolicy == null)
+			throw new IllegalArgumentException ("compression policy must not be null");
+		this.compressionPolicy = compressionPolicy;
+	}
+	
+	
 	/**
 	 * Gets the meta data holder of the meta data.
 	 * 
@@ -1040,21 +1820,15 @@ public class CombineArchive
 	
 	
 	/**
-	 * Write the manifest.
+	 * Write the manifest. The manifest lists all entries and the meta data files
+	 * in <code>metaDataFiles</code>. If the existing manifest already has exactly
+	 * that content it won't be touched.
 	 * 
-	 * @param singleFile
-	 *          write meta data to a single file?
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
-	 * @throws TransformerException
-	 *           Signals problems with converting the DOM to a text document
 	 */
-	private void writeManifest (boolean singleFile)
-		throws IOException,
-			TransformerException
+	private void writeManifest () throws IOException
 	{
-		File manifestFile = File.createTempFile ("combineArchiveManifest", "tmp");
-		
 		Document doc = new Document ();
 		Element root = new Element ("omexManifest", Utils.omexNs);
 		doc.addContent (root);
@@ -1066,60 +1840,35 @@ public class CombineArchive
 		for (ArchiveEntry e : entries.values ())
 		{
 			root.addContent (createManifestEntry ("." + e.getPath ().toString (),
-				e.getFormat (), mainEntries.contains (e)));
+				e.getFormat (), isMainEntry (e)));
 		}
 		
-		File baseDir = Files.createTempDirectory ("combineArchive").toFile ();
-		
-		List<File> descr = singleFile
-			? MetaDataFile.writeFile (baseDir, entries, this, metaData)
-			: MetaDataFile.writeFiles (baseDir, entries, this, metaData);
-		for (File f : descr)
-		{
-			root.addContent (createManifestEntry (
-				"." + f.getAbsolutePath ().replace (baseDir.getAbsolutePath (), ""),
+		for (Path meta : metaDataFiles)
+			root.addContent (createManifestEntry ("." + meta.toString (),
 				Utils.getOmexMetaDataUri (), false));
-			
-			// copy to zip
-			Path newMeta = zipfs
-				.getPath (f.getAbsolutePath ().replace (baseDir.getAbsolutePath (), ""))
-				.normalize ();
-			Files.copy (f.toPath (), newMeta, Utils.COPY_OPTION);
-			metaDataFiles.add (newMeta);
-			// delete original
-			f.delete ();
-		}
-		baseDir.delete ();
 		
-		BufferedWriter bw = null;
-		try
+		Path manifest = zipfs.getPath (MANIFEST_LOCATION).normalize ();
+		
+		// do not touch the manifest if it didn't change
+		if (Files.isRegularFile (manifest))
+			try (InputStream in = Files.newInputStream (manifest))
+			{
+				Utils.ComparingOutputStream cmp = new Utils.ComparingOutputStream (in);
+				Utils.writeXmlDocument (doc, cmp);
+				if (cmp.isEqual ())
+					return;
+			}
+		
+		// insert manifest into zip
+		try (OutputStream out = Files.newOutputStream (manifest))
 		{
-			bw = new BufferedWriter (new FileWriter (manifestFile));
-			bw.write (Utils.prettyPrintDocument (doc));
+			Utils.writeXmlDocument (doc, out);
 		}
-		catch (IOException | TransformerException e)
+		catch (IOException e)
 		{
-			e.printStackTrace ();
-			LOGGER.error (e, "cannot write manifest file to ", manifestFile);
+			LOGGER.error (e, "cannot write manifest file to ", manifest);
 			throw e;
 		}
-		finally
-		{
-			if (bw != null)
-				try
-				{
-					bw.close ();
-				}
-				catch (IOException e)
-				{
-				}
-		}
-		
-		// insert manifest into zip
-		Files.copy (manifestFile.toPath (),
-			zipfs.getPath (MANIFEST_LOCATION).normalize (), Utils.COPY_OPTION);
-		
-		manifestFile.delete ();
 	}
 	
 	
@@ -1145,10 +1894,51 @@ public class CombineArchive
 		throws IOException,
 			TransformerException
 	{
-		for (Path meta : metaDataFiles)
-			Files.delete (meta);
-		metaDataFiles = new ArrayList<Path> ();
-		writeManifest (!multipleMetaFiles);
+		pack (multipleMetaFiles, false);
+	}
+	
+	
+	/**
+	 * Pack this archive: generates manifest and meta data files.
+	 * <p>
+	 * Same as {@link #pack(boolean)}, but if <code>compactMetaData</code> is set
+	 * to <code>true</code> the meta data files will be written without
+	 * indentation, which results in smaller files.
+	 * </p>
+	 * <p>
+	 * Meta data files and the manifest are only rewritten if their contents
+	 * changed. Thus, packing an unmodified archive won't touch the ZIP file at
+	 * all when closing the archive.
+	 * </p>
+	 * 
+	 * @param multipleMetaFiles
+	 *          should we create one meta file per archive entry or combine all
+	 *          meta data in a single file?
+	 * @param compactMetaData
+	 *          should we write compact meta data files?
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void pack (boolean multipleMetaFiles, boolean compactMetaData)
+		throws IOException
+	{
+		// we're about to drop the meta data files, so make sure we know their contents
+		loadMetaData ();
+		
+		// write the meta data directly into the zip, unless it is up to date
+		Path baseDir = zipfs.getPath ("/");
+		if (!MetaDataFile.isUpToDate (baseDir, metaDataFiles, entries, this,
+			metaData, multipleMetaFiles, compactMetaData))
+		{
+			for (Path meta : metaDataFiles)
+				Files.delete (meta);
+			metaDataFiles = multipleMetaFiles
+				? MetaDataFile.writeFiles (baseDir, entries, this, metaData,
+					compactMetaData)
+				: MetaDataFile.writeFile (baseDir, entries, this, metaData,
+					compactMetaData);
+		}
+		writeManifest ();
 	}
 	
 	
@@ -1173,13 +1963,321 @@ public class CombineArchive
 	}
 	
 	
+	/**
+	 * Pack this archive and write it to another file.
+	 * <p>
+	 * Same as {@link #writeTo(File,ExecutorService)}, but compresses all entries
+	 * in the calling thread.
+	 * </p>
+	 * 
+	 * @param target
+	 *          the file to write the archive to, will be overwritten
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws TransformerException
+	 *           Signals problems with converting the DOM to a text document
+	 */
+	public void writeTo (File target) throws IOException, TransformerException
+	{
+		writeTo (target, null);
+	}
+	
+	
+	/**
+	 * Pack this archive and write it to another file.
+	 * <p>
+	 * This method first {@link #pack() packs} the archive and then writes a
+	 * fresh ZIP file to <code>target</code>. Entries are compressed according to
+	 * the {@link #getCompressionPolicy() compression policy}. Deflated entries
+	 * are split into chunks that are compressed concurrently using
+	 * <code>executor</code>, while the ZIP file is assembled sequentially. That
+	 * is much faster than closing the archive if there are large entries and
+	 * some idle cores. Entries that were not modified since the archive was
+	 * opened are copied as they are, without decompressing and compressing them
+	 * again. The archive itself stays open, but as it is packed first its
+	 * manifest and meta data files are updated, just like calling
+	 * {@link #pack()} before.
+	 * </p>
+	 * 
+	 * @param target
+	 *          the file to write the archive to, will be overwritten
+	 * @param executor
+	 *          the executor to compress the entries, if null we'll compress in
+	 *          the calling thread
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws TransformerException
+	 *           Signals problems with converting the DOM to a text document
+	 */
+	public void writeTo (File target, ExecutorService executor)
+		throws IOException,
+			TransformerException
+	{
+		if (target.getCanonicalFile ().equals (
+			zipFileLocation.getCanonicalFile ()))
+			throw new IllegalArgumentException (
+				"cannot write an archive to its own location, use close () instead");
+		
+		pack ();
+		
+		final ParallelDeflater deflater = new ParallelDeflater (executor,
+			compressionPolicy.getLevel (), ParallelDeflater.CHUNK_SIZE,
+			2 * Runtime.getRuntime ().availableProcessors ());
+		final Path manifest = zipfs.getPath (MANIFEST_LOCATION).normalize ();
+		
+		boolean success = false;
+		final ZipIndex index = getZipIndex ();
+		try (final ZipWriter zip = new ZipWriter (new FileOutputStream (target)))
+		{
+			// the manifest goes first
+			writeTo (zip, manifest, deflater, index);
+			
+			Files.walkFileTree (zipfs.getPath ("/"), new SimpleFileVisitor<Path> ()
+			{
+				
+				@Override
+				public FileVisitResult preVisitDirectory (Path dir,
+					BasicFileAttributes attrs) throws IOException
+				{
+					if (dir.getNameCount () > 0)
+						zip.putDirectory (dir.toString ().substring (1) + "/", attrs
+							.lastModifiedTime ().toMillis ());
+					return FileVisitResult.CONTINUE;
+				}
+				
+				
+				@Override
+				public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+					throws IOException
+				{
+					if (!file.equals (manifest))
+						writeTo (zip, file, deflater, index);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			success = true;
+		}
+		finally
+		{
+			if (!success)
+				target.delete ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the index of the ZIP file that backs this archive. The index is used
+	 * to access the data of unmodified entries. As the ZIP file system doesn't
+	 * touch the file before closing the archive, the index is read only once.
+	 * <p>
+	 * The index keeps its own handle to the ZIP file, in addition to the one
+	 * of the ZIP file system. That handle stays open until the archive is
+	 * {@link #close() closed}.
+	 * </p>
+	 * 
+	 * @return the index, or null if there is no usable ZIP file on disk yet
+	 */
+	private synchronized ZipIndex getZipIndex ()
+	{
+		if (zipIndexRead)
+			return zipIndex;
+		zipIndexRead = true;
+		
+		if (!zipFileLocation.isFile ())
+			return null;
+		try
+		{
+			zipIndex = new ZipIndex (zipFileLocation.toPath ());
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn (e, "cannot read central directory of ", zipFileLocation);
+		}
+		return zipIndex;
+	}
+	
+	
+	/**
+	 * Maps the data of an entry into memory, directly from the ZIP file.
+	 * <p>
+	 * This is only possible for entries that are {@link ZipEntry#STORED stored}
+	 * without compression in the ZIP file on disk, and that were not modified
+	 * since the archive was opened. See {@link ArchiveEntry#map()}. The buffer
+	 * must not be used after closing the archive.
+	 * </p>
+	 * 
+	 * @param entry
+	 *          the entry to map
+	 * @return the read-only buffer, or null if the entry cannot be mapped
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	MappedByteBuffer map (ArchiveEntry entry) throws IOException
+	{
+		ZipIndex index = getZipIndex ();
+		if (index == null)
+			return null;
+		
+		Path file = entry.getPath ();
+		ZipIndex.RawEntry raw = index.get (file.toString ().substring (1));
+		if (raw == null || !raw.isCopyable ()
+			|| raw.getMethod () != ZipEntry.STORED || !isUnchanged (file, raw))
+			return null;
+		
+		return index.map (raw);
+	}
+	
+	
+	/**
+	 * Reads a range of an entry, see {@link ArchiveEntry#read(long,ByteBuffer)}.
+	 * <p>
+	 * Entries that are {@link ZipEntry#STORED stored} in the ZIP file on disk
+	 * and were not modified since the archive was opened are read directly from
+	 * the file. All other entries are decompressed by the entry's
+	 * {@link EntryReader}, using the raw data in the ZIP file if the entry is
+	 * deflated and unmodified.
+	 * </p>
+	 * 
+	 * @param entry
+	 *          the entry to read
+	 * @param offset
+	 *          the position in the entry to start reading
+	 * @param dst
+	 *          the buffer to read into
+	 * @return the number of bytes read, or -1 if <code>offset</code> is at or
+	 *         beyond the end of the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	int read (ArchiveEntry entry, long offset, ByteBuffer dst)
+		throws IOException
+	{
+		if (offset < 0)
+			throw new IllegalArgumentException ("negative offset: " + offset);
+		
+		ZipIndex index = getZipIndex ();
+		ZipIndex.RawEntry raw = null;
+		if (index != null)
+		{
+			Path file = entry.getPath ();
+			raw = index.get (file.toString ().substring (1));
+			if (raw != null && (!raw.isCopyable () || !isUnchanged (file, raw)))
+				raw = null;
+			if (raw != null && raw.getMethod () == ZipEntry.STORED)
+				return index.read (raw, offset, dst);
+		}
+		
+		return entry.getReader (readCache, index, raw).read (offset, dst);
+	}
+	
+	
+	/**
+	 * Copy a file of our archive into a ZIP file.
+	 * <p>
+	 * If the file is unchanged compared to the entry in <code>index</code> and
+	 * was encoded using the method chosen by the compression policy, the
+	 * compressed data will be copied as it is. Otherwise the file will be either
+	 * stored or compressed using <code>deflater</code>.
+	 * </p>
+	 * 
+	 * @param zip
+	 *          the ZIP file to write to
+	 * @param file
+	 *          the file in our archive
+	 * @param deflater
+	 *          the deflater to compress the data
+	 * @param index
+	 *          the index of the original ZIP file, may be null
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeTo (ZipWriter zip, Path file, ParallelDeflater deflater,
+		ZipIndex index) throws IOException
+	{
+		String name = file.toString ().substring (1);
+		long time = Files.getLastModifiedTime (file).toMillis ();
+		ArchiveEntry entry = entries.get (file.toString ());
+		int method = entry == null
+			? compressionPolicy.getMethod (file.getFileName ().toString (), null)
+			: compressionPolicy.getMethod (entry);
+		
+		ZipIndex.RawEntry raw = index == null ? null : index.get (name);
+		if (raw != null && raw.isCopyable () && raw.getMethod () == method
+			&& isUnchanged (file, raw))
+		{
+			try (InputStream in = index.openRaw (raw))
+			{
+				zip.putRaw (name, time, raw.getMethod (), raw.getCrc (),
+					raw.getSize (), raw.getCompressedSize (), in);
+			}
+			return;
+		}
+		
+		if (method == ZipEntry.STORED)
+		{
+			// stored entries need their CRC in advance
+			long size = Files.size (file);
+			CRC32 crc = new CRC32 ();
+			try (InputStream in = new CheckedInputStream (
+				Files.newInputStream (file), crc))
+			{
+				byte[] buf = new byte[65536];
+				while (in.read (buf) >= 0)
+					;
+			}
+			try (InputStream in = Files.newInputStream (file))
+			{
+				zip.putRaw (name, time, ZipEntry.STORED, crc.getValue (), size, size,
+					in);
+			}
+			return;
+		}
+		
+		try (InputStream in = Files.newInputStream (file))
+		{
+			zip.putDeflated (name, time, in, Files.size (file), deflater);
+		}
+	}
+	
+	
+	/**
+	 * Checks whether a file in our archive still has the contents of an entry in
+	 * the original ZIP file. The ZIP file system computes size and CRC-32 of
+	 * modified files, so we do not need to read the data.
+	 * 
+	 * @param file
+	 *          the file in our archive
+	 * @param raw
+	 *          the entry in the original ZIP file
+	 * @return true, if size and CRC-32 match
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private static boolean isUnchanged (Path file, ZipIndex.RawEntry raw)
+		throws IOException
+	{
+		Map<String, Object> attrs = Files.readAttributes (file, "zip:size,crc");
+		Object size = attrs.get ("size");
+		Object crc = attrs.get ("crc");
+		return size instanceof Number && crc instanceof Number
+			&& ((Number) size).longValue () == raw.getSize ()
+			&& ((Number) crc).longValue () == raw.getCrc ();
+	}
+	
+	
 	/**
 	 * Parses a manifest file.
+	 * <p>
+	 * The manifest is read in a single pass using a StAX reader, entries are
+	 * created as soon as we see their <code>content</code> elements.
+	 * </p>
 	 * 
 	 * @param manifest
 	 *          the manifest
 	 * @param continueOnError
 	 *          ignore errors and continue
+	 * @param lazyMetaData
+	 *          postpone parsing the meta data files until it is needed
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
 	 * @throws JDOMException
@@ -1188,169 +2286,249 @@ public class CombineArchive
 	 *           the parse exception
 	 * @throws CombineArchiveException
 	 */
-	private void parseManifest (Path manifest, boolean continueOnError)
+	private void parseManifest (Path manifest, boolean continueOnError,
+		boolean lazyMetaData)
 		throws IOException,
 			JDOMException,
 			ParseException,
 			CombineArchiveException
 	{
-		Document doc = null;
+		InputStream in = null;
+		try
+		{
+			in = Files.newInputStream (manifest);
+		}
+		catch (IOException e)
+		{
+			LOGGER.error (e, "cannot read manifest of archive.");
+			errors.add ("cannot read manifest of archive. io error.");
+			if (!continueOnError)
+				throw e;
+			return;
+		}
+		
+		XMLStreamReader reader = null;
 		try
 		{
-			doc = Utils.readXmlDocument (manifest);
+			reader = Utils.createXmlStreamReader (in);
+			int i = 0;
+			while (reader.hasNext ())
+			{
+				if (reader.next () == XMLStreamConstants.START_ELEMENT
+					&& reader.getLocalName ().equals ("content")
+					&& Utils.omexNs.getURI ().equals (reader.getNamespaceURI ()))
+					parseManifestEntry (i++, getAttributeValue (reader, "location"),
+						getAttributeValue (reader, "format"),
+						getAttributeValue (reader, "master"), continueOnError);
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot read manifest of archive");
+			errors.add ("cannot read manifest of archive. xml seems to be invalid.");
+			if (!continueOnError)
+				throw new JDOMException ("cannot read manifest of archive", e);
+			return;
+		}
+		finally
+		{
+			try
+			{
+				if (reader != null)
+					reader.close ();
+				in.close ();
+			}
+			catch (XMLStreamException | IOException e)
+			{
+				LOGGER.warn (e, "couldn't close manifest ", manifest);
+			}
+		}
+		
+		if (lazyMetaData)
+		{
+			// remember the files, we'll parse them as soon as someone asks for meta
+			pendingMetaDataFiles = new ArrayList<Path> (metaDataFiles);
+			return;
+		}
+		
+		// parse all descriptions
+		for (Path f : metaDataFiles)
+		{
+			MetaDataFile.readFile (f, entries, this, metaData, metaDataFiles,
+				continueOnError, errors);
+		}
+	}
+	
+	
+	/**
+	 * Evaluates a single <code>content</code> element of the manifest.
+	 * 
+	 * @param i
+	 *          the number of the entry in the manifest
+	 * @param location
+	 *          the value of the <code>location</code> attribute
+	 * @param formatValue
+	 *          the value of the <code>format</code> attribute
+	 * @param master
+	 *          the value of the <code>master</code> attribute
+	 * @param continueOnError
+	 *          ignore errors and continue
+	 * @throws IOException
+	 *           Signals that the entry is invalid.
+	 */
+	private void parseManifestEntry (int i, String location, String formatValue,
+		String master, boolean continueOnError) throws IOException
+	{
+		URI format = null;
+		if (formatValue != null)
+		{
+			try
+			{
+				format = FormatRegistry.getFormatUri (formatValue);
+			}
+			catch (URISyntaxException e)
+			{
+				LOGGER.error ("archive seems to be corrupt. format ", formatValue,
+					" not a valid URI.");
+				errors.add ("archive seems to be corrupt. format " + formatValue
+					+ " not a valid URI.");
+				if (!continueOnError)
+					throw new IOException ("archive seems to be corrupt. format "
+						+ formatValue + " not a valid URI.");
+				return;
+			}
+		}
+		else
+		{
+			LOGGER.error ("didn't find format for entry", i);
+			errors.add ("didn't find format for entry" + i);
+			if (!continueOnError)
+				throw new IOException ("didn't find format for entry" + i);
+			return;
+		}
+		
+		if (location == null)
+		{
+			LOGGER.error ("manifest invalid. unknown location of entry ", i);
+			errors.add ("manifest invalid. unknown location of entry " + i);
+			if (!continueOnError)
+				throw new IOException (
+					"manifest invalid. unknown location of entry " + i);
+			return;
+		}
+		
+		if (FormatRegistry.isOmexSpec (format))
+		{
+			// that's the archive itself -> skip
+			return;
+		}
+		
+		if (!location.startsWith ("/"))
+		{
+			location = "/" + location;
+		}
+		location = prepareLocation (Paths.get (location).normalize ().toString ());
+		
+		Path locFile = zipfs.getPath (location).normalize ();
+		if (!Files.isRegularFile (locFile))
+		{
+			LOGGER.error ("archive seems to be corrupt. file ", locFile,
+				" not found.");
+			errors.add ("archive seems to be corrupt. file " + locFile + " not found.");
+			if (!continueOnError)
+				throw new IOException (
+					"archive seems to be corrupt. file " + locFile + " not found.");
+			return;
 		}
-		catch (JDOMException e)
+		
+		if (format.equals (FormatRegistry.OMEX_METADATA))
 		{
-			LOGGER.error (e, "cannot read manifest of archive");
-			errors.add ("cannot read manifest of archive. xml seems to be invalid.");
-			if (!continueOnError)
-				throw e;
+			metaDataFiles.add (locFile);
+			// since that's not a real entry
 			return;
 		}
-		catch (IOException e)
+		
+		if (format.equals (FormatRegistry.OMEX_MANIFEST))
 		{
-			LOGGER.error (e, "cannot read manifest of archive.");
-			errors.add ("cannot read manifest of archive. io error.");
-			if (!continueOnError)
-				throw e;
+			// that's this manifest -> skip
 			return;
 		}
-		metaDataFiles = new ArrayList<Path> ();
-		metaData = new MetaDataFile ();
-		List<Element> nl = Utils.getElementsByTagName (doc.getRootElement (),
-			"content", Utils.omexNs);
-		for (int i = 0; i < nl.size (); i++)
+		
+		ArchiveEntry entry = new ArchiveEntry (this, locFile, format);
+		if (master != null && Boolean.parseBoolean (master))
+			addMainEntry (entry);
+		putToEntries (location, entry);
+	}
+	
+	
+	/**
+	 * Gets the value of an attribute without namespace of the current element.
+	 * 
+	 * @param reader
+	 *          the reader, positioned at a start element
+	 * @param name
+	 *          the name of the attribute
+	 * @return the value, or null if there is no such attribute
+	 */
+	static String getAttributeValue (XMLStreamReader reader, String name)
+	{
+		for (int i = 0; i < reader.getAttributeCount (); i++)
 		{
-			Element content = nl.get (i);
-			
-			String location = null;
-			String master = null;
-			URI format = null;
-			
-			Attribute attr = content.getAttribute ("location");
-			if (attr != null)
-				location = attr.getValue ();
-			attr = content.getAttribute ("format");
-			if (attr != null)
-			{
-				try
-				{
-					if (!attr.getValue ().startsWith ("http"))
-						throw new URISyntaxException (attr.getValue (),
-							"expected http uri");
-					format = new URI (attr.getValue ());
-				}
-				catch (URISyntaxException e)
-				{
-					boolean foundMime = false;
-					// is it a mimetype?
-					String mime = attr.getValue ();
-					if (mime.matches (MIME_REGEX))
-					{
-						try
-						{
-							format = new URI (PURL_PREFIX + mime);
-							foundMime = true;
-						}
-						catch (URISyntaxException e1)
-						{
-							LOGGER.error ("couldn't convert mime ", mime, " to uri ",
-								PURL_PREFIX, mime);
-							errors.add ("couldn't convert mime " + mime + " to uri "
-								+ PURL_PREFIX + mime);
-						}
-					}
-					if (!foundMime)
-					{
-						LOGGER.error ("archive seems to be corrupt. format ",
-							attr.getValue (), " not a valid URI.");
-						errors.add ("archive seems to be corrupt. format "
-							+ attr.getValue () + " not a valid URI.");
-						if (!continueOnError)
-							throw new IOException ("archive seems to be corrupt. format "
-								+ attr.getValue () + " not a valid URI.");
-						continue;
-					}
-				}
-			}
-			else
-			{
-				LOGGER.error ("didn't find format for entry", i);
-				errors.add ("didn't find format for entry" + i);
-				if (!continueOnError)
-					throw new IOException ("didn't find format for entry" + i);
-				continue;
-			}
-			
-			attr = content.getAttribute ("master");
-			if (attr != null)
-				master = attr.getValue ();
-			
-			if (location == null)
-			{
-				LOGGER.error ("manifest invalid. unknown location of entry ", i);
-				errors.add ("manifest invalid. unknown location of entry " + i);
-				if (!continueOnError)
-					throw new IOException (
-						"manifest invalid. unknown location of entry " + i);
-				continue;
-			}
-			
-			if (format.equals (Utils.getOmexSpecUri ()) || format.toString ()
-				.startsWith ( (Utils.getOmexSpecUri ().toString () + ".version")))
-			{
-				// that's the archive itself -> skip
-				continue;
-			}
-			
-			if (!location.startsWith ("/"))
-			{
-				location = "/" + location;
-			}
-			location = prepareLocation (
-				Paths.get (location).normalize ().toString ());
-			
-			Path locFile = zipfs.getPath (location).normalize ();
-			if (!Files.isRegularFile (locFile))
-			{
-				LOGGER.error ("archive seems to be corrupt. file ", locFile,
-					" not found.");
-				errors
-					.add ("archive seems to be corrupt. file " + locFile + " not found.");
-				if (!continueOnError)
-					throw new IOException (
-						"archive seems to be corrupt. file " + locFile + " not found.");
-				continue;
-			}
-			
-			if (format.equals (Utils.getOmexMetaDataUri ()))
+			String ns = reader.getAttributeNamespace (i);
+			if ( (ns == null || ns.length () == 0)
+				&& reader.getAttributeLocalName (i).equals (name))
+				return reader.getAttributeValue (i);
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Parses the meta data files that were postponed when opening the archive in
+	 * lazy mode. Does nothing if the meta data was already read.
+	 * <p>
+	 * Problems in the meta data files won't be thrown, but can be obtained using
+	 * {@link #getErrors()}.
+	 * </p>
+	 */
+	void loadMetaData ()
+	{
+		if (pendingMetaDataFiles == null)
+			return;
+		
+		// reset before parsing: adding the descriptions will call us again
+		List<Path> toRead = pendingMetaDataFiles;
+		pendingMetaDataFiles = null;
+		for (Path f : toRead)
+		{
+			try
 			{
-				metaDataFiles.add (locFile);
-				// since that's not a real entry
-				continue;
+				MetaDataFile.readFile (f, entries, this, metaData, metaDataFiles, true,
+					errors);
 			}
-			
-			if (format.equals (Utils.getOmexManifestUri ()))
+			catch (ParseException | JDOMException | IOException
+				| CombineArchiveException e)
 			{
-				// that's this manifest -> skip
-				continue;
+				LOGGER.error (e, "cannot read meta data file ", f);
+				errors.add ("cannot read meta data file " + f + ": " + e.getMessage ());
 			}
-			
-			ArchiveEntry entry = new ArchiveEntry (this, locFile, format);
-			if (master != null && Boolean.parseBoolean (master))
-				addMainEntry (entry);
-			entries.put (location, entry);
-		}
-		
-		// parse all descriptions
-		for (Path f : metaDataFiles)
-		{
-			MetaDataFile.readFile (f, entries, this, metaData, metaDataFiles,
-				continueOnError, errors);
 		}
 	}
 	
 	
+	/**
+	 * Checks whether the meta data of this archive was already parsed. That is
+	 * always the case, unless the archive was opened in lazy mode, see
+	 * {@link #CombineArchive(File, boolean, boolean)}.
+	 *
+	 * @return true, if the meta data was read
+	 */
+	public boolean isMetaDataLoaded ()
+	{
+		return pendingMetaDataFiles == null;
+	}
+	
+	
 	/**
 	 * Move an entry. (rename it)
 	 * 
@@ -1365,13 +2543,14 @@ public class CombineArchive
 	{
 		String alt = prepareLocation (oldPath);
 		String neu = prepareLocation (newPath);
+		loadMetaData ();
 		
 		ArchiveEntry entry = getEntryByLocation (alt);
 		if (entry == null)
 			throw new IOException ("no such entry in archive");
 		
-		boolean wasMain = mainEntries.contains (entry);
-		entries.remove (alt);
+		boolean wasMain = isMainEntry (entry);
+		removeFromEntries (alt);
 		
 		Path neuPath = zipfs.getPath (neu).normalize ();
 		Files.createDirectories (neuPath.getParent ());
@@ -1380,7 +2559,7 @@ public class CombineArchive
 		ArchiveEntry newEntry = new ArchiveEntry (this, neuPath,
 			entry.getFormat ());
 		
-		entries.put (neu, newEntry);
+		putToEntries (neu, newEntry);
 		if (wasMain)
 		{
 			addMainEntry (newEntry);
@@ -1435,49 +2614,308 @@ public class CombineArchive
 	 */
 	public File extractTo (File destination) throws IOException
 	{
-		try (DirectoryStream<Path> directoryStream = Files
-			.newDirectoryStream (zipfs.getPath ("/"));)
+		extractTo (destination, null, true);
+		return destination;
+	}
+	
+	
+	/**
+	 * Extract the whole archive to the disk, using multiple threads.
+	 * <p>
+	 * All directories are created in a single pass before extracting the files.
+	 * The files are then submitted to <code>executor</code> in the order of
+	 * their data in the ZIP file, so that the archive is read mostly
+	 * sequentially even if several files are extracted concurrently. Files that
+	 * were added or modified since the archive was opened come last.
+	 * </p>
+	 * <p>
+	 * If some of the files cannot be extracted, all other files will still be
+	 * extracted before the first exception is thrown.
+	 * </p>
+	 * 
+	 * @param destination
+	 *          the destination directory
+	 * @param executor
+	 *          the executor to extract the files, if null we'll extract in the
+	 *          calling thread
+	 * @param copyAttributes
+	 *          should we copy the file attributes, such as the modification
+	 *          time?
+	 * @return the report, containing throughput and timings of every file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public ExtractionReport extractTo (File destination,
+		ExecutorService executor, boolean copyAttributes) throws IOException
+	{
+		final List<Path> files = new ArrayList<Path> ();
+		Files.walkFileTree (zipfs.getPath ("/"), new SimpleFileVisitor<Path> ()
+		{
+			
+			@Override
+			public FileVisitResult visitFile (Path file, BasicFileAttributes attrs)
+			{
+				files.add (file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return extractFiles (destination, files, executor, copyAttributes);
+	}
+	
+	
+	/**
+	 * Extract selected entries to the disk.
+	 * <p>
+	 * Same as
+	 * {@link #extractTo(File,EntryFilter,boolean,ExecutorService,boolean)}, but
+	 * extracts in the calling thread, copies file attributes, and skips
+	 * manifest and meta data files.
+	 * </p>
+	 * 
+	 * @param destination
+	 *          the destination directory
+	 * @param filter
+	 *          selects the entries to extract
+	 * @return the report, containing throughput and timings of every file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public ExtractionReport extractTo (File destination, EntryFilter filter)
+		throws IOException
+	{
+		return extractTo (destination, filter, false, null, true);
+	}
+	
+	
+	/**
+	 * Extract the entries whose paths match a glob pattern.
+	 * <p>
+	 * The pattern is matched against the paths of the entries in the archive,
+	 * which start with a <code>/</code>. For example, <code>/**.sedml</code>
+	 * matches all SED-ML files and <code>/*.sbml</code> matches SBML files in
+	 * the root of the archive. See
+	 * {@link java.nio.file.FileSystem#getPathMatcher(String)} for the syntax.
+	 * Manifest and meta data files are skipped.
+	 * </p>
+	 * 
+	 * @param destination
+	 *          the destination directory
+	 * @param glob
+	 *          the glob pattern
+	 * @return the report, containing throughput and timings of every file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public ExtractionReport extractTo (File destination, String glob)
+		throws IOException
+	{
+		final PathMatcher matcher = zipfs.getPathMatcher ("glob:" + glob);
+		return extractTo (destination, new EntryFilter ()
 		{
-			for (Path file : directoryStream)
+			
+			@Override
+			public boolean accept (ArchiveEntry entry)
 			{
-				extract (file, destination.toPath ());
+				return matcher.matches (entry.getPath ());
 			}
+		});
+	}
+	
+	
+	/**
+	 * Extract the entries of a certain format.
+	 * <p>
+	 * The entries are looked up in the index of formats, so no other entries
+	 * are touched. Manifest and meta data files are skipped.
+	 * </p>
+	 * 
+	 * @param destination
+	 *          the destination directory
+	 * @param format
+	 *          the format URI, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @return the report, containing throughput and timings of every file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public ExtractionReport extractTo (File destination, URI format)
+		throws IOException
+	{
+		List<Path> files = new ArrayList<Path> ();
+		for (ArchiveEntry entry : getEntriesWithFormat (format))
+			files.add (entry.getPath ());
+		return extractFiles (destination, files, null, true);
+	}
+	
+	
+	/**
+	 * Extract selected entries to the disk.
+	 * <p>
+	 * The entries are taken from the manifest, so only matching entries are
+	 * read from the archive and there is no need to walk the ZIP file system.
+	 * If <code>withMetaData</code> is set, the manifest and the meta data files
+	 * will be extracted as well. Note that the meta data files reflect the state
+	 * of the last {@link #pack() packing}. The files are extracted as described
+	 * in {@link #extractTo(File,ExecutorService,boolean)}.
+	 * </p>
+	 * 
+	 * @param destination
+	 *          the destination directory
+	 * @param filter
+	 *          selects the entries to extract, if null all entries will be
+	 *          extracted
+	 * @param withMetaData
+	 *          extract the manifest and meta data files, too?
+	 * @param executor
+	 *          the executor to extract the files, if null we'll extract in the
+	 *          calling thread
+	 * @param copyAttributes
+	 *          should we copy the file attributes, such as the modification
+	 *          time?
+	 * @return the report, containing throughput and timings of every file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public ExtractionReport extractTo (File destination, EntryFilter filter,
+		boolean withMetaData, ExecutorService executor, boolean copyAttributes)
+		throws IOException
+	{
+		List<Path> files = new ArrayList<Path> ();
+		for (ArchiveEntry entry : entries.values ())
+			if (filter == null || filter.accept (entry))
+				files.add (entry.getPath ());
+		
+		if (withMetaData)
+		{
+			Path manifest = zipfs.getPath (MANIFEST_LOCATION).normalize ();
+			if (Files.isRegularFile (manifest))
+				files.add (manifest);
+			files.addAll (metaDataFiles);
 		}
-		return destination;
+		
+		return extractFiles (destination, files, executor, copyAttributes);
 	}
 	
 	
 	/**
-	 * Extract an entry or a directory.
+	 * Extract some files of the ZIP file system to the disk.
 	 * 
-	 * @param zipPath
-	 *          the what
 	 * @param destination
-	 *          the to
+	 *          the destination directory
+	 * @param files
+	 *          the files to extract, will be sorted
+	 * @param executor
+	 *          the executor to extract the files, if null we'll extract in the
+	 *          calling thread
+	 * @param copyAttributes
+	 *          should we copy the file attributes?
+	 * @return the report
 	 * @throws IOException
-	 *           the exception signalling IO issues
+	 *           Signals that an I/O exception has occurred.
 	 */
-	private static void extract (Path zipPath, Path destination)
+	private ExtractionReport extractFiles (File destination,
+		final List<Path> files, ExecutorService executor, boolean copyAttributes)
 		throws IOException
 	{
-		if (Files.isDirectory (zipPath))
+		long start = System.nanoTime ();
+		final Path base = destination.toPath ().toAbsolutePath ().normalize ();
+		final ExtractionReport report = new ExtractionReport ();
+		final CopyOption[] options = copyAttributes
+			? Utils.COPY_OPTION
+			: new CopyOption[] { StandardCopyOption.REPLACE_EXISTING };
+		
+		// read the files in the order of their data in the zip
+		final ZipIndex index = getZipIndex ();
+		if (index != null)
+			Collections.sort (files, new Comparator<Path> ()
+			{
+				
+				@Override
+				public int compare (Path a, Path b)
+				{
+					return Long.compare (getOffset (a), getOffset (b));
+				}
+				
+				
+				private long getOffset (Path file)
+				{
+					ZipIndex.RawEntry raw = index.get (file.toString ().substring (1));
+					return raw == null ? Long.MAX_VALUE : raw.getLocalHeaderOffset ();
+				}
+			});
+		
+		// create all directories in one pass
+		List<Path> targets = new ArrayList<Path> ();
+		Set<Path> directories = new HashSet<Path> ();
+		for (Path file : files)
+		{
+			Path target = base.resolve ("./" + file.normalize ().toString ())
+				.normalize ();
+			if (!target.startsWith (base))
+				throw new IOException ("refusing to extract " + file + " outside of "
+					+ base);
+			targets.add (target);
+			if (directories.add (target.getParent ()))
+				Files.createDirectories (target.getParent ());
+		}
+		
+		// extract the files
+		List<Future<Void>> results = new ArrayList<Future<Void>> ();
+		for (int i = 0; i < files.size (); i++)
 		{
-			try (DirectoryStream<Path> directoryStream = Files
-				.newDirectoryStream (zipPath);)
+			final Path file = files.get (i);
+			final Path target = targets.get (i);
+			Callable<Void> task = new Callable<Void> ()
 			{
-				for (Path file : directoryStream)
+				
+				@Override
+				public Void call () throws IOException
 				{
-					extract (file, destination);
+					long start = System.nanoTime ();
+					Files.copy (file, target, options);
+					report.addEntry (file.toString (), Files.size (target),
+						System.nanoTime () - start);
+					return null;
 				}
+			};
+			if (executor == null)
+			{
+				FutureTask<Void> future = new FutureTask<Void> (task);
+				future.run ();
+				results.add (future);
 			}
+			else
+				results.add (executor.submit (task));
 		}
-		else
+		
+		IOException failure = null;
+		for (int i = 0; i < results.size (); i++)
 		{
-			Path fileOutZip = destination
-				.resolve ("./" + zipPath.normalize ().toString ()).normalize ();
-			Files.createDirectories (fileOutZip.getParent ());
-			Files.copy (zipPath, fileOutZip, Utils.COPY_OPTION);
+			try
+			{
+				results.get (i).get ();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				if (failure == null)
+					failure = new IOException ("interrupted while extracting "
+						+ files.get (i), e);
+			}
+			catch (ExecutionException e)
+			{
+				LOGGER.error (e.getCause (), "cannot extract ", files.get (i));
+				if (failure == null)
+					failure = new IOException ("cannot extract " + files.get (i),
+						e.getCause ());
+			}
 		}
+		
+		report.setElapsedNanos (System.nanoTime () - start);
+		LOGGER.debug (report);
+		if (failure != null)
+			throw failure;
+		return report;
 	}
 	
 	
@@ -1558,7 +2996,192 @@ public class CombineArchive
 	@Override
 	public void close () throws IOException
 	{
+		synchronized (this)
+		{
+			if (readCache != null)
+				readCache.close ();
+			if (zipIndex != null)
+				zipIndex.close ();
+			zipIndex = null;
+		}
 		if (zipfs != null)
 			zipfs.close ();
 	}
+	
+	
+	/**
+	 * The Class MainEntryList is the list of main entries. Besides the list
+	 * itself, it counts the occurrences of every entry, so that checking whether
+	 * an entry is a main entry takes constant time.
+	 */
+	private static class MainEntryList
+		extends AbstractList<ArchiveEntry>
+	{
+		
+		/** The main entries, in their order. */
+		private ArrayList<ArchiveEntry>							list		= new ArrayList<ArchiveEntry> ();
+		
+		/** The number of occurrences of the entries in the list. */
+		private IdentityHashMap<ArchiveEntry, Integer>	counts	= new IdentityHashMap<ArchiveEntry, Integer> ();
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public ArchiveEntry get (int index)
+		{
+			return list.get (index);
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size ()
+		{
+			return list.size ();
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#set(int, java.lang.Object)
+		 */
+		@Override
+		public ArchiveEntry set (int index, ArchiveEntry entry)
+		{
+			ArchiveEntry old = list.set (index, entry);
+			uncount (old);
+			count (entry);
+			return old;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#add(int, java.lang.Object)
+		 */
+		@Override
+		public void add (int index, ArchiveEntry entry)
+		{
+			list.add (index, entry);
+			count (entry);
+			modCount++;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#remove(int)
+		 */
+		@Override
+		public ArchiveEntry remove (int index)
+		{
+			ArchiveEntry old = list.remove (index);
+			uncount (old);
+			modCount++;
+			return old;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#removeRange(int, int)
+		 */
+		@Override
+		protected void removeRange (int fromIndex, int toIndex)
+		{
+			List<ArchiveEntry> range = list.subList (fromIndex, toIndex);
+			for (ArchiveEntry entry : range)
+				uncount (entry);
+			range.clear ();
+			modCount++;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractCollection#contains(java.lang.Object)
+		 */
+		@Override
+		public boolean contains (Object entry)
+		{
+			return counts.containsKey (entry);
+		}
+		
+		
+		/**
+		 * Removes all occurrences of an entry.
+		 * 
+		 * @param entry
+		 *          the entry to remove
+		 */
+		public void removeEntry (ArchiveEntry entry)
+		{
+			if (!counts.containsKey (entry))
+				return;
+			for (int i = list.size () - 1; i >= 0; i--)
+				if (list.get (i) == entry)
+					remove (i);
+		}
+		
+		
+		/**
+		 * Counts an occurrence of an entry.
+		 * 
+		 * @param entry
+		 *          the entry
+		 */
+		private void count (ArchiveEntry entry)
+		{
+			Integer n = counts.get (entry);
+			counts.put (entry, n == null ? 1 : n + 1);
+		}
+		
+		
+		/**
+		 * Forgets an occurrence of an entry.
+		 * 
+		 * @param entry
+		 *          the entry
+		 */
+		private void uncount (ArchiveEntry entry)
+		{
+			Integer n = counts.get (entry);
+			if (n == null || n <= 1)
+				counts.remove (entry);
+			else
+				counts.put (entry, n - 1);
+		}
+	}
+	
+	
+	/**
+	 * The Interface EntryContent writes the contents of an entry that is about
+	 * to be added.
+	 */
+	private interface EntryContent
+	{
+		
+		/**
+		 * Writes the contents to a new file.
+		 * 
+		 * @param target
+		 *          the file to create
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		void writeTo (Path target) throws IOException;
+	}
 }
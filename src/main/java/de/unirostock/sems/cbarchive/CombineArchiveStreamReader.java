@@ -0,0 +1,643 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.CombineArchiveStreamWriter.Entry;
+import de.unirostock.sems.cbarchive.meta.MetaDataFile;
+import de.unirostock.sems.cbarchive.meta.MetaDataHolder;
+
+
+
+/**
+ * The Class CombineArchiveStreamReader reads a CombineArchive from a stream in
+ * a single, forward-only pass.
+ * <p>
+ * In contrast to {@link CombineArchive} the archive doesn't need to be stored
+ * in a file first, so e.g. uploads can be validated and indexed while they
+ * are still in flight. The entries are passed to an {@link EntryHandler} in
+ * the order they appear in the stream. Entries that appear before the
+ * manifest are buffered, in memory up to a certain threshold and in temporary
+ * files beyond, until the manifest tells us their formats.
+ * </p>
+ * <p>
+ * Meta data files may appear anywhere in the stream, thus the descriptions of
+ * the archive and its entries are only complete after
+ * {@link #read(EntryHandler)} returned.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+public class CombineArchiveStreamReader
+	extends MetaDataHolder
+	implements Closeable
+{
+	
+	/** The default amount of memory to buffer entries preceding the manifest. */
+	public static final long												DEFAULT_MEMORY_THRESHOLD	= 16 * 1024 * 1024;
+	
+	/** The stream to read from. */
+	private ZipInputStream													zip;
+	
+	/** The amount of memory to buffer entries preceding the manifest. */
+	private long																		memoryThreshold;
+	
+	/** Ignore errors and continue? */
+	private boolean																	continueOnError;
+	
+	/** The entries listed in the manifest, mapped by their location. */
+	private LinkedHashMap<String, Entry>						entries;
+	
+	/** The locations of the meta data files listed in the manifest. */
+	private Set<String>															metaDataFiles;
+	
+	/** The meta data about the meta data files. */
+	private MetaDataFile														metaData;
+	
+	/** Did we see the manifest already? */
+	private boolean																	manifestSeen;
+	
+	/** The errors that occurred while reading the archive. */
+	private List<String>														errors;
+	
+	
+	/**
+	 * Handles the entries of a streamed archive.
+	 * 
+	 * @author martin scharm
+	 */
+	public interface EntryHandler
+	{
+		
+		/**
+		 * Handle an entry. The data is only available during this call, it is not
+		 * required to consume or close the stream.
+		 * 
+		 * @param entry
+		 *          the entry, its descriptions may be incomplete
+		 * @param data
+		 *          the stream providing the contents of the entry
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		void handleEntry (Entry entry, InputStream data) throws IOException;
+	}
+	
+	
+	/**
+	 * Instantiates a new stream reader, failing on the first error and
+	 * buffering up to {@link #DEFAULT_MEMORY_THRESHOLD} bytes in memory.
+	 * 
+	 * @param in
+	 *          the stream providing the archive, will be closed when closing
+	 *          this reader
+	 */
+	public CombineArchiveStreamReader (InputStream in)
+	{
+		this (in, false, DEFAULT_MEMORY_THRESHOLD);
+	}
+	
+	
+	/**
+	 * Instantiates a new stream reader.
+	 * 
+	 * @param in
+	 *          the stream providing the archive, will be closed when closing
+	 *          this reader
+	 * @param continueOnError
+	 *          ignore errors and continue (as far as possible)
+	 * @param memoryThreshold
+	 *          the number of bytes of entries preceding the manifest to buffer
+	 *          in memory, further entries are buffered in temporary files
+	 */
+	public CombineArchiveStreamReader (InputStream in, boolean continueOnError,
+		long memoryThreshold)
+	{
+		zip = in instanceof ZipInputStream ? (ZipInputStream) in
+			: new ZipInputStream (in);
+		this.continueOnError = continueOnError;
+		this.memoryThreshold = memoryThreshold;
+		entries = new LinkedHashMap<String, Entry> ();
+		metaDataFiles = new HashSet<String> ();
+		metaData = new MetaDataFile ();
+		errors = new ArrayList<String> ();
+	}
+	
+	
+	/**
+	 * Read the archive and pass its entries to <code>handler</code>. Manifest
+	 * and meta data files are evaluated by this reader and not passed to the
+	 * handler.
+	 * 
+	 * @param handler
+	 *          the handler for the entries
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws CombineArchiveException
+	 *           if the archive is invalid
+	 */
+	public void read (EntryHandler handler)
+		throws IOException,
+			CombineArchiveException
+	{
+		List<BufferedEntry> pending = new ArrayList<BufferedEntry> ();
+		Set<String> seen = new HashSet<String> ();
+		long inMemory = 0;
+		
+		try
+		{
+			ZipEntry ze;
+			while ( (ze = zip.getNextEntry ()) != null)
+			{
+				if (ze.isDirectory ())
+					continue;
+				
+				String location = CombineArchive.prepareLocation (Paths
+					.get (ze.getName ()).normalize ().toString ());
+				if (!seen.add (location))
+				{
+					error ("archive seems to be corrupt. file " + location
+						+ " appears twice.");
+					continue;
+				}
+				
+				if (location.equals (CombineArchive.MANIFEST_LOCATION))
+				{
+					parseManifest ();
+					for (BufferedEntry buffered : pending)
+					{
+						try (InputStream in = buffered.open ())
+						{
+							process (buffered.location, in, handler);
+						}
+						buffered.discard ();
+					}
+					pending.clear ();
+				}
+				else if (!manifestSeen)
+				{
+					BufferedEntry buffered = buffer (location, inMemory);
+					if (buffered.data != null)
+						inMemory += buffered.data.length;
+					pending.add (buffered);
+				}
+				else
+					process (location, zip, handler);
+			}
+		}
+		finally
+		{
+			for (BufferedEntry buffered : pending)
+				buffered.discard ();
+		}
+		
+		if (!manifestSeen)
+		{
+			error ("archive seems to be corrupt. manifest not found.");
+			return;
+		}
+		
+		for (String location : entries.keySet ())
+			if (!seen.contains (location))
+				error ("archive seems to be corrupt. file " + location
+					+ " not found.");
+		for (String location : metaDataFiles)
+			if (!seen.contains (location))
+				error ("archive seems to be corrupt. file " + location
+					+ " not found.");
+	}
+	
+	
+	/**
+	 * Process a file of the archive.
+	 * 
+	 * @param location
+	 *          the location of the file in the archive
+	 * @param in
+	 *          the stream providing the contents of the file
+	 * @param handler
+	 *          the handler for the entries
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws CombineArchiveException
+	 *           if the meta data is invalid
+	 */
+	private void process (String location, InputStream in, EntryHandler handler)
+		throws IOException,
+			CombineArchiveException
+	{
+		if (metaDataFiles.contains (location))
+		{
+			MetaDataFile.readMetaData (in, location, entries, this, metaData,
+				metaDataFiles, continueOnError, errors);
+			return;
+		}
+		
+		Entry entry = entries.get (location);
+		if (entry == null)
+		{
+			LOGGER.warn ("file ", location, " is not listed in the manifest");
+			return;
+		}
+		
+		handler.handleEntry (entry, shield (in));
+	}
+	
+	
+	/**
+	 * Shield a stream from being closed, e.g. by a handler or an XML parser.
+	 * 
+	 * @param in
+	 *          the stream to shield
+	 * @return the stream ignoring calls to close
+	 */
+	private static InputStream shield (InputStream in)
+	{
+		return new FilterInputStream (in)
+		{
+			
+			@Override
+			public void close () throws IOException
+			{
+			}
+		};
+	}
+	
+	
+	/**
+	 * Buffer the current file of the archive, as we do not know its format yet.
+	 * 
+	 * @param location
+	 *          the location of the file in the archive
+	 * @param inMemory
+	 *          the number of bytes already buffered in memory
+	 * @return the buffered file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private BufferedEntry buffer (String location, long inMemory)
+		throws IOException
+	{
+		BufferedEntry buffered = new BufferedEntry (location);
+		ByteArrayOutputStream memory = new ByteArrayOutputStream ();
+		byte[] buf = new byte[8192];
+		int n;
+		while ( (n = zip.read (buf)) >= 0)
+		{
+			if (inMemory + memory.size () + n > memoryThreshold)
+			{
+				// too large, spill it to disk
+				buffered.file = File.createTempFile ("combineArchive", "stream");
+				try (OutputStream out = Files.newOutputStream (buffered.file
+					.toPath ()))
+				{
+					memory.writeTo (out);
+					out.write (buf, 0, n);
+					while ( (n = zip.read (buf)) >= 0)
+						out.write (buf, 0, n);
+				}
+				catch (IOException e)
+				{
+					buffered.discard ();
+					throw e;
+				}
+				return buffered;
+			}
+			memory.write (buf, 0, n);
+		}
+		buffered.data = memory.toByteArray ();
+		return buffered;
+	}
+	
+	
+	/**
+	 * Parses the manifest, which is the current file of the archive.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws CombineArchiveException
+	 *           if the manifest is invalid
+	 */
+	private void parseManifest () throws IOException, CombineArchiveException
+	{
+		manifestSeen = true;
+		XMLStreamReader reader = null;
+		try
+		{
+			reader = Utils.createXmlStreamReader (shield (zip));
+			int i = 0;
+			while (reader.hasNext ())
+			{
+				if (reader.next () == XMLStreamConstants.START_ELEMENT
+					&& reader.getLocalName ().equals ("content")
+					&& Utils.omexNs.getURI ().equals (reader.getNamespaceURI ()))
+					parseManifestEntry (i++,
+						CombineArchive.getAttributeValue (reader, "location"),
+						CombineArchive.getAttributeValue (reader, "format"),
+						CombineArchive.getAttributeValue (reader, "master"));
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot read manifest of archive");
+			error ("cannot read manifest of archive. xml seems to be invalid.");
+		}
+		finally
+		{
+			try
+			{
+				if (reader != null)
+					reader.close ();
+			}
+			catch (XMLStreamException e)
+			{
+				LOGGER.warn (e, "couldn't close manifest");
+			}
+		}
+	}
+	
+	
+	/**
+	 * Evaluates a single <code>content</code> element of the manifest.
+	 * 
+	 * @param i
+	 *          the number of the entry in the manifest
+	 * @param location
+	 *          the value of the <code>location</code> attribute
+	 * @param formatValue
+	 *          the value of the <code>format</code> attribute
+	 * @param master
+	 *          the value of the <code>master</code> attribute
+	 * @throws CombineArchiveException
+	 *           if the entry is invalid
+	 */
+	private void parseManifestEntry (int i, String location, String formatValue,
+		String master) throws CombineArchiveException
+	{
+		if (formatValue == null)
+		{
+			error ("didn't find format for entry " + i);
+			return;
+		}
+		URI format = null;
+		try
+		{
+			format = FormatRegistry.getFormatUri (formatValue);
+		}
+		catch (URISyntaxException e)
+		{
+			error ("archive seems to be corrupt. format " + formatValue
+				+ " not a valid URI.");
+			return;
+		}
+		
+		if (location == null)
+		{
+			error ("manifest invalid. unknown location of entry " + i);
+			return;
+		}
+		
+		if (FormatRegistry.isOmexSpec (format)
+			|| format.equals (FormatRegistry.OMEX_MANIFEST))
+		{
+			// that's the archive itself or this manifest -> skip
+			return;
+		}
+		
+		if (!location.startsWith ("/"))
+			location = "/" + location;
+		location = CombineArchive.prepareLocation (Paths.get (location)
+			.normalize ().toString ());
+		
+		if (format.equals (FormatRegistry.OMEX_METADATA))
+			metaDataFiles.add (location);
+		else
+			entries.put (location, new Entry (location, format, master != null
+				&& Boolean.parseBoolean (master)));
+	}
+	
+	
+	/**
+	 * Report an error. Throws an exception unless we should continue on errors.
+	 * 
+	 * @param message
+	 *          the error message
+	 * @throws CombineArchiveException
+	 *           unless we should continue on errors
+	 */
+	private void error (String message) throws CombineArchiveException
+	{
+		LOGGER.error (message);
+		errors.add (message);
+		if (!continueOnError)
+			throw new CombineArchiveException (message);
+	}
+	
+	
+	/**
+	 * Gets the entries listed in the manifest.
+	 * 
+	 * @return the entries
+	 */
+	public List<Entry> getEntries ()
+	{
+		return new ArrayList<Entry> (entries.values ());
+	}
+	
+	
+	/**
+	 * Retrieves an entry stored at a specified location. The location should
+	 * start with <code>/</code> (the root of the archive).
+	 * 
+	 * @param location
+	 *          the location
+	 * @return the entry
+	 */
+	public Entry getEntry (String location)
+	{
+		return entries.get (CombineArchive.prepareLocation (location));
+	}
+	
+	
+	/**
+	 * Gets the main entries of the archive.
+	 * 
+	 * @return the main entries
+	 */
+	public List<Entry> getMainEntries ()
+	{
+		List<Entry> main = new ArrayList<Entry> ();
+		for (Entry entry : entries.values ())
+			if (entry.isMainEntry ())
+				main.add (entry);
+		return main;
+	}
+	
+	
+	/**
+	 * Gets the meta data about the meta data files.
+	 * 
+	 * @return the meta data holder
+	 */
+	public MetaDataHolder getMetaOfMeta ()
+	{
+		return metaData;
+	}
+	
+	
+	/**
+	 * Gets the errors that occurred while reading the archive.
+	 * 
+	 * @return the errors
+	 */
+	public List<String> getErrors ()
+	{
+		return errors;
+	}
+	
+	
+	/**
+	 * Checks for errors.
+	 * 
+	 * @return true, if there are errors
+	 */
+	public boolean hasErrors ()
+	{
+		return errors.size () > 0;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataHolder#getEntityPath()
+	 */
+	@Override
+	public String getEntityPath ()
+	{
+		return ".";
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		zip.close ();
+	}
+	
+	
+	/**
+	 * A file that appeared before the manifest, buffered in memory or in a
+	 * temporary file.
+	 */
+	private static class BufferedEntry
+	{
+		
+		/** The location of the file in the archive. */
+		private String	location;
+		
+		/** The contents, if buffered in memory. */
+		private byte[]	data;
+		
+		/** The temporary file, if buffered on disk. */
+		private File		file;
+		
+		
+		/**
+		 * Instantiates a new buffered entry.
+		 * 
+		 * @param location
+		 *          the location of the file in the archive
+		 */
+		public BufferedEntry (String location)
+		{
+			this.location = location;
+		}
+		
+		
+		/**
+		 * Open the buffered contents.
+		 * 
+		 * @return the stream providing the contents
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		public InputStream open () throws IOException
+		{
+			if (data != null)
+				return new ByteArrayInputStream (data);
+			return Files.newInputStream (file.toPath ());
+		}
+		
+		
+		/**
+		 * Discard the buffered contents.
+		 */
+		public void discard ()
+		{
+			data = null;
+			if (file != null && !file.delete ())
+				LOGGER.warn ("couldn't delete temporary file ", file);
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,515 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.meta.MetaDataFile;
+import de.unirostock.sems.cbarchive.meta.MetaDataHolder;
+
+
+
+/**
+ * The Class CombineArchiveStreamWriter writes a CombineArchive directly to an
+ * {@link OutputStream}.
+ * <p>
+ * In contrast to {@link CombineArchive} there is no backing file: entries are
+ * compressed and written to the stream as soon as they are added, so the
+ * receiver (e.g. a client of a chunked HTTP response) gets the first bytes
+ * immediately. The meta data and the manifest are written when closing the
+ * writer, as the manifest needs to know all entries. Thus, descriptions may
+ * be added to the archive and its entries until the writer is closed.
+ * </p>
+ * <p>
+ * As the stream cannot be rewound, entries can neither be removed nor
+ * replaced once they were added. For the same reason the archive is broken as
+ * soon as writing an entry failed: further entries will be rejected and
+ * {@link #close()} throws an exception instead of finishing the archive, so
+ * the receiver won't mistake the output for a valid archive.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+public class CombineArchiveStreamWriter
+	extends MetaDataHolder
+	implements Closeable
+{
+	
+	/** The ZIP writer. */
+	private ZipWriter									zip;
+	
+	/** The compression policy. */
+	private CompressionPolicy					compressionPolicy;
+	
+	/** The deflater compressing the entries. */
+	private ParallelDeflater					deflater;
+	
+	/** The deflater used for entries that should be stored. */
+	private ParallelDeflater					storingDeflater;
+	
+	/** The entries written so far, mapped by their location. */
+	private LinkedHashMap<String, Entry>	entries;
+	
+	/** The directories written so far. */
+	private Set<String>								directories;
+	
+	/** Has this writer been closed? */
+	private boolean										closed;
+	
+	
+	/**
+	 * Instantiates a new stream writer using a balanced
+	 * {@link CompressionPolicy}. Entries will be compressed in the calling
+	 * thread.
+	 * 
+	 * @param out
+	 *          the stream to write the archive to, will be closed when closing
+	 *          this writer
+	 */
+	public CombineArchiveStreamWriter (OutputStream out)
+	{
+		this (out, CompressionPolicy.balanced (), null);
+	}
+	
+	
+	/**
+	 * Instantiates a new stream writer.
+	 * 
+	 * @param out
+	 *          the stream to write the archive to, will be closed when closing
+	 *          this writer
+	 * @param compressionPolicy
+	 *          the policy deciding how to compress the entries
+	 * @param executor
+	 *          the executor to compress the entries, if null we'll compress in
+	 *          the calling thread
+	 */
+	public CombineArchiveStreamWriter (OutputStream out,
+		CompressionPolicy compressionPolicy, ExecutorService executor)
+	{
+		zip = new ZipWriter (out);
+		this.compressionPolicy = compressionPolicy;
+		int maxPending = 2 * Runtime.getRuntime ().availableProcessors ();
+		deflater = new ParallelDeflater (executor, compressionPolicy.getLevel (),
+			ParallelDeflater.CHUNK_SIZE, maxPending);
+		storingDeflater = new ParallelDeflater (executor,
+			Deflater.NO_COMPRESSION, ParallelDeflater.CHUNK_SIZE, maxPending);
+		entries = new LinkedHashMap<String, Entry> ();
+		directories = new HashSet<String> ();
+	}
+	
+	
+	/**
+	 * Adds an entry to the archive, reading its contents from a stream. The
+	 * data is compressed and written immediately, the stream will not be
+	 * closed.
+	 * <p>
+	 * As the CRC of the data is not known in advance, entries that should be
+	 * stored according to the {@link CompressionPolicy} are written as DEFLATE
+	 * blocks without compression. Use {@link #addEntry(File,String,URI,boolean)}
+	 * to really store files.
+	 * </p>
+	 * 
+	 * @param in
+	 *          the stream providing the contents of the entry
+	 * @param targetName
+	 *          the target name of the entry within the archive
+	 * @param format
+	 *          the format of the entry, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          is this the main entry for this archive?
+	 * @return the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred, the archive is
+	 *           broken afterwards
+	 */
+	public Entry addEntry (InputStream in, String targetName, URI format,
+		boolean mainEntry) throws IOException
+	{
+		Entry entry = prepareEntry (targetName, format, mainEntry);
+		String name = entry.getFilePath ().substring (1);
+		
+		if (compressionPolicy.getMethod (name, format) == ZipEntry.STORED)
+			zip.putDeflated (name, System.currentTimeMillis (), in, -1,
+				storingDeflater);
+		else
+			zip.putDeflated (name, System.currentTimeMillis (), in, -1, deflater);
+		
+		entries.put (entry.getFilePath (), entry);
+		return entry;
+	}
+	
+	
+	/**
+	 * Adds a file to the archive. The file is compressed and written
+	 * immediately.
+	 * 
+	 * @param file
+	 *          the file to add
+	 * @param targetName
+	 *          the target name of the entry within the archive
+	 * @param format
+	 *          the format of the entry, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          is this the main entry for this archive?
+	 * @return the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred, the archive is
+	 *           broken afterwards
+	 */
+	public Entry addEntry (File file, String targetName, URI format,
+		boolean mainEntry) throws IOException
+	{
+		Entry entry = prepareEntry (targetName, format, mainEntry);
+		String name = entry.getFilePath ().substring (1);
+		long time = file.lastModified ();
+		
+		if (compressionPolicy.getMethod (name, format) == ZipEntry.STORED)
+		{
+			// stored entries need their CRC in advance
+			long size = file.length ();
+			CRC32 crc = new CRC32 ();
+			try (InputStream in = new CheckedInputStream (
+				Files.newInputStream (file.toPath ()), crc))
+			{
+				byte[] buf = new byte[65536];
+				while (in.read (buf) >= 0)
+					;
+			}
+			try (InputStream in = Files.newInputStream (file.toPath ()))
+			{
+				zip.putRaw (name, time, ZipEntry.STORED, crc.getValue (), size, size,
+					in);
+			}
+		}
+		else
+			try (InputStream in = Files.newInputStream (file.toPath ()))
+			{
+				zip.putDeflated (name, time, in, file.length (), deflater);
+			}
+		
+		entries.put (entry.getFilePath (), entry);
+		return entry;
+	}
+	
+	
+	/**
+	 * Checks the target name of a new entry and writes the directories it
+	 * lives in.
+	 * 
+	 * @param targetName
+	 *          the target name of the entry within the archive
+	 * @param format
+	 *          the format of the entry
+	 * @param mainEntry
+	 *          is this the main entry for this archive?
+	 * @return the new entry, not yet registered
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private Entry prepareEntry (String targetName, URI format, boolean mainEntry)
+		throws IOException
+	{
+		if (closed)
+			throw new IOException ("archive stream is already closed");
+		
+		String location = CombineArchive.prepareLocation (Paths
+			.get (targetName).normalize ().toString ());
+		CombineArchive.checkTargetName (location);
+		if (location.equals ("/") || location.startsWith ("/../"))
+			throw new IllegalArgumentException ("invalid target name: "
+				+ targetName);
+		if (entries.containsKey (location))
+			throw new IllegalArgumentException ("there is already an entry named "
+				+ location);
+		
+		// write the parent directories
+		long time = System.currentTimeMillis ();
+		int slash = location.indexOf ('/', 1);
+		while (slash > 0)
+		{
+			String dir = location.substring (1, slash + 1);
+			if (directories.add (dir))
+				zip.putDirectory (dir, time);
+			slash = location.indexOf ('/', slash + 1);
+		}
+		
+		return new Entry (location, format, mainEntry);
+	}
+	
+	
+	/**
+	 * Gets the entries written so far.
+	 * 
+	 * @return the entries
+	 */
+	public List<Entry> getEntries ()
+	{
+		return new ArrayList<Entry> (entries.values ());
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataHolder#getEntityPath()
+	 */
+	@Override
+	public String getEntityPath ()
+	{
+		return ".";
+	}
+	
+	
+	/**
+	 * Flush the data written so far to the underlying stream.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void flush () throws IOException
+	{
+		zip.flush ();
+	}
+	
+	
+	/**
+	 * Finish the archive. Writes the meta data and the manifest and closes the
+	 * underlying stream. If writing any entry, the meta data, or the manifest
+	 * failed, the stream is closed without finishing the archive.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred, or that the archive
+	 *           is incomplete
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		try
+		{
+			long time = System.currentTimeMillis ();
+			
+			// collect the meta data
+			List<MetaDataHolder> holders = new ArrayList<MetaDataHolder> ();
+			if (getDescriptions ().size () > 0)
+				holders.add (this);
+			for (Entry entry : entries.values ())
+				if (entry.getDescriptions ().size () > 0)
+					holders.add (entry);
+			
+			if (holders.size () > 0)
+			{
+				ByteArrayOutputStream meta = new ByteArrayOutputStream ();
+				MetaDataFile.writeMetaData (meta, holders, false);
+				zip.putDeflated (CombineArchive.METADATA_LOCATION.substring (1), time,
+					new ByteArrayInputStream (meta.toByteArray ()), meta.size (),
+					deflater);
+			}
+			
+			// the manifest
+			Document doc = new Document ();
+			Element root = new Element ("omexManifest", Utils.omexNs);
+			doc.addContent (root);
+			root.addContent (createManifestEntry (".", Utils.getOmexSpecUri (),
+				false));
+			root.addContent (createManifestEntry ("."
+				+ CombineArchive.MANIFEST_LOCATION, Utils.getOmexManifestUri (), false));
+			for (Entry entry : entries.values ())
+				root.addContent (createManifestEntry ("." + entry.getFilePath (),
+					entry.getFormat (), entry.isMainEntry ()));
+			if (holders.size () > 0)
+				root.addContent (createManifestEntry ("."
+					+ CombineArchive.METADATA_LOCATION, Utils.getOmexMetaDataUri (),
+					false));
+			
+			ByteArrayOutputStream manifest = new ByteArrayOutputStream ();
+			Utils.writeXmlDocument (doc, manifest);
+			zip.putDeflated (CombineArchive.MANIFEST_LOCATION.substring (1), time,
+				new ByteArrayInputStream (manifest.toByteArray ()), manifest.size (),
+				deflater);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.error (e, "cannot finish archive stream");
+			try
+			{
+				zip.abort ();
+			}
+			catch (IOException e2)
+			{
+				LOGGER.warn (e2, "cannot close archive stream");
+			}
+			throw e;
+		}
+		
+		zip.close ();
+	}
+	
+	
+	/**
+	 * Creates an entry for the manifest.
+	 * 
+	 * @param location
+	 *          the location of the entry
+	 * @param format
+	 *          the format of the entry
+	 * @param mainEntry
+	 *          is this a main entry?
+	 * @return the XML node
+	 */
+	private static Element createManifestEntry (String location, URI format,
+		boolean mainEntry)
+	{
+		Element element = new Element ("content", Utils.omexNs);
+		element.setAttribute ("location", location);
+		element.setAttribute ("format", format.toString ());
+		if (mainEntry)
+			element.setAttribute ("master", "" + mainEntry);
+		return element;
+	}
+	
+	
+	/**
+	 * An entry of a streamed archive, written by a
+	 * {@link CombineArchiveStreamWriter} or read by a
+	 * {@link CombineArchiveStreamReader}. Descriptions may be added until the
+	 * writer is closed.
+	 * 
+	 * @author martin scharm
+	 */
+	public static class Entry
+		extends MetaDataHolder
+	{
+		
+		/** The location in the archive, starting with <code>/</code>. */
+		private String	filePath;
+		
+		/** The format of the entry. */
+		private URI			format;
+		
+		/** Is this a main entry? */
+		private boolean	mainEntry;
+		
+		
+		/**
+		 * Instantiates a new entry.
+		 * 
+		 * @param filePath
+		 *          the location in the archive
+		 * @param format
+		 *          the format of the entry
+		 * @param mainEntry
+		 *          is this a main entry?
+		 */
+		Entry (String filePath, URI format, boolean mainEntry)
+		{
+			this.filePath = filePath;
+			this.format = format;
+			this.mainEntry = mainEntry;
+		}
+		
+		
+		/**
+		 * Gets the location of this entry in the archive.
+		 * 
+		 * @return the file path, starting with <code>/</code>
+		 */
+		public String getFilePath ()
+		{
+			return filePath;
+		}
+		
+		
+		/**
+		 * Gets the format of this entry.
+		 * 
+		 * @return the format
+		 */
+		public URI getFormat ()
+		{
+			return format;
+		}
+		
+		
+		/**
+		 * Checks if this is a main entry.
+		 * 
+		 * @return true, if this is a main entry
+		 */
+		public boolean isMainEntry ()
+		{
+			return mainEntry;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.unirostock.sems.cbarchive.meta.MetaDataHolder#getEntityPath()
+		 */
+		@Override
+		public String getEntityPath ()
+		{
+			return filePath;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.meta.MetaDataObject;
+
+
+
+/**
+ * The Class CombineArchiveWriter creates a new CombineArchive in a single
+ * pass.
+ * <p>
+ * {@link CombineArchive} works on a zip file system, which keeps modified
+ * entries in temporary storage and rewrites the whole archive when it is
+ * closed. That's convenient for editing archives, but unnecessarily expensive
+ * if an archive is just written once. This writer compresses the entries to
+ * the target file as soon as they are added and appends the meta data and the
+ * manifest when it is closed. The result can be read using
+ * {@link CombineArchive}.
+ * </p>
+ * <p>
+ * All methods return the writer itself, so calls can be chained:
+ * </p>
+ * 
+ * <pre>
+ * try (CombineArchiveWriter writer = new CombineArchiveWriter (target))
+ * {
+ * 	writer.addEntry (model, &quot;/model.xml&quot;, sbml, true, description)
+ * 		.addEntry (data, &quot;/data.csv&quot;, csv, false)
+ * 		.addDescription (archiveDescription);
+ * }
+ * </pre>
+ * <p>
+ * The archive is written to a temporary file next to the target, which
+ * replaces the target once the writer was closed successfully.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+public class CombineArchiveWriter
+	implements Closeable
+{
+	
+	/** The final location of the archive. */
+	private File												target;
+	
+	/** The file we are writing to. */
+	private File												partFile;
+	
+	/** The writer producing the archive. */
+	private CombineArchiveStreamWriter	writer;
+	
+	/** Did writing any entry fail? */
+	private boolean											failed;
+	
+	/** Has this writer been closed? */
+	private boolean											closed;
+	
+	
+	/**
+	 * Instantiates a new writer using a balanced {@link CompressionPolicy}.
+	 * Entries will be compressed in the calling thread.
+	 * 
+	 * @param target
+	 *          the file to write the archive to, will be overwritten
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public CombineArchiveWriter (File target) throws IOException
+	{
+		this (target, CompressionPolicy.balanced (), null);
+	}
+	
+	
+	/**
+	 * Instantiates a new writer.
+	 * 
+	 * @param target
+	 *          the file to write the archive to, will be overwritten
+	 * @param compressionPolicy
+	 *          the policy deciding how to compress the entries
+	 * @param executor
+	 *          the executor to compress the entries, if null we'll compress in
+	 *          the calling thread
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public CombineArchiveWriter (File target,
+		CompressionPolicy compressionPolicy, ExecutorService executor)
+		throws IOException
+	{
+		this.target = target.getAbsoluteFile ();
+		partFile = File.createTempFile (".combineArchive", ".part",
+			this.target.getParentFile ());
+		writer = new CombineArchiveStreamWriter (
+			new FileOutputStream (partFile), compressionPolicy, executor);
+	}
+	
+	
+	/**
+	 * Adds a file to the archive.
+	 * 
+	 * @param file
+	 *          the file to add
+	 * @param targetName
+	 *          the target name of the entry within the archive
+	 * @param format
+	 *          the format of the entry, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          is this a main entry of the archive?
+	 * @param descriptions
+	 *          descriptions of the entry
+	 * @return this writer
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public CombineArchiveWriter addEntry (File file, String targetName,
+		URI format, boolean mainEntry, MetaDataObject... descriptions)
+		throws IOException
+	{
+		try
+		{
+			describe (writer.addEntry (file, targetName, format, mainEntry),
+				descriptions);
+		}
+		catch (IOException e)
+		{
+			failed = true;
+			LOGGER.error (e, "cannot add ", file, " to archive ", target);
+			throw e;
+		}
+		return this;
+	}
+	
+	
+	/**
+	 * Adds an entry to the archive, reading its contents from a stream. The
+	 * stream will not be closed.
+	 * 
+	 * @param in
+	 *          the stream providing the contents of the entry
+	 * @param targetName
+	 *          the target name of the entry within the archive
+	 * @param format
+	 *          the format of the entry, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @param mainEntry
+	 *          is this a main entry of the archive?
+	 * @param descriptions
+	 *          descriptions of the entry
+	 * @return this writer
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @see CombineArchiveStreamWriter#addEntry(InputStream,String,URI,boolean)
+	 */
+	public CombineArchiveWriter addEntry (InputStream in, String targetName,
+		URI format, boolean mainEntry, MetaDataObject... descriptions)
+		throws IOException
+	{
+		try
+		{
+			describe (writer.addEntry (in, targetName, format, mainEntry),
+				descriptions);
+		}
+		catch (IOException e)
+		{
+			failed = true;
+			LOGGER.error (e, "cannot add ", targetName, " to archive ", target);
+			throw e;
+		}
+		return this;
+	}
+	
+	
+	/**
+	 * Adds descriptions to an entry.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @param descriptions
+	 *          the descriptions
+	 */
+	private static void describe (CombineArchiveStreamWriter.Entry entry,
+		MetaDataObject[] descriptions)
+	{
+		for (MetaDataObject description : descriptions)
+			entry.addDescription (description);
+	}
+	
+	
+	/**
+	 * Adds a description of the archive itself.
+	 * 
+	 * @param description
+	 *          the description
+	 * @return this writer
+	 */
+	public CombineArchiveWriter addDescription (MetaDataObject description)
+	{
+		writer.addDescription (description);
+		return this;
+	}
+	
+	
+	/**
+	 * Finish the archive. Writes meta data and manifest and moves the archive to
+	 * its target location. If adding any of the entries failed the archive is
+	 * discarded.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		try
+		{
+			writer.close ();
+			if (failed)
+				throw new IOException ("archive " + target
+					+ " is incomplete, as some entries could not be written");
+			Files.move (partFile.toPath (), target.toPath (),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists (partFile.toPath ());
+		}
+	}
+}
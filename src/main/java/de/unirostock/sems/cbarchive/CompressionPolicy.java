@@ -0,0 +1,252 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+
+
+/**
+ * The Class CompressionPolicy decides how entries are compressed when
+ * {@link CombineArchive#writeTo(java.io.File) writing an archive}.
+ * <p>
+ * Entries of formats that are already compressed (e.g. PNG images, HDF5 files,
+ * or nested archives) are {@link ZipEntry#STORED stored} as they are, because
+ * deflating them again costs a lot of time when writing and reading but saves
+ * hardly any space. Those formats are identified by their format URI or the
+ * extension of the entry's file name. All other entries are
+ * {@link ZipEntry#DEFLATED deflated} using the policy's compression level.
+ * </p>
+ * <p>
+ * There are three predefined profiles: {@link #fast()}, {@link #balanced()},
+ * and {@link #max()}. All of them store common incompressible formats, see
+ * {@link #storeIncompressible()}.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+public class CompressionPolicy
+{
+	
+	/** The mime types of formats that are usually compressed already. */
+	private static final String[]	INCOMPRESSIBLE_MIME_TYPES	= new String[] {
+		"image/png", "image/jpeg", "image/gif", "image/webp", "application/zip",
+		"application/gzip", "application/x-gzip", "application/x-bzip2",
+		"application/x-xz", "application/x-7z-compressed", "application/x-hdf5",
+		"application/x-hdf", "video/mp4", "audio/mpeg"								};
+	
+	/** The file extensions of formats that are usually compressed already. */
+	private static final String[]	INCOMPRESSIBLE_EXTENSIONS	= new String[] {
+		"png", "jpg", "jpeg", "gif", "webp", "zip", "omex", "sedx", "gz", "tgz",
+		"bz2", "xz", "7z", "h5", "hdf5", "hdf", "nc", "mp4", "mp3"	};
+	
+	/** The compression level of deflated entries. */
+	private int										level;
+	
+	/** The formats that will be stored. */
+	private Set<URI>							storedFormats;
+	
+	/** The extensions (lower case) of files that will be stored. */
+	private Set<String>						storedExtensions;
+	
+	
+	/**
+	 * Instantiates a new compression policy that deflates all entries using the
+	 * given compression level.
+	 * 
+	 * @param level
+	 *          the compression level, see {@link Deflater}
+	 */
+	public CompressionPolicy (int level)
+	{
+		setLevel (level);
+		storedFormats = new HashSet<URI> ();
+		storedExtensions = new HashSet<String> ();
+	}
+	
+	
+	/**
+	 * Creates a policy favouring speed: incompressible formats are stored and
+	 * all other entries are deflated using {@link Deflater#BEST_SPEED}.
+	 * 
+	 * @return the policy
+	 */
+	public static CompressionPolicy fast ()
+	{
+		return new CompressionPolicy (Deflater.BEST_SPEED).storeIncompressible ();
+	}
+	
+	
+	/**
+	 * Creates a balanced policy: incompressible formats are stored and all other
+	 * entries are deflated using {@link Deflater#DEFAULT_COMPRESSION}. This is
+	 * the default policy of an archive.
+	 * 
+	 * @return the policy
+	 */
+	public static CompressionPolicy balanced ()
+	{
+		return new CompressionPolicy (Deflater.DEFAULT_COMPRESSION)
+			.storeIncompressible ();
+	}
+	
+	
+	/**
+	 * Creates a policy favouring small archives: incompressible formats are
+	 * stored and all other entries are deflated using
+	 * {@link Deflater#BEST_COMPRESSION}.
+	 * 
+	 * @return the policy
+	 */
+	public static CompressionPolicy max ()
+	{
+		return new CompressionPolicy (Deflater.BEST_COMPRESSION)
+			.storeIncompressible ();
+	}
+	
+	
+	/**
+	 * Gets the compression level of deflated entries.
+	 * 
+	 * @return the level, see {@link Deflater}
+	 */
+	public int getLevel ()
+	{
+		return level;
+	}
+	
+	
+	/**
+	 * Sets the compression level of deflated entries.
+	 * 
+	 * @param level
+	 *          the level, see {@link Deflater}
+	 */
+	public void setLevel (int level)
+	{
+		if ( (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			&& level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException ("invalid compression level: "
+				+ level);
+		this.level = level;
+	}
+	
+	
+	/**
+	 * Store entries of a certain format without compressing them.
+	 * 
+	 * @param format
+	 *          the format, see <a href=
+	 *          "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+	 * @return this policy
+	 */
+	public CompressionPolicy storeFormat (URI format)
+	{
+		storedFormats.add (FormatRegistry.intern (format));
+		return this;
+	}
+	
+	
+	/**
+	 * Store files with a certain extension without compressing them.
+	 * 
+	 * @param extension
+	 *          the extension without leading dot, e.g. <code>png</code>
+	 * @return this policy
+	 */
+	public CompressionPolicy storeExtension (String extension)
+	{
+		storedExtensions.add (extension.toLowerCase (Locale.ENGLISH));
+		return this;
+	}
+	
+	
+	/**
+	 * Store common formats that are compressed already, such as images,
+	 * compressed or nested archives, and HDF5 files.
+	 * 
+	 * @return this policy
+	 */
+	public CompressionPolicy storeIncompressible ()
+	{
+		for (String mime : INCOMPRESSIBLE_MIME_TYPES)
+			storeFormat (URI.create (FormatRegistry.PURL_PREFIX + mime));
+		storeFormat (FormatRegistry.OMEX_SPEC);
+		for (String extension : INCOMPRESSIBLE_EXTENSIONS)
+			storeExtension (extension);
+		return this;
+	}
+	
+	
+	/**
+	 * Gets the compression method of an archive entry.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @return the method, either {@link ZipEntry#STORED} or
+	 *         {@link ZipEntry#DEFLATED}
+	 */
+	public int getMethod (ArchiveEntry entry)
+	{
+		return getMethod (entry.getFileName (), entry.getFormat ());
+	}
+	
+	
+	/**
+	 * Gets the compression method of a file.
+	 * 
+	 * @param fileName
+	 *          the name of the file
+	 * @param format
+	 *          the format of the file, may be null if unknown
+	 * @return the method, either {@link ZipEntry#STORED} or
+	 *         {@link ZipEntry#DEFLATED}
+	 */
+	public int getMethod (String fileName, URI format)
+	{
+		if (format != null && storedFormats.contains (format))
+			return ZipEntry.STORED;
+		
+		String extension = Utils.getExtension (fileName);
+		if (extension != null
+			&& storedExtensions.contains (extension.toLowerCase (Locale.ENGLISH)))
+			return ZipEntry.STORED;
+		
+		return ZipEntry.DEFLATED;
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+
+/**
+ * The Class EntryChannel provides read-only random access to an entry of an
+ * archive.
+ * <p>
+ * The channel of the ZIP file system does not support changing the position
+ * of compressed entries. This channel reads the entry sequentially and skips
+ * forward if the position is moved ahead. Moving the position backwards
+ * restarts reading at the beginning of the entry.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+class EntryChannel
+	implements SeekableByteChannel
+{
+	
+	/** The path to the entry in the archive. */
+	private Path				path;
+	
+	/** The uncompressed size of the entry. */
+	private long				size;
+	
+	/** The stream reading the entry, null if not yet opened. */
+	private InputStream	in;
+	
+	/** The position of <code>in</code> in the entry. */
+	private long				streamPosition;
+	
+	/** The position of this channel. */
+	private long				position;
+	
+	/** Is this channel open? */
+	private boolean			open;
+	
+	/** The buffer to read into buffers without accessible array. */
+	private byte[]			buf;
+	
+	
+	/**
+	 * Instantiates a new entry channel.
+	 * 
+	 * @param path
+	 *          the path to the entry in the archive
+	 * @param size
+	 *          the uncompressed size of the entry
+	 */
+	public EntryChannel (Path path, long size)
+	{
+		this.path = path;
+		this.size = size;
+		this.open = true;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public synchronized int read (ByteBuffer dst) throws IOException
+	{
+		ensureOpen ();
+		if (position >= size)
+			return -1;
+		if (!dst.hasRemaining ())
+			return 0;
+		
+		seek ();
+		
+		int n;
+		if (dst.hasArray ())
+		{
+			n = in.read (dst.array (), dst.arrayOffset () + dst.position (),
+				dst.remaining ());
+			if (n > 0)
+				dst.position (dst.position () + n);
+		}
+		else
+		{
+			if (buf == null)
+				buf = new byte[8192];
+			n = in.read (buf, 0, Math.min (buf.length, dst.remaining ()));
+			if (n > 0)
+				dst.put (buf, 0, n);
+		}
+		
+		if (n < 0)
+			return -1;
+		position += n;
+		streamPosition += n;
+		return n;
+	}
+	
+	
+	/**
+	 * Moves the stream to the position of this channel.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void seek () throws IOException
+	{
+		if (in == null || streamPosition > position)
+		{
+			if (in != null)
+				in.close ();
+			in = Files.newInputStream (path);
+			streamPosition = 0;
+		}
+		
+		while (streamPosition < position)
+		{
+			long skipped = in.skip (position - streamPosition);
+			if (skipped <= 0)
+			{
+				// skip may refuse to move, make sure we're not at the end
+				if (in.read () < 0)
+					throw new IOException ("unexpected end of entry " + path);
+				skipped = 1;
+			}
+			streamPosition += skipped;
+		}
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write (ByteBuffer src) throws IOException
+	{
+		throw new NonWritableChannelException ();
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#position()
+	 */
+	@Override
+	public synchronized long position () throws IOException
+	{
+		ensureOpen ();
+		return position;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#position(long)
+	 */
+	@Override
+	public synchronized SeekableByteChannel position (long newPosition)
+		throws IOException
+	{
+		ensureOpen ();
+		if (newPosition < 0)
+			throw new IllegalArgumentException ("negative position: " + newPosition);
+		position = newPosition;
+		return this;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#size()
+	 */
+	@Override
+	public synchronized long size () throws IOException
+	{
+		ensureOpen ();
+		return size;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.SeekableByteChannel#truncate(long)
+	 */
+	@Override
+	public SeekableByteChannel truncate (long size) throws IOException
+	{
+		throw new NonWritableChannelException ();
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public synchronized boolean isOpen ()
+	{
+		return open;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public synchronized void close () throws IOException
+	{
+		open = false;
+		if (in != null)
+		{
+			in.close ();
+			in = null;
+		}
+	}
+	
+	
+	/**
+	 * Makes sure this channel is still open.
+	 * 
+	 * @throws ClosedChannelException
+	 *           if the channel was closed
+	 */
+	private void ensureOpen () throws ClosedChannelException
+	{
+		if (!open)
+			throw new ClosedChannelException ();
+	}
+}
@@ -0,0 +1,1101 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import de.binfalse.bflog.LOGGER;
+
+
+
+/**
+ * The Class EntryReader provides positional reads of a compressed entry.
+ * <p>
+ * A deflated stream can only be decompressed sequentially, and the state of
+ * an {@link Inflater} cannot be saved. Thus, this reader keeps a few streams
+ * open at different positions of the entry (the cursors) and continues
+ * decompressing from the closest cursor before the requested range.
+ * Decompressed data is read in blocks of {@link #BLOCK_SIZE} bytes, and the
+ * most recently used blocks are cached, so that repeated reads of the same
+ * range do not need to decompress anything.
+ * </p>
+ * <p>
+ * If the entry is read from the raw data in the ZIP file we can do better.
+ * Streams written by the {@link ParallelDeflater} are sync-flushed every
+ * {@link ParallelDeflater#CHUNK_SIZE} bytes. At these boundaries a fresh
+ * inflater can continue decompressing, given the last 32 KB of data as its
+ * dictionary. Whenever a cursor passes such a boundary it leaves a restart
+ * point behind, so reading backwards only needs to go back to the closest
+ * boundary instead of the beginning of the entry. Restart points are thinned
+ * out to stay spread over the whole entry.
+ * </p>
+ * <p>
+ * Cached blocks, dictionaries and open cursors of all entries of an archive
+ * are limited by a single {@link Cache}.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+class EntryReader
+	implements Closeable
+{
+	
+	/** The size of the blocks we read and cache. */
+	public static final int				BLOCK_SIZE					= 65536;
+	
+	/** The size of the DEFLATE window. */
+	private static final int			DICTIONARY_SIZE			= 32768;
+	
+	/** The distance between possible restart points. */
+	private static final long			CHUNK_SIZE					= ParallelDeflater.CHUNK_SIZE;
+	
+	/** The maximum number of restart points per entry. */
+	private static final int			MAX_RESTART_POINTS	= 16;
+	
+	/** How far to search back for a sync-flush marker. */
+	private static final int			MARKER_SEARCH				= 256;
+	
+	/** The number of bytes to decompress when probing a restart point. */
+	private static final int			PROBE_SIZE					= 1024;
+	
+	/** The cache shared by all entries of the archive. */
+	private Cache									cache;
+	
+	/** The path to the entry in the archive. */
+	private Path									path;
+	
+	/** The index of the ZIP file, may be null. */
+	private ZipIndex							index;
+	
+	/** The deflated entry in the ZIP file, may be null. */
+	private ZipIndex.RawEntry			raw;
+	
+	/** The uncompressed size of the entry. */
+	private long									size;
+	
+	/** The CRC-32 of the entry. */
+	private long									crc;
+	
+	/** The restart points, positions in the entry to positions in raw data. */
+	private TreeMap<Long, Long>		restartPoints;
+	
+	/** The distance between the restart points we keep. */
+	private long									restartDistance;
+	
+	/** Was this reader closed? */
+	private volatile boolean			closed;
+	
+	
+	/**
+	 * Instantiates a new entry reader.
+	 * <p>
+	 * If <code>raw</code> is given, the entry is decompressed from the raw data
+	 * in the ZIP file. Otherwise it is read from <code>path</code>.
+	 * </p>
+	 * 
+	 * @param cache
+	 *          the cache shared by all entries of the archive
+	 * @param path
+	 *          the path to the entry in the archive
+	 * @param size
+	 *          the uncompressed size of the entry
+	 * @param crc
+	 *          the CRC-32 of the entry
+	 * @param index
+	 *          the index of the ZIP file, may be null
+	 * @param raw
+	 *          the deflated entry in the ZIP file, may be null
+	 */
+	public EntryReader (Cache cache, Path path, long size, long crc,
+		ZipIndex index, ZipIndex.RawEntry raw)
+	{
+		this.cache = cache;
+		this.path = path;
+		this.size = size;
+		this.crc = crc;
+		this.index = raw == null ? null : index;
+		this.raw = raw;
+		this.restartPoints = new TreeMap<Long, Long> ();
+		this.restartDistance = CHUNK_SIZE;
+	}
+	
+	
+	/**
+	 * Checks whether this reader still reads the current contents of the entry.
+	 * 
+	 * @param size
+	 *          the current size of the entry
+	 * @param crc
+	 *          the current CRC-32 of the entry
+	 * @param raw
+	 *          the deflated entry in the ZIP file, may be null
+	 * @return true, if this reader may be used
+	 */
+	public boolean matches (long size, long crc, ZipIndex.RawEntry raw)
+	{
+		return this.size == size && this.crc == crc && this.raw == raw;
+	}
+	
+	
+	/**
+	 * Reads a range of the entry into <code>dst</code>. Reads until
+	 * <code>dst</code> is full or the end of the entry is reached.
+	 * 
+	 * @param offset
+	 *          the position in the entry to start reading
+	 * @param dst
+	 *          the buffer to read into
+	 * @return the number of bytes read, or -1 if <code>offset</code> is at or
+	 *         beyond the end of the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public synchronized int read (long offset, ByteBuffer dst) throws IOException
+	{
+		if (closed)
+			throw new IOException ("reader is closed");
+		if (offset >= size)
+			return -1;
+		
+		int read = 0;
+		while (dst.hasRemaining () && offset < size)
+		{
+			long block = offset / BLOCK_SIZE;
+			byte[] data = getBlock (block);
+			int from = (int) (offset - block * BLOCK_SIZE);
+			int n = Math.min (dst.remaining (), data.length - from);
+			dst.put (data, from, n);
+			offset += n;
+			read += n;
+		}
+		return read;
+	}
+	
+	
+	/**
+	 * Gets a block of decompressed data, either from the cache or by
+	 * continuing decompression at the closest cursor or restart point. A cursor
+	 * that fails is dropped, so the next read starts over with a fresh one.
+	 * 
+	 * @param block
+	 *          the number of the block
+	 * @return the data of the block
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private byte[] getBlock (long block) throws IOException
+	{
+		byte[] data = cache.get (this, Cache.BLOCK, block);
+		if (data != null)
+			return data;
+		
+		long start = block * BLOCK_SIZE;
+		Cursor cursor = openCursor (start);
+		data = new byte[(int) Math.min (BLOCK_SIZE, size - start)];
+		try
+		{
+			cursor.skipTo (start);
+			cursor.readFully (data);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			cursor.closeQuietly ();
+			throw e;
+		}
+		cache.release (cursor);
+		cache.put (this, Cache.BLOCK, block, data);
+		return data;
+	}
+	
+	
+	/**
+	 * Gets a cursor to read from <code>start</code>. That is either the closest
+	 * open cursor before <code>start</code>, or a new cursor at the closest
+	 * restart point if that is even closer. The cursor is taken from the cache
+	 * and needs to be {@link Cache#release(Cursor) released} after use.
+	 * 
+	 * @param start
+	 *          the position to read from
+	 * @return the cursor
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private Cursor openCursor (long start) throws IOException
+	{
+		Cursor cursor = cache.take (this, start);
+		
+		Map.Entry<Long, Long> point = restartPoints.floorEntry (start);
+		while (point != null && (cursor == null || cursor.position < point.getKey ()))
+		{
+			byte[] dictionary = cache.get (this, Cache.DICTIONARY, point.getKey ());
+			if (dictionary != null)
+			{
+				if (cursor != null)
+					cache.release (cursor);
+				return new RawCursor (point.getKey (), point.getValue (), dictionary);
+			}
+			// the dictionary was evicted, the restart point is worthless
+			restartPoints.remove (point.getKey ());
+			point = restartPoints.floorEntry (start);
+		}
+		
+		if (cursor != null)
+			return cursor;
+		if (raw != null)
+			return new RawCursor (0, 0, null);
+		return new StreamCursor (Files.newInputStream (path));
+	}
+	
+	
+	/**
+	 * Adds a verified restart point. If there are too many restart points we
+	 * double the distance between them and drop those in between.
+	 * 
+	 * @param position
+	 *          the position in the entry
+	 * @param input
+	 *          the corresponding position in the raw data
+	 * @param dictionary
+	 *          the last 32 KB before <code>position</code>
+	 */
+	private void addRestartPoint (long position, long input, byte[] dictionary)
+	{
+		if (closed || position % restartDistance != 0)
+			return;
+		restartPoints.put (position, input);
+		cache.put (this, Cache.DICTIONARY, position, dictionary);
+		
+		while (restartPoints.size () > MAX_RESTART_POINTS)
+		{
+			restartDistance *= 2;
+			Iterator<Long> it = restartPoints.keySet ().iterator ();
+			while (it.hasNext ())
+			{
+				long p = it.next ();
+				if (p % restartDistance != 0)
+				{
+					it.remove ();
+					cache.remove (this, Cache.DICTIONARY, p);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Decompresses a few bytes starting at a possible restart point, to check
+	 * whether a fresh inflater is able to continue at that point.
+	 * 
+	 * @param input
+	 *          the position in the raw data
+	 * @param dictionary
+	 *          the data preceding the restart point
+	 * @return the first bytes after the restart point, or null if this is no
+	 *         valid restart point
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private byte[] probe (long input, byte[] dictionary) throws IOException
+	{
+		ByteBuffer compressed = ByteBuffer.allocate (4 * PROBE_SIZE);
+		int n = index.read (raw, input, compressed);
+		if (n <= 0)
+			return null;
+		
+		Inflater inflater = new Inflater (true);
+		try
+		{
+			inflater.setDictionary (dictionary);
+			inflater.setInput (compressed.array (), 0, n);
+			byte[] expected = new byte[PROBE_SIZE];
+			int inflated = inflater.inflate (expected);
+			if (inflated <= 0)
+				return null;
+			byte[] result = new byte[inflated];
+			System.arraycopy (expected, 0, result, 0, inflated);
+			return result;
+		}
+		catch (DataFormatException | IllegalArgumentException e)
+		{
+			return null;
+		}
+		finally
+		{
+			inflater.end ();
+		}
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close () throws IOException
+	{
+		closed = true;
+		restartPoints.clear ();
+		cache.remove (this);
+	}
+	
+	/**
+	 * The Class Cache limits the memory and the number of open streams used
+	 * by the readers of an archive. It holds the cached blocks, the
+	 * dictionaries of the restart points, and the cursors that are currently
+	 * not in use. The least recently used are dropped first.
+	 */
+	static class Cache
+		implements Closeable
+	{
+		
+		/** The default number of bytes to cache. */
+		public static final long									DEFAULT_MAX_BYTES		= 4L * 1024 * 1024;
+		
+		/** The default number of open cursors. */
+		public static final int										DEFAULT_MAX_CURSORS	= 8;
+		
+		/** The kind of data: a block of decompressed data. */
+		static final int													BLOCK								= 0;
+		
+		/** The kind of data: the dictionary of a restart point. */
+		static final int													DICTIONARY					= 1;
+		
+		/** The maximum number of bytes to cache. */
+		private long															maxBytes;
+		
+		/** The maximum number of open cursors. */
+		private int																maxCursors;
+		
+		/** The number of bytes currently cached. */
+		private long															bytes;
+		
+		/** The cached data, in order of access. */
+		private LinkedHashMap<Key, byte[]>				data;
+		
+		/** The cursors not in use, the most recently used comes last. */
+		private LinkedList<Cursor>								cursors;
+		
+		/** Was this cache closed? */
+		private boolean														closed;
+		
+		
+		/**
+		 * Instantiates a new cache using the default limits.
+		 */
+		public Cache ()
+		{
+			this (DEFAULT_MAX_BYTES, DEFAULT_MAX_CURSORS);
+		}
+		
+		
+		/**
+		 * Instantiates a new cache.
+		 * 
+		 * @param maxBytes
+		 *          the maximum number of bytes to cache
+		 * @param maxCursors
+		 *          the maximum number of open cursors
+		 */
+		public Cache (long maxBytes, int maxCursors)
+		{
+			this.maxBytes = maxBytes;
+			this.maxCursors = maxCursors;
+			this.data = new LinkedHashMap<Key, byte[]> (16, .75f, true);
+			this.cursors = new LinkedList<Cursor> ();
+		}
+		
+		
+		/**
+		 * Gets some cached data.
+		 * 
+		 * @param owner
+		 *          the reader owning the data
+		 * @param kind
+		 *          the kind of data
+		 * @param number
+		 *          the number of the block or the position of the restart point
+		 * @return the data, or null if it is not cached
+		 */
+		synchronized byte[] get (EntryReader owner, int kind, long number)
+		{
+			return data.get (new Key (owner, kind, number));
+		}
+		
+		
+		/**
+		 * Caches some data, dropping the least recently used data if we exceed
+		 * the limit.
+		 * 
+		 * @param owner
+		 *          the reader owning the data
+		 * @param kind
+		 *          the kind of data
+		 * @param number
+		 *          the number of the block or the position of the restart point
+		 * @param value
+		 *          the data
+		 */
+		synchronized void put (EntryReader owner, int kind, long number,
+			byte[] value)
+		{
+			if (closed)
+				return;
+			byte[] old = data.put (new Key (owner, kind, number), value);
+			if (old != null)
+				bytes -= old.length;
+			bytes += value.length;
+			
+			Iterator<byte[]> it = data.values ().iterator ();
+			while (bytes > maxBytes && it.hasNext ())
+			{
+				bytes -= it.next ().length;
+				it.remove ();
+			}
+		}
+		
+		
+		/**
+		 * Drops some cached data.
+		 * 
+		 * @param owner
+		 *          the reader owning the data
+		 * @param kind
+		 *          the kind of data
+		 * @param number
+		 *          the number of the block or the position of the restart point
+		 */
+		synchronized void remove (EntryReader owner, int kind, long number)
+		{
+			byte[] old = data.remove (new Key (owner, kind, number));
+			if (old != null)
+				bytes -= old.length;
+		}
+		
+		
+		/**
+		 * Takes the cursor of a reader that is closest before a position. The
+		 * cursor is removed from the cache until it is
+		 * {@link #release(Cursor) released}.
+		 * 
+		 * @param owner
+		 *          the reader
+		 * @param position
+		 *          the position to read from
+		 * @return the cursor, or null if there is no cursor before
+		 *         <code>position</code>
+		 */
+		synchronized Cursor take (EntryReader owner, long position)
+		{
+			Cursor best = null;
+			for (Cursor c : cursors)
+				if (c.owner () == owner && c.position <= position
+					&& (best == null || c.position > best.position))
+					best = c;
+			if (best != null)
+				cursors.remove (best);
+			return best;
+		}
+		
+		
+		/**
+		 * Returns a cursor after use, closing the least recently used cursors if
+		 * we exceed the limit.
+		 * 
+		 * @param cursor
+		 *          the cursor
+		 */
+		void release (Cursor cursor)
+		{
+			LinkedList<Cursor> evicted = new LinkedList<Cursor> ();
+			synchronized (this)
+			{
+				if (closed || cursor.owner ().closed)
+					evicted.add (cursor);
+				else
+				{
+					cursors.add (cursor);
+					while (cursors.size () > maxCursors)
+						evicted.add (cursors.removeFirst ());
+				}
+			}
+			for (Cursor c : evicted)
+				c.closeQuietly ();
+		}
+		
+		
+		/**
+		 * Drops all data and cursors of a reader.
+		 * 
+		 * @param owner
+		 *          the reader
+		 */
+		void remove (EntryReader owner)
+		{
+			LinkedList<Cursor> evicted = new LinkedList<Cursor> ();
+			synchronized (this)
+			{
+				Iterator<Map.Entry<Key, byte[]>> it = data.entrySet ().iterator ();
+				while (it.hasNext ())
+				{
+					Map.Entry<Key, byte[]> e = it.next ();
+					if (e.getKey ().owner == owner)
+					{
+						bytes -= e.getValue ().length;
+						it.remove ();
+					}
+				}
+				Iterator<Cursor> cit = cursors.iterator ();
+				while (cit.hasNext ())
+				{
+					Cursor c = cit.next ();
+					if (c.owner () == owner)
+					{
+						evicted.add (c);
+						cit.remove ();
+					}
+				}
+			}
+			for (Cursor c : evicted)
+				c.closeQuietly ();
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close ()
+		{
+			LinkedList<Cursor> evicted;
+			synchronized (this)
+			{
+				closed = true;
+				evicted = cursors;
+				cursors = new LinkedList<Cursor> ();
+				data.clear ();
+				bytes = 0;
+			}
+			for (Cursor c : evicted)
+				c.closeQuietly ();
+		}
+		
+		/**
+		 * The Class Key identifies cached data.
+		 */
+		private static class Key
+		{
+			
+			/** The reader owning the data. */
+			private EntryReader	owner;
+			
+			/** The kind of data. */
+			private int					kind;
+			
+			/** The number of the block or the position of the restart point. */
+			private long				number;
+			
+			
+			/**
+			 * Instantiates a new key.
+			 * 
+			 * @param owner
+			 *          the reader owning the data
+			 * @param kind
+			 *          the kind of data
+			 * @param number
+			 *          the number of the block or the position of the restart
+			 *          point
+			 */
+			public Key (EntryReader owner, int kind, long number)
+			{
+				this.owner = owner;
+				this.kind = kind;
+				this.number = number;
+			}
+			
+			
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Object#equals(java.lang.Object)
+			 */
+			@Override
+			public boolean equals (Object obj)
+			{
+				if (!(obj instanceof Key))
+					return false;
+				Key other = (Key) obj;
+				return owner == other.owner && kind == other.kind
+					&& number == other.number;
+			}
+			
+			
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Object#hashCode()
+			 */
+			@Override
+			public int hashCode ()
+			{
+				return 31 * (31 * System.identityHashCode (owner) + kind)
+					+ (int) (number ^ (number >>> 32));
+			}
+		}
+	}
+	
+	/**
+	 * The Class Cursor is a decompressing stream at a certain position of the
+	 * entry.
+	 */
+	private abstract class Cursor
+	{
+		
+		/** The position of the stream in the entry. */
+		protected long	position;
+		
+		
+		/**
+		 * Gets the reader this cursor belongs to.
+		 * 
+		 * @return the reader
+		 */
+		public EntryReader owner ()
+		{
+			return EntryReader.this;
+		}
+		
+		
+		/**
+		 * Reads some bytes and moves the cursor forward.
+		 * 
+		 * @param data
+		 *          the array to read into
+		 * @param off
+		 *          the offset in <code>data</code>
+		 * @param len
+		 *          the maximum number of bytes to read
+		 * @return the number of bytes read, or -1 at the end of the entry
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		protected abstract int read (byte[] data, int off, int len)
+			throws IOException;
+		
+		
+		/**
+		 * Closes the underlying stream.
+		 * 
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		protected abstract void close () throws IOException;
+		
+		
+		/**
+		 * Closes the underlying stream, logging errors.
+		 */
+		public void closeQuietly ()
+		{
+			try
+			{
+				close ();
+			}
+			catch (IOException e)
+			{
+				LOGGER.warn (e, "cannot close stream of ", path);
+			}
+		}
+		
+		
+		/**
+		 * Moves the cursor forward.
+		 * 
+		 * @param target
+		 *          the target position, must not be before the current position
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		public void skipTo (long target) throws IOException
+		{
+			if (position >= target)
+				return;
+			byte[] scratch = new byte[(int) Math.min (BLOCK_SIZE, target
+				- position)];
+			while (position < target)
+				if (read (scratch, 0, (int) Math.min (scratch.length, target
+					- position)) < 0)
+					throw new EOFException ("unexpected end of entry");
+		}
+		
+		
+		/**
+		 * Reads until <code>data</code> is full.
+		 * 
+		 * @param data
+		 *          the array to fill
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		public void readFully (byte[] data) throws IOException
+		{
+			int off = 0;
+			while (off < data.length)
+			{
+				int n = read (data, off, data.length - off);
+				if (n < 0)
+					throw new EOFException ("unexpected end of entry");
+				off += n;
+			}
+		}
+	}
+	
+	/**
+	 * The Class StreamCursor reads the entry through the ZIP file system.
+	 */
+	private class StreamCursor
+		extends Cursor
+	{
+		
+		/** The stream. */
+		private InputStream	in;
+		
+		
+		/**
+		 * Instantiates a new cursor at the beginning of the entry.
+		 * 
+		 * @param in
+		 *          the stream reading the entry
+		 */
+		public StreamCursor (InputStream in)
+		{
+			this.in = in;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.unirostock.sems.cbarchive.EntryReader.Cursor#read(byte[], int, int)
+		 */
+		@Override
+		protected int read (byte[] data, int off, int len) throws IOException
+		{
+			int n = in.read (data, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.unirostock.sems.cbarchive.EntryReader.Cursor#close()
+		 */
+		@Override
+		protected void close () throws IOException
+		{
+			in.close ();
+		}
+	}
+	
+	/**
+	 * The Class RawCursor decompresses the raw data of the entry in the ZIP
+	 * file. It remembers the last 32 KB of decompressed data, and looks for
+	 * sync-flush markers whenever it reaches a boundary between two chunks of
+	 * the {@link ParallelDeflater}. A restart point is only added after a fresh
+	 * inflater produced the same data as this cursor.
+	 */
+	private class RawCursor
+		extends Cursor
+	{
+		
+		/** The inflater. */
+		private Inflater	inflater;
+		
+		/** The position of the next byte of raw data to feed. */
+		private long			input;
+		
+		/** The buffer for raw data. */
+		private byte[]		buffer;
+		
+		/** The last 32 KB of decompressed data, as a ring buffer. */
+		private byte[]		window;
+		
+		/** The position of a possible restart point, or -1. */
+		private long			candidate;
+		
+		/** The position of the possible restart point in the raw data. */
+		private long			candidateInput;
+		
+		/** The dictionary of the possible restart point. */
+		private byte[]		candidateDictionary;
+		
+		/** The data a fresh inflater produced at the possible restart point. */
+		private byte[]		expected;
+		
+		/** The number of bytes already compared to <code>expected</code>. */
+		private int				verified;
+		
+		
+		/**
+		 * Instantiates a new cursor, either at the beginning of the entry or at a
+		 * restart point.
+		 * 
+		 * @param position
+		 *          the position in the entry
+		 * @param input
+		 *          the corresponding position in the raw data
+		 * @param dictionary
+		 *          the data preceding <code>position</code>, null at the
+		 *          beginning of the entry
+		 */
+		public RawCursor (long position, long input, byte[] dictionary)
+		{
+			this.position = position;
+			this.input = input;
+			this.buffer = new byte[16384];
+			this.window = new byte[DICTIONARY_SIZE];
+			this.candidate = -1;
+			this.inflater = new Inflater (true);
+			if (dictionary != null)
+			{
+				inflater.setDictionary (dictionary);
+				remember (dictionary, 0, dictionary.length, position
+					- dictionary.length);
+			}
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.unirostock.sems.cbarchive.EntryReader.Cursor#read(byte[], int, int)
+		 */
+		@Override
+		protected int read (byte[] data, int off, int len) throws IOException
+		{
+			if (position >= size)
+				return -1;
+			
+			// stop at the next chunk boundary
+			long boundary = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+			len = (int) Math.min (len, boundary - position);
+			int n;
+			try
+			{
+				while ((n = inflater.inflate (data, off, len)) == 0)
+				{
+					if (inflater.finished () || inflater.needsDictionary ())
+						throw new EOFException ("unexpected end of entry");
+					if (inflater.needsInput ())
+						fill ();
+				}
+			}
+			catch (DataFormatException e)
+			{
+				throw new ZipException ("invalid compressed data in " + path + ": "
+					+ e.getMessage ());
+			}
+			
+			remember (data, off, n, position);
+			verify (data, off, n);
+			position += n;
+			if (position == boundary && position < size
+				&& position % restartDistance == 0)
+				findRestartPoint ();
+			return n;
+		}
+		
+		
+		/**
+		 * Feeds the next piece of raw data into the inflater.
+		 * 
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		private void fill () throws IOException
+		{
+			int n = index.read (raw, input, ByteBuffer.wrap (buffer));
+			if (n <= 0)
+				throw new EOFException ("unexpected end of entry");
+			inflater.setInput (buffer, 0, n);
+			input += n;
+		}
+		
+		
+		/**
+		 * Stores decompressed data in the window.
+		 * 
+		 * @param data
+		 *          the array containing the data
+		 * @param off
+		 *          the offset in <code>data</code>
+		 * @param len
+		 *          the number of bytes
+		 * @param at
+		 *          the position of the data in the entry
+		 */
+		private void remember (byte[] data, int off, int len, long at)
+		{
+			int skip = Math.max (0, len - DICTIONARY_SIZE);
+			off += skip;
+			len -= skip;
+			at += skip;
+			while (len > 0)
+			{
+				int pos = (int) (at % DICTIONARY_SIZE);
+				int n = Math.min (len, DICTIONARY_SIZE - pos);
+				System.arraycopy (data, off, window, pos, n);
+				off += n;
+				len -= n;
+				at += n;
+			}
+		}
+		
+		
+		/**
+		 * Gets the last 32 KB of decompressed data.
+		 * 
+		 * @return the dictionary
+		 */
+		private byte[] dictionary ()
+		{
+			int len = (int) Math.min (position, DICTIONARY_SIZE);
+			byte[] dictionary = new byte[len];
+			int start = (int) ((position - len) % DICTIONARY_SIZE);
+			int first = Math.min (len, DICTIONARY_SIZE - start);
+			System.arraycopy (window, start, dictionary, 0, first);
+			System.arraycopy (window, 0, dictionary, first, len - first);
+			return dictionary;
+		}
+		
+		
+		/**
+		 * Looks for a sync-flush marker (an empty stored block, that is
+		 * <code>00 00 ff ff</code>) near the current position in the raw data.
+		 * The inflater buffers some input ahead, so we search backwards from the
+		 * consumed position.
+		 * 
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		private void findRestartPoint () throws IOException
+		{
+			long consumed = input - inflater.getRemaining ();
+			long from = Math.max (0, consumed - MARKER_SEARCH);
+			ByteBuffer probe = ByteBuffer.allocate ((int) (consumed - from) + 16);
+			int n = index.read (raw, from, probe);
+			byte[] p = probe.array ();
+			for (int i = n - 4; i >= 0; i--)
+				if (p[i] == 0 && p[i + 1] == 0 && p[i + 2] == (byte) 0xff
+					&& p[i + 3] == (byte) 0xff)
+				{
+					byte[] dictionary = dictionary ();
+					byte[] data = probe (from + i + 4, dictionary);
+					if (data != null)
+					{
+						candidate = position;
+						candidateInput = from + i + 4;
+						candidateDictionary = dictionary;
+						expected = data;
+						verified = 0;
+						return;
+					}
+				}
+		}
+		
+		
+		/**
+		 * Compares freshly decompressed data to the data produced by a fresh
+		 * inflater at the possible restart point.
+		 * 
+		 * @param data
+		 *          the array containing the data
+		 * @param off
+		 *          the offset in <code>data</code>
+		 * @param len
+		 *          the number of bytes
+		 */
+		private void verify (byte[] data, int off, int len)
+		{
+			if (candidate < 0)
+				return;
+			int n = Math.min (len, expected.length - verified);
+			for (int i = 0; i < n; i++)
+				if (data[off + i] != expected[verified + i])
+				{
+					candidate = -1;
+					expected = candidateDictionary = null;
+					return;
+				}
+			verified += n;
+			if (verified == expected.length)
+			{
+				addRestartPoint (candidate, candidateInput, candidateDictionary);
+				candidate = -1;
+				expected = candidateDictionary = null;
+			}
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.unirostock.sems.cbarchive.EntryReader.Cursor#close()
+		 */
+		@Override
+		protected void close ()
+		{
+			inflater.end ();
+		}
+	}
+}
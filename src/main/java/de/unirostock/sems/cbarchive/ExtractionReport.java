@@ -0,0 +1,170 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * The Class ExtractionReport summarises the extraction of an archive.
+ * 
+ * @author martin scharm
+ * @see CombineArchive#extractTo(java.io.File,
+ *      java.util.concurrent.ExecutorService, boolean)
+ */
+public class ExtractionReport
+{
+	
+	/** The time needed to extract every entry, in nanoseconds. */
+	private Map<String, Long>	entryTimes;
+	
+	/** The number of bytes written. */
+	private long							bytes;
+	
+	/** The total time of the extraction, in nanoseconds. */
+	private long							elapsed;
+	
+	
+	/**
+	 * Instantiates a new, empty extraction report.
+	 */
+	ExtractionReport ()
+	{
+		entryTimes = new LinkedHashMap<String, Long> ();
+	}
+	
+	
+	/**
+	 * Records the extraction of an entry.
+	 * 
+	 * @param path
+	 *          the path of the entry in the archive
+	 * @param size
+	 *          the number of bytes written
+	 * @param nanos
+	 *          the time needed to extract the entry, in nanoseconds
+	 */
+	synchronized void addEntry (String path, long size, long nanos)
+	{
+		entryTimes.put (path, nanos);
+		bytes += size;
+	}
+	
+	
+	/**
+	 * Sets the total time of the extraction.
+	 * 
+	 * @param nanos
+	 *          the time in nanoseconds
+	 */
+	synchronized void setElapsedNanos (long nanos)
+	{
+		elapsed = nanos;
+	}
+	
+	
+	/**
+	 * Gets the number of extracted entries.
+	 * 
+	 * @return the number of entries
+	 */
+	public synchronized int getNumEntries ()
+	{
+		return entryTimes.size ();
+	}
+	
+	
+	/**
+	 * Gets the number of bytes that were written.
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getTotalBytes ()
+	{
+		return bytes;
+	}
+	
+	
+	/**
+	 * Gets the total time of the extraction.
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public synchronized long getElapsedNanos ()
+	{
+		return elapsed;
+	}
+	
+	
+	/**
+	 * Gets the throughput of the extraction.
+	 * 
+	 * @return the number of bytes written per second
+	 */
+	public synchronized double getThroughput ()
+	{
+		if (elapsed <= 0)
+			return 0;
+		return bytes * 1e9 / elapsed;
+	}
+	
+	
+	/**
+	 * Gets the time needed to extract every entry. Entries are listed in the
+	 * order their extraction finished.
+	 * 
+	 * @return the times in nanoseconds, mapped by the paths of the entries in
+	 *         the archive
+	 */
+	public synchronized Map<String, Long> getEntryTimes ()
+	{
+		return Collections.unmodifiableMap (new LinkedHashMap<String, Long> (
+			entryTimes));
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString ()
+	{
+		return "extracted " + entryTimes.size () + " entries (" + bytes
+			+ " bytes) in " + (elapsed / 1000000) + " ms";
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+
+
+/**
+ * The Class FormatRegistry provides canonical instances of format URIs.
+ * <p>
+ * Many entries of an archive typically share the same format. The registry
+ * makes sure that they also share the same {@link URI} instance, across all
+ * archives, and it remembers how the format strings found in manifests
+ * translate into URIs. See <a href=
+ * "https://sems.uni-rostock.de/trac/combine-ext/wiki/CombineFormatizer">CombineFormatizer</a>
+ * for more information on format URIs.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+public final class FormatRegistry
+{
+	
+	/** The URI representing the OMEX specification. */
+	public static final URI													OMEX_SPEC						= URI
+		.create ("http://identifiers.org/combine.specifications/omex");
+	
+	/** The URI representing the OMEX manifest. */
+	public static final URI													OMEX_MANIFEST				= URI
+		.create ("http://identifiers.org/combine.specifications/omex-manifest");
+	
+	/** The URI representing OMEX meta data. */
+	public static final URI													OMEX_METADATA				= URI
+		.create ("http://identifiers.org/combine.specifications/omex-metadata");
+	
+	/** The prefix of format URIs representing mime types. */
+	public static final String											PURL_PREFIX					= "http://purl.org/NET/mediatypes/";
+	
+	/** The pattern of mime types. */
+	private static final Pattern										MIME_PATTERN				= Pattern
+		.compile ("[a-zA-Z0-9+.-]+/[a-zA-Z0-9+.-]+");
+	
+	/**
+	 * The maximum number of URIs we remember, to not pile up junk from broken
+	 * manifests.
+	 */
+	private static final int												MAX_CACHED					= 4096;
+	
+	/** The canonical instances of the known URIs. */
+	private static final ConcurrentMap<URI, URI>		canonicalUris				= new ConcurrentHashMap<URI, URI> ();
+	
+	/** The URIs of format strings that we've seen in manifests. */
+	private static final ConcurrentMap<String, URI>	formatStrings				= new ConcurrentHashMap<String, URI> ();
+	
+	static
+	{
+		intern (OMEX_SPEC);
+		intern (OMEX_MANIFEST);
+		intern (OMEX_METADATA);
+	}
+	
+	
+	/**
+	 * Not to be instantiated.
+	 */
+	private FormatRegistry ()
+	{
+	}
+	
+	
+	/**
+	 * Gets the canonical instance of a format URI. Any two URIs that are
+	 * {@link URI#equals(Object) equal} will be represented by the same instance.
+	 * 
+	 * @param format
+	 *          the format URI
+	 * @return the canonical instance of <code>format</code>, or null if
+	 *         <code>format</code> is null
+	 */
+	public static URI intern (URI format)
+	{
+		if (format == null)
+			return null;
+		
+		URI canonical = canonicalUris.get (format);
+		if (canonical != null)
+			return canonical;
+		
+		if (canonicalUris.size () >= MAX_CACHED)
+			return format;
+		
+		canonical = canonicalUris.putIfAbsent (format, format);
+		return canonical == null ? format : canonical;
+	}
+	
+	
+	/**
+	 * Gets the format URI for a format string as found in a manifest. That is
+	 * either an HTTP URI, or a mime type which will be translated to a purl.org
+	 * URI (e.g. <code>text/plain</code> becomes
+	 * <code>http://purl.org/NET/mediatypes/text/plain</code>).
+	 * 
+	 * @param format
+	 *          the format string
+	 * @return the canonical format URI
+	 * @throws URISyntaxException
+	 *           if <code>format</code> is neither an HTTP URI nor a mime type
+	 */
+	public static URI getFormatUri (String format) throws URISyntaxException
+	{
+		URI uri = formatStrings.get (format);
+		if (uri != null)
+			return uri;
+		
+		if (format.startsWith ("http"))
+			uri = new URI (format);
+		else if (isMimeType (format))
+			uri = new URI (PURL_PREFIX + format);
+		else
+			throw new URISyntaxException (format, "expected http uri or mime type");
+		
+		uri = intern (uri);
+		if (formatStrings.size () < MAX_CACHED)
+			formatStrings.putIfAbsent (format, uri);
+		return uri;
+	}
+	
+	
+	/**
+	 * Checks if a string looks like a mime type.
+	 * 
+	 * @param str
+	 *          the string to check
+	 * @return true, if <code>str</code> is a mime type
+	 */
+	public static boolean isMimeType (String str)
+	{
+		return MIME_PATTERN.matcher (str).matches ();
+	}
+	
+	
+	/**
+	 * Checks if a format URI represents the OMEX specification, that is the
+	 * archive itself.
+	 * 
+	 * @param format
+	 *          the format URI
+	 * @return true, if <code>format</code> is the OMEX specification (in any
+	 *         version)
+	 */
+	public static boolean isOmexSpec (URI format)
+	{
+		return format.equals (OMEX_SPEC)
+			|| format.toString ().startsWith (OMEX_SPEC + ".version");
+	}
+}
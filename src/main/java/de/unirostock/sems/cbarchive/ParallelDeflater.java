@@ -0,0 +1,417 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+
+/**
+ * The Class ParallelDeflater compresses a stream using multiple threads.
+ * <p>
+ * The data is split into chunks which are compressed independently. Every
+ * chunk is primed with the last 32 KB of the data before, so we lose hardly
+ * any compression, and all but the last chunk are sync-flushed. The
+ * compressed chunks are written in order and simply concatenated, resulting
+ * in a single raw DEFLATE stream that every inflater can read.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+class ParallelDeflater
+{
+	
+	/** The size of the DEFLATE window. */
+	private static final int				DICTIONARY_SIZE	= 32768;
+	
+	/** The default size of the chunks. */
+	public static final int					CHUNK_SIZE			= 1024 * 1024;
+	
+	/** The initial buffer size for streams of unknown size. */
+	private static final int				INITIAL_BUFFER	= 65536;
+	
+	/** The executor running the compression, may be null. */
+	private ExecutorService					executor;
+	
+	/** The compression level. */
+	private int											level;
+	
+	/** The size of the chunks. */
+	private int											chunkSize;
+	
+	/** The maximum number of chunks in flight. */
+	private int											maxPending;
+	
+	
+	/**
+	 * Instantiates a new parallel deflater.
+	 * 
+	 * @param executor
+	 *          the executor to run the compression, if null we'll compress in
+	 *          the calling thread
+	 * @param level
+	 *          the compression level, see {@link Deflater}
+	 * @param chunkSize
+	 *          the size of the chunks that are compressed independently
+	 * @param maxPending
+	 *          the maximum number of chunks in flight, limiting the memory
+	 *          consumption
+	 */
+	public ParallelDeflater (ExecutorService executor, int level, int chunkSize,
+		int maxPending)
+	{
+		this.executor = executor;
+		this.level = level;
+		this.chunkSize = chunkSize;
+		this.maxPending = Math.max (1, maxPending);
+	}
+	
+	
+	/**
+	 * Compress all data from <code>in</code> and write the raw DEFLATE stream
+	 * to <code>out</code>. None of the streams will be closed.
+	 * 
+	 * @param in
+	 *          the uncompressed data
+	 * @param out
+	 *          the stream to write the compressed data to
+	 * @return the result, providing the CRC and the sizes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public Result deflate (InputStream in, OutputStream out) throws IOException
+	{
+		return deflate (in, out, -1);
+	}
+	
+	
+	/**
+	 * Compress all data from <code>in</code> and write the raw DEFLATE stream
+	 * to <code>out</code>. None of the streams will be closed.
+	 * <p>
+	 * The expected size is only used to allocate buffers that fit. Small
+	 * entries thus do not need a buffer of the full chunk size.
+	 * </p>
+	 * 
+	 * @param in
+	 *          the uncompressed data
+	 * @param out
+	 *          the stream to write the compressed data to
+	 * @param expectedSize
+	 *          the expected size of the uncompressed data, or -1 if unknown
+	 * @return the result, providing the CRC and the sizes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public Result deflate (InputStream in, OutputStream out, long expectedSize)
+		throws IOException
+	{
+		Result result = new Result ();
+		CRC32 crc = new CRC32 ();
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>> ();
+		byte[] dictionary = null;
+		
+		try
+		{
+			while (true)
+			{
+				// after a full chunk we know that the stream is large
+				long sizeHint = expectedSize >= 0 ? Math.max (0, expectedSize
+					- result.size) : result.size > 0 ? chunkSize : -1;
+				byte[] chunk = readChunk (in, sizeHint);
+				boolean last = chunk.length < chunkSize;
+				crc.update (chunk);
+				result.size += chunk.length;
+				
+				pending.add (submit (new DeflateTask (chunk, dictionary, level, last)));
+				dictionary = nextDictionary (dictionary, chunk);
+				
+				while (pending.size () >= maxPending)
+					result.compressedSize += write (pending.removeFirst (), out);
+				
+				if (last)
+					break;
+			}
+			while (!pending.isEmpty ())
+				result.compressedSize += write (pending.removeFirst (), out);
+		}
+		finally
+		{
+			for (Future<byte[]> f : pending)
+				f.cancel (true);
+		}
+		
+		result.crc = crc.getValue ();
+		return result;
+	}
+	
+	
+	/**
+	 * Submit a task to the executor, or run it immediately if there is no
+	 * executor.
+	 * 
+	 * @param task
+	 *          the task
+	 * @return the future providing the compressed chunk
+	 */
+	private Future<byte[]> submit (DeflateTask task)
+	{
+		if (executor != null)
+			return executor.submit (task);
+		FutureTask<byte[]> future = new FutureTask<byte[]> (task);
+		future.run ();
+		return future;
+	}
+	
+	
+	/**
+	 * Wait for a compressed chunk and write it.
+	 * 
+	 * @param future
+	 *          the future providing the compressed chunk
+	 * @param out
+	 *          the stream to write to
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private static long write (Future<byte[]> future, OutputStream out)
+		throws IOException
+	{
+		byte[] compressed;
+		try
+		{
+			compressed = future.get ();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
+			throw new IOException ("interrupted while compressing", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException ("failed to compress", e.getCause ());
+		}
+		out.write (compressed);
+		return compressed.length;
+	}
+	
+	
+	/**
+	 * Read the next chunk. The chunk will be shorter than the chunk size only at
+	 * the end of the stream.
+	 * <p>
+	 * The buffer is sized according to <code>sizeHint</code> and grows if the
+	 * stream provides more data. If the hint is right, the chunk is read
+	 * without allocating more than needed and without copying.
+	 * </p>
+	 * 
+	 * @param in
+	 *          the stream to read from
+	 * @param sizeHint
+	 *          the expected number of remaining bytes, or -1 if unknown
+	 * @return the chunk
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private byte[] readChunk (InputStream in, long sizeHint) throws IOException
+	{
+		byte[] buf = new byte[(int) Math.min (chunkSize, sizeHint < 0
+			? INITIAL_BUFFER : sizeHint)];
+		int filled = 0;
+		while (filled < chunkSize)
+		{
+			if (filled == buf.length)
+			{
+				// the buffer is full, check whether there is more to come
+				int next = in.read ();
+				if (next < 0)
+					return buf;
+				buf = Arrays.copyOf (buf, (int) Math.min (chunkSize, Math.max (
+					INITIAL_BUFFER, 2L * buf.length)));
+				buf[filled++] = (byte) next;
+				continue;
+			}
+			int n = in.read (buf, filled, buf.length - filled);
+			if (n < 0)
+				return Arrays.copyOf (buf, filled);
+			filled += n;
+		}
+		return buf;
+	}
+	
+	
+	/**
+	 * Compute the dictionary for the next chunk, that is the last 32 KB of the
+	 * data seen so far.
+	 * 
+	 * @param dictionary
+	 *          the dictionary of the current chunk
+	 * @param chunk
+	 *          the current chunk
+	 * @return the dictionary for the next chunk
+	 */
+	private static byte[] nextDictionary (byte[] dictionary, byte[] chunk)
+	{
+		if (chunk.length >= DICTIONARY_SIZE)
+			return Arrays.copyOfRange (chunk, chunk.length - DICTIONARY_SIZE,
+				chunk.length);
+		
+		int keep = dictionary == null ? 0 : Math.min (dictionary.length,
+			DICTIONARY_SIZE - chunk.length);
+		byte[] next = new byte[keep + chunk.length];
+		if (keep > 0)
+			System.arraycopy (dictionary, dictionary.length - keep, next, 0, keep);
+		System.arraycopy (chunk, 0, next, keep, chunk.length);
+		return next;
+	}
+	
+	/**
+	 * The result of compressing a stream.
+	 */
+	static class Result
+	{
+		
+		/** The CRC-32 of the uncompressed data. */
+		long	crc;
+		
+		/** The size of the uncompressed data. */
+		long	size;
+		
+		/** The size of the compressed data. */
+		long	compressedSize;
+	}
+	
+	/**
+	 * The task compressing a single chunk.
+	 */
+	private static class DeflateTask
+		implements Callable<byte[]>
+	{
+		
+		/** The chunk. */
+		private byte[]	chunk;
+		
+		/** The dictionary, may be null. */
+		private byte[]	dictionary;
+		
+		/** The compression level. */
+		private int			level;
+		
+		/** Is this the last chunk? */
+		private boolean	last;
+		
+		
+		/**
+		 * Instantiates a new deflate task.
+		 * 
+		 * @param chunk
+		 *          the chunk to compress
+		 * @param dictionary
+		 *          the data preceding the chunk, may be null
+		 * @param level
+		 *          the compression level
+		 * @param last
+		 *          is this the last chunk?
+		 */
+		public DeflateTask (byte[] chunk, byte[] dictionary, int level,
+			boolean last)
+		{
+			this.chunk = chunk;
+			this.dictionary = dictionary;
+			this.level = level;
+			this.last = last;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public byte[] call ()
+		{
+			Deflater deflater = new Deflater (level, true);
+			try
+			{
+				if (dictionary != null && dictionary.length > 0)
+					deflater.setDictionary (dictionary);
+				deflater.setInput (chunk);
+				
+				ByteArrayOutputStream out = new ByteArrayOutputStream (
+					chunk.length / 2 + 64);
+				// small chunks need small buffers, we'll loop if the output is larger
+				byte[] buf = new byte[Math.min (65536, chunk.length + 64)];
+				if (last)
+				{
+					deflater.finish ();
+					while (!deflater.finished ())
+					{
+						int n = deflater.deflate (buf);
+						out.write (buf, 0, n);
+					}
+				}
+				else
+				{
+					// sync flush to end the chunk at a byte boundary
+					int n;
+					do
+					{
+						n = deflater.deflate (buf, 0, buf.length, Deflater.SYNC_FLUSH);
+						out.write (buf, 0, n);
+					}
+					while (n == buf.length);
+				}
+				return out.toByteArray ();
+			}
+			finally
+			{
+				deflater.end ();
+			}
+		}
+	}
+}
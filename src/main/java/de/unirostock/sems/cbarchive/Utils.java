@@ -35,18 +35,26 @@ package de.unirostock.sems.cbarchive;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.TransformerException;
 
 import org.jdom2.Document;
@@ -100,6 +108,21 @@ public class Utils
 	public final static String						NEWLINE				= System
 		.getProperty ("line.separator");
 	
+	/** The factory for StAX readers. */
+	private static final XMLInputFactory	xmlInputFactory;
+	
+	/** The factory for StAX writers. */
+	private static final XMLOutputFactory	xmlOutputFactory;
+	
+	static
+	{
+		xmlOutputFactory = XMLOutputFactory.newInstance ();
+		xmlInputFactory = XMLInputFactory.newInstance ();
+		xmlInputFactory.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+			false);
+		xmlInputFactory.setProperty (XMLInputFactory.IS_COALESCING, true);
+	}
+	
 	/** The COPY_OPTION used to copy/move files. */
 	public static final CopyOption[]			COPY_OPTION		= new CopyOption[] {
 		StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES };
@@ -121,10 +144,134 @@ public class Utils
 			IOException
 	{
 		SAXBuilder builder = new SAXBuilder ();
-		return (Document) builder
-			.build (Files.newInputStream (fileToRead, StandardOpenOption.READ));
+		try (InputStream in = Files.newInputStream (fileToRead,
+			StandardOpenOption.READ))
+		{
+			return (Document) builder.build (in);
+		}
+	}
+	
+	
+	/**
+	 * Creates a StAX reader to stream through an XML document. External entities
+	 * won't be resolved.
+	 * 
+	 * @param in
+	 *          the stream providing the XML document
+	 * @return the XML stream reader
+	 * @throws XMLStreamException
+	 *           if the reader cannot be created
+	 */
+	public static XMLStreamReader createXmlStreamReader (InputStream in)
+		throws XMLStreamException
+	{
+		return xmlInputFactory.createXMLStreamReader (in);
+	}
+	
+	
+	/**
+	 * Creates a StAX writer to stream an XML document encoded in UTF-8.
+	 * 
+	 * @param out
+	 *          the stream to write the XML document to
+	 * @return the XML stream writer
+	 * @throws XMLStreamException
+	 *           if the writer cannot be created
+	 */
+	public static XMLStreamWriter createXmlStreamWriter (OutputStream out)
+		throws XMLStreamException
+	{
+		return xmlOutputFactory.createXMLStreamWriter (out, "UTF-8");
+	}
+	
+	
+	/**
+	 * The Class ComparingOutputStream compares the data written to it with the
+	 * contents of an existing stream. It can be used to find out whether a
+	 * document needs to be written at all.
+	 */
+	public static class ComparingOutputStream
+		extends OutputStream
+	{
+		
+		/** The existing contents. */
+		private InputStream	existing;
+		
+		/** Did we find a difference? */
+		private boolean			differs;
+		
+		/** The buffer to read the existing contents. */
+		private byte[]			buf	= new byte[8192];
+		
+		
+		/**
+		 * Instantiates a new comparing output stream.
+		 * 
+		 * @param existing
+		 *          the existing contents to compare with, will not be closed
+		 */
+		public ComparingOutputStream (InputStream existing)
+		{
+			this.existing = existing;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write (int b) throws IOException
+		{
+			if (!differs && existing.read () != (b & 0xff))
+				differs = true;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException
+		{
+			while (!differs && len > 0)
+			{
+				int n = existing.read (buf, 0, Math.min (len, buf.length));
+				if (n < 0)
+				{
+					differs = true;
+					return;
+				}
+				for (int i = 0; i < n; i++)
+					if (buf[i] != b[off + i])
+					{
+						differs = true;
+						return;
+					}
+				off += n;
+				len -= n;
+			}
+		}
+		
+		
+		/**
+		 * Checks whether everything written so far equals the existing
+		 * contents, and the existing contents do not provide any more data.
+		 * 
+		 * @return true, if the contents are equal
+		 * @throws IOException
+		 *           Signals that an I/O exception has occurred.
+		 */
+		public boolean isEqual () throws IOException
+		{
+			return !differs && existing.read () < 0;
+		}
 	}
 	
+	
 	/**
 	 * The Class SimpleOutputStream.
 	 */
@@ -184,17 +331,103 @@ public class Utils
 		Namespace ns)
 	{
 		List<Element> nodeList = new ArrayList<Element> ();
-		List<Element> togo = new ArrayList<Element> ();
-		togo.add (parent);
-		
-		while (togo.size () > 0)
+		findElementsByTagName (parent, name, ns, nodeList);
+		return nodeList;
+	}
+	
+	
+	/**
+	 * Gets the first element of an XML subtree having a certain tag name. That
+	 * is the first element of the list returned by
+	 * {@link #getElementsByTagName(Element,String,Namespace)}, but we stop
+	 * searching as soon as we found it.
+	 * 
+	 * @param parent
+	 *          the root of the subtree
+	 * @param name
+	 *          the tag name
+	 * @param ns
+	 *          the namespace
+	 * @return the first element having this tag name, or null if there is no
+	 *         such element
+	 */
+	public static Element getFirstElementByTagName (Element parent,
+		String name, Namespace ns)
+	{
+		return findElementsByTagName (parent, name, ns, null);
+	}
+	
+	
+	/**
+	 * Searches for elements of an XML subtree by tag name. The subtree is
+	 * traversed in pre-order, and whenever we visit an element we report its
+	 * children having the tag name.
+	 * 
+	 * @param parent
+	 *          the root of the subtree
+	 * @param name
+	 *          the tag name
+	 * @param ns
+	 *          the namespace
+	 * @param found
+	 *          the list collecting the elements, if null we stop at the first
+	 *          match
+	 * @return the first match if <code>found</code> is null, null otherwise
+	 */
+	private static Element findElementsByTagName (Element parent, String name,
+		Namespace ns, List<Element> found)
+	{
+		String uri = ns.getURI ();
+		Deque<Iterator<Element>> togo = new ArrayDeque<Iterator<Element>> ();
+		Element current = parent;
+		while (true)
 		{
-			parent = togo.remove (0);
-			nodeList.addAll (parent.getChildren (name, ns));
-			togo.addAll (0, parent.getChildren ());
+			List<Element> children = current.getChildren ();
+			if (!children.isEmpty ())
+			{
+				for (Element child : children)
+					if (child.getName ().equals (name)
+						&& child.getNamespaceURI ().equals (uri))
+					{
+						if (found == null)
+							return child;
+						found.add (child);
+					}
+				togo.push (children.iterator ());
+			}
+			
+			// find the next element to visit
+			current = null;
+			while (current == null && !togo.isEmpty ())
+			{
+				Iterator<Element> it = togo.peek ();
+				if (it.hasNext ())
+					current = it.next ();
+				else
+					togo.pop ();
+			}
+			if (current == null)
+				return null;
 		}
-		
-		return nodeList;
+	}
+	
+	
+	/**
+	 * Pretty print an XML document to a stream. The document will be encoded in
+	 * UTF-8, the stream will not be closed.
+	 * 
+	 * @param doc
+	 *          the XML document
+	 * @param out
+	 *          the stream to write to
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static void writeXmlDocument (Document doc, OutputStream out)
+		throws IOException
+	{
+		XMLOutputter outputter = new XMLOutputter (Format.getPrettyFormat ());
+		outputter.output (doc, out);
 	}
 	
 	
@@ -259,17 +492,7 @@ public class Utils
 	 */
 	public static URI getOmexMetaDataUri ()
 	{
-		try
-		{
-			return new URI (
-				"http://identifiers.org/combine.specifications/omex-metadata");
-		}
-		catch (URISyntaxException e)
-		{
-			LOGGER.error (e,
-				"failed to create omex meta data uri. that shouldn't happen!!!");
-			return null;
-		}
+		return FormatRegistry.OMEX_METADATA;
 	}
 	
 	
@@ -280,16 +503,7 @@ public class Utils
 	 */
 	public static URI getOmexSpecUri ()
 	{
-		try
-		{
-			return new URI ("http://identifiers.org/combine.specifications/omex");
-		}
-		catch (URISyntaxException e)
-		{
-			LOGGER.error (e,
-				"failed to create omex spec uri. that shouldn't happen!!!");
-			return null;
-		}
+		return FormatRegistry.OMEX_SPEC;
 	}
 	
 	
@@ -300,17 +514,7 @@ public class Utils
 	 */
 	public static URI getOmexManifestUri ()
 	{
-		try
-		{
-			return new URI (
-				"http://identifiers.org/combine.specifications/omex-manifest");
-		}
-		catch (URISyntaxException e)
-		{
-			LOGGER.error (e,
-				"failed to create omex manifest uri. that shouldn't happen!!!");
-			return null;
-		}
+		return FormatRegistry.OMEX_MANIFEST;
 	}
 	
 	
@@ -0,0 +1,558 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+
+
+/**
+ * The Class ZipIndex reads the central directory of an existing ZIP file.
+ * <p>
+ * It provides access to the raw, still compressed, data of the entries. That
+ * allows to copy unchanged entries to another ZIP file without inflating and
+ * deflating them again.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+class ZipIndex
+	implements Closeable
+{
+	
+	/** The signature of the end of central directory record. */
+	private static final int					SIG_EOCD					= 0x06054b50;
+	
+	/** The signature of the ZIP64 end of central directory locator. */
+	private static final int					SIG_ZIP64_LOCATOR	= 0x07064b50;
+	
+	/** The signature of the ZIP64 end of central directory record. */
+	private static final int					SIG_ZIP64_EOCD		= 0x06064b50;
+	
+	/** The signature of a central directory header. */
+	private static final int					SIG_CEN						= 0x02014b50;
+	
+	/** The signature of a local file header. */
+	private static final int					SIG_LOC						= 0x04034b50;
+	
+	/** The length of the end of central directory record without comment. */
+	private static final int					EOCD_LENGTH				= 22;
+	
+	/** The id of the ZIP64 extra field. */
+	private static final int					ZIP64_EXTRA				= 0x0001;
+	
+	/** General purpose flag: the entry is encrypted. */
+	private static final int					FLAG_ENCRYPTED		= 1;
+	
+	/** The channel to read the file. */
+	private FileChannel								channel;
+	
+	/** The entries, mapped by their names. */
+	private Map<String, RawEntry>			entries;
+	
+	
+	/**
+	 * Reads the central directory of a ZIP file.
+	 * 
+	 * @param file
+	 *          the ZIP file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred, or the file is not a
+	 *           valid ZIP file.
+	 */
+	public ZipIndex (Path file) throws IOException
+	{
+		channel = FileChannel.open (file, StandardOpenOption.READ);
+		entries = new HashMap<String, RawEntry> ();
+		try
+		{
+			readCentralDirectory ();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			channel.close ();
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Gets the entry with the given name.
+	 * 
+	 * @param name
+	 *          the name of the entry, without leading slash
+	 * @return the entry, or null if there is no such entry
+	 */
+	public RawEntry get (String name)
+	{
+		return entries.get (name);
+	}
+	
+	
+	/**
+	 * Opens a stream to read the raw data of an entry, as it is stored in the
+	 * ZIP file.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @return the stream providing <code>entry.getCompressedSize ()</code>
+	 *         bytes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public InputStream openRaw (RawEntry entry) throws IOException
+	{
+		return new RawInputStream (getDataOffset (entry), entry.compressedSize);
+	}
+	
+	
+	/**
+	 * Maps the raw data of an entry, as it is stored in the ZIP file, into
+	 * memory.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @return the read-only buffer providing
+	 *         <code>entry.getCompressedSize ()</code> bytes
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public MappedByteBuffer map (RawEntry entry) throws IOException
+	{
+		return channel.map (FileChannel.MapMode.READ_ONLY, getDataOffset (entry),
+			entry.compressedSize);
+	}
+	
+	
+	/**
+	 * Reads a range of the raw data of an entry, as it is stored in the ZIP
+	 * file. Reads until <code>dst</code> is full or the end of the entry's data
+	 * is reached.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @param position
+	 *          the position in the entry's data to start reading
+	 * @param dst
+	 *          the buffer to read into
+	 * @return the number of bytes read, or -1 if <code>position</code> is at or
+	 *         beyond the end of the entry's data
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public int read (RawEntry entry, long position, ByteBuffer dst)
+		throws IOException
+	{
+		if (position >= entry.compressedSize)
+			return -1;
+		
+		long offset = getDataOffset (entry) + position;
+		int limit = dst.limit ();
+		dst.limit (dst.position ()
+			+ (int) Math.min (dst.remaining (), entry.compressedSize - position));
+		try
+		{
+			int read = 0;
+			while (dst.hasRemaining ())
+			{
+				int n = channel.read (dst, offset + read);
+				if (n < 0)
+					throw new EOFException ("unexpected end of zip file");
+				read += n;
+			}
+			return read;
+		}
+		finally
+		{
+			dst.limit (limit);
+		}
+	}
+	
+	
+	/**
+	 * Gets the offset of the data of an entry. The offset is computed from the
+	 * local header when it is needed for the first time.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @return the offset in the ZIP file
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private long getDataOffset (RawEntry entry) throws IOException
+	{
+		if (entry.dataOffset < 0)
+		{
+			ByteBuffer loc = read (entry.localHeaderOffset, 30);
+			if (loc.getInt (0) != SIG_LOC)
+				throw new ZipException ("invalid local header for entry "
+					+ entry.name);
+			entry.dataOffset = entry.localHeaderOffset + 30
+				+ (loc.getShort (26) & 0xffff) + (loc.getShort (28) & 0xffff);
+		}
+		return entry.dataOffset;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		channel.close ();
+	}
+	
+	
+	/**
+	 * Reads the central directory.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void readCentralDirectory () throws IOException
+	{
+		long fileSize = channel.size ();
+		
+		// the end of central directory record is followed by a comment of at most 64 KB
+		int tailLength = (int) Math.min (fileSize, EOCD_LENGTH + 0xFFFF);
+		long tailOffset = fileSize - tailLength;
+		ByteBuffer tail = read (tailOffset, tailLength);
+		int eocd = -1;
+		for (int i = tailLength - EOCD_LENGTH; i >= 0; i--)
+			if (tail.getInt (i) == SIG_EOCD)
+			{
+				eocd = i;
+				break;
+			}
+		if (eocd < 0)
+			throw new ZipException ("cannot find end of central directory");
+		
+		long total = tail.getShort (eocd + 10) & 0xffff;
+		long cenSize = tail.getInt (eocd + 12) & 0xffffffffL;
+		long cenOffset = tail.getInt (eocd + 16) & 0xffffffffL;
+		
+		long locatorOffset = tailOffset + eocd - 20;
+		if (locatorOffset >= 0)
+		{
+			ByteBuffer locator = read (locatorOffset, 20);
+			if (locator.getInt (0) == SIG_ZIP64_LOCATOR)
+			{
+				ByteBuffer eocd64 = read (locator.getLong (8), 56);
+				if (eocd64.getInt (0) != SIG_ZIP64_EOCD)
+					throw new ZipException ("invalid zip64 end of central directory");
+				total = eocd64.getLong (32);
+				cenSize = eocd64.getLong (40);
+				cenOffset = eocd64.getLong (48);
+			}
+		}
+		
+		if (cenSize > Integer.MAX_VALUE)
+			throw new ZipException ("central directory too large");
+		ByteBuffer cen = read (cenOffset, (int) cenSize);
+		int pos = 0;
+		for (long i = 0; i < total; i++)
+		{
+			if (cen.getInt (pos) != SIG_CEN)
+				throw new ZipException ("invalid central directory header");
+			
+			RawEntry entry = new RawEntry ();
+			entry.flags = cen.getShort (pos + 8) & 0xffff;
+			entry.method = cen.getShort (pos + 10) & 0xffff;
+			entry.crc = cen.getInt (pos + 16) & 0xffffffffL;
+			entry.compressedSize = cen.getInt (pos + 20) & 0xffffffffL;
+			entry.size = cen.getInt (pos + 24) & 0xffffffffL;
+			int nameLength = cen.getShort (pos + 28) & 0xffff;
+			int extraLength = cen.getShort (pos + 30) & 0xffff;
+			int commentLength = cen.getShort (pos + 32) & 0xffff;
+			entry.localHeaderOffset = cen.getInt (pos + 42) & 0xffffffffL;
+			
+			byte[] name = new byte[nameLength];
+			cen.position (pos + 46);
+			cen.get (name);
+			entry.name = new String (name, StandardCharsets.UTF_8);
+			
+			readZip64Extra (cen, pos + 46 + nameLength, extraLength, entry);
+			
+			entries.put (entry.name, entry);
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+	
+	
+	/**
+	 * Reads the ZIP64 extra field of a central directory header, if any. Only
+	 * fields that are saturated in the header are stored in the extra field.
+	 * 
+	 * @param cen
+	 *          the central directory
+	 * @param offset
+	 *          the offset of the extra fields
+	 * @param length
+	 *          the length of the extra fields
+	 * @param entry
+	 *          the entry to update
+	 */
+	private static void readZip64Extra (ByteBuffer cen, int offset, int length,
+		RawEntry entry)
+	{
+		int end = offset + length;
+		while (offset + 4 <= end)
+		{
+			int id = cen.getShort (offset) & 0xffff;
+			int size = cen.getShort (offset + 2) & 0xffff;
+			if (id == ZIP64_EXTRA)
+			{
+				int pos = offset + 4;
+				if (entry.size == 0xffffffffL)
+				{
+					entry.size = cen.getLong (pos);
+					pos += 8;
+				}
+				if (entry.compressedSize == 0xffffffffL)
+				{
+					entry.compressedSize = cen.getLong (pos);
+					pos += 8;
+				}
+				if (entry.localHeaderOffset == 0xffffffffL)
+					entry.localHeaderOffset = cen.getLong (pos);
+				return;
+			}
+			offset += 4 + size;
+		}
+	}
+	
+	
+	/**
+	 * Reads a region of the file.
+	 * 
+	 * @param offset
+	 *          the offset in the file
+	 * @param length
+	 *          the number of bytes to read
+	 * @return the buffer containing the data, in little endian order
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private ByteBuffer read (long offset, int length) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate (length).order (
+			ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining ())
+			if (channel.read (buf, offset + buf.position ()) < 0)
+				throw new EOFException ("unexpected end of zip file");
+		buf.flip ();
+		return buf;
+	}
+	
+	
+	/**
+	 * The Class RawEntry describes an entry in the central directory.
+	 */
+	public static class RawEntry
+	{
+		
+		/** The name. */
+		private String	name;
+		
+		/** The general purpose flags. */
+		private int			flags;
+		
+		/** The compression method. */
+		private int			method;
+		
+		/** The CRC-32 of the uncompressed data. */
+		private long		crc;
+		
+		/** The uncompressed size. */
+		private long		size;
+		
+		/** The compressed size. */
+		private long		compressedSize;
+		
+		/** The offset of the local header. */
+		private long		localHeaderOffset;
+		
+		/** The offset of the data, computed lazily. */
+		private long		dataOffset	= -1;
+		
+		
+		/**
+		 * Gets the compression method.
+		 * 
+		 * @return the method
+		 */
+		public int getMethod ()
+		{
+			return method;
+		}
+		
+		
+		/**
+		 * Gets the CRC-32 of the uncompressed data.
+		 * 
+		 * @return the crc
+		 */
+		public long getCrc ()
+		{
+			return crc;
+		}
+		
+		
+		/**
+		 * Gets the uncompressed size.
+		 * 
+		 * @return the size
+		 */
+		public long getSize ()
+		{
+			return size;
+		}
+		
+		
+		/**
+		 * Gets the compressed size.
+		 * 
+		 * @return the compressed size
+		 */
+		public long getCompressedSize ()
+		{
+			return compressedSize;
+		}
+		
+		
+		/**
+		 * Gets the offset of the local header. Entries ordered by this offset
+		 * can be read sequentially from the ZIP file.
+		 * 
+		 * @return the offset in the ZIP file
+		 */
+		public long getLocalHeaderOffset ()
+		{
+			return localHeaderOffset;
+		}
+		
+		
+		/**
+		 * Checks whether the raw data of this entry can be copied to another ZIP
+		 * file. That's the case for unencrypted entries that are either stored or
+		 * deflated.
+		 * 
+		 * @return true, if the entry can be copied
+		 */
+		public boolean isCopyable ()
+		{
+			return (flags & FLAG_ENCRYPTED) == 0
+				&& (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+		}
+	}
+	
+	
+	/**
+	 * The Class RawInputStream reads a region of the ZIP file.
+	 */
+	private class RawInputStream
+		extends InputStream
+	{
+		
+		/** The current position in the file. */
+		private long	position;
+		
+		/** The number of bytes left. */
+		private long	remaining;
+		
+		
+		/**
+		 * Instantiates a new raw input stream.
+		 * 
+		 * @param position
+		 *          the offset of the region
+		 * @param length
+		 *          the length of the region
+		 */
+		public RawInputStream (long position, long length)
+		{
+			this.position = position;
+			this.remaining = length;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read () throws IOException
+		{
+			byte[] b = new byte[1];
+			return read (b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read (byte[] b, int off, int len) throws IOException
+		{
+			if (remaining <= 0)
+				return -1;
+			int n = channel.read (
+				ByteBuffer.wrap (b, off, (int) Math.min (len, remaining)), position);
+			if (n < 0)
+				throw new EOFException ("unexpected end of zip file");
+			position += n;
+			remaining -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,636 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package de.unirostock.sems.cbarchive;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+
+
+/**
+ * The Class ZipWriter writes a ZIP file sequentially.
+ * <p>
+ * Compared to {@link java.util.zip.ZipOutputStream} it allows to compress
+ * entries using a {@link ParallelDeflater} and to copy data that is already
+ * compressed. Entries of unknown compressed size are followed by a data
+ * descriptor, and ZIP64 extensions are used as soon as sizes, offsets, or the
+ * number of entries exceed the limits of the classic format.
+ * </p>
+ * 
+ * @author martin scharm
+ */
+class ZipWriter
+	implements Closeable
+{
+	
+	/** The limit of 32 bit fields. */
+	private static final long						LIMIT32								= 0xFFFFFFFFL;
+	
+	/** The limit of 16 bit fields. */
+	private static final int						LIMIT16								= 0xFFFF;
+	
+	/**
+	 * Entries larger than this might exceed 4 GB when compressed, so we prepare
+	 * them for ZIP64.
+	 */
+	private static final long						ZIP64_THRESHOLD				= 0xF0000000L;
+	
+	/** General purpose flag: sizes and CRC follow in a data descriptor. */
+	private static final int						FLAG_DATA_DESCRIPTOR	= 1 << 3;
+	
+	/** General purpose flag: names are encoded in UTF-8. */
+	private static final int						FLAG_UTF8							= 1 << 11;
+	
+	/** The stream to write to. */
+	private CountingOutputStream				out;
+	
+	/** The entries written so far. */
+	private List<CentralDirectoryEntry>	entries;
+	
+	/** Did writing an entry fail? */
+	private boolean											failed;
+	
+	
+	/**
+	 * Instantiates a new ZIP writer.
+	 * 
+	 * @param out
+	 *          the stream to write the ZIP file to, will be closed when closing
+	 *          this writer
+	 */
+	public ZipWriter (OutputStream out)
+	{
+		this.out = new CountingOutputStream (new BufferedOutputStream (out,
+			65536));
+		entries = new ArrayList<CentralDirectoryEntry> ();
+	}
+	
+	
+	/**
+	 * Add a directory.
+	 * 
+	 * @param name
+	 *          the name of the directory, should end with a <code>/</code>
+	 * @param time
+	 *          the modification time
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void putDirectory (String name, long time) throws IOException
+	{
+		checkIntact ();
+		CentralDirectoryEntry entry = new CentralDirectoryEntry (name, time,
+			ZipEntry.STORED, FLAG_UTF8, out.getCount ());
+		entry.directory = true;
+		try
+		{
+			writeLocalHeader (entry, false);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			failed = true;
+			throw e;
+		}
+		entries.add (entry);
+	}
+	
+	
+	/**
+	 * Add an entry, compressing its data on the fly.
+	 * 
+	 * @param name
+	 *          the name of the entry
+	 * @param time
+	 *          the modification time
+	 * @param in
+	 *          the stream providing the uncompressed data
+	 * @param expectedSize
+	 *          the expected size of the uncompressed data, or -1 if unknown
+	 *          (entries expected to be larger than 4 GB are prepared for
+	 *          ZIP64)
+	 * @param deflater
+	 *          the deflater to compress the data
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void putDeflated (String name, long time, InputStream in,
+		long expectedSize, ParallelDeflater deflater) throws IOException
+	{
+		checkIntact ();
+		CentralDirectoryEntry entry = new CentralDirectoryEntry (name, time,
+			ZipEntry.DEFLATED, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, out.getCount ());
+		try
+		{
+			boolean zip64 = expectedSize >= ZIP64_THRESHOLD;
+			writeLocalHeader (entry, zip64);
+			
+			ParallelDeflater.Result result = deflater.deflate (in, out,
+				expectedSize);
+			entry.crc = result.crc;
+			entry.size = result.size;
+			entry.compressedSize = result.compressedSize;
+			
+			// data descriptor, just like java.util.zip we use 64 bit sizes if the
+			// entry was prepared for ZIP64 or if it turned out to be that large
+			writeInt (0x08074b50L);
+			writeInt (entry.crc);
+			if (zip64 || entry.size >= LIMIT32 || entry.compressedSize >= LIMIT32)
+			{
+				writeLong (entry.compressedSize);
+				writeLong (entry.size);
+			}
+			else
+			{
+				writeInt (entry.compressedSize);
+				writeInt (entry.size);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			failed = true;
+			throw e;
+		}
+		entries.add (entry);
+	}
+	
+	
+	/**
+	 * Add an entry whose data is already encoded using <code>method</code>. The
+	 * data will be copied as is.
+	 * 
+	 * @param name
+	 *          the name of the entry
+	 * @param time
+	 *          the modification time
+	 * @param method
+	 *          the compression method, {@link ZipEntry#STORED} or
+	 *          {@link ZipEntry#DEFLATED}
+	 * @param crc
+	 *          the CRC-32 of the uncompressed data
+	 * @param size
+	 *          the size of the uncompressed data
+	 * @param compressedSize
+	 *          the size of the encoded data
+	 * @param data
+	 *          the stream providing the encoded data
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void putRaw (String name, long time, int method, long crc, long size,
+		long compressedSize, InputStream data) throws IOException
+	{
+		checkIntact ();
+		CentralDirectoryEntry entry = new CentralDirectoryEntry (name, time,
+			method, FLAG_UTF8, out.getCount ());
+		entry.crc = crc;
+		entry.size = size;
+		entry.compressedSize = compressedSize;
+		try
+		{
+			writeLocalHeader (entry, size >= LIMIT32 || compressedSize >= LIMIT32);
+			
+			byte[] buf = new byte[65536];
+			long remaining = compressedSize;
+			while (remaining > 0)
+			{
+				int n = data.read (buf, 0, (int) Math.min (buf.length, remaining));
+				if (n < 0)
+					throw new IOException ("unexpected end of data for entry " + name);
+				out.write (buf, 0, n);
+				remaining -= n;
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			failed = true;
+			throw e;
+		}
+		entries.add (entry);
+	}
+	
+	
+	/**
+	 * Flush the data written so far to the underlying stream.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void flush () throws IOException
+	{
+		out.flush ();
+	}
+	
+	
+	/**
+	 * Checks that no entry failed so far.
+	 * 
+	 * @throws IOException
+	 *           if writing a previous entry failed
+	 */
+	private void checkIntact () throws IOException
+	{
+		if (failed)
+			throw new IOException (
+				"zip stream is broken, as writing a previous entry failed");
+	}
+	
+	
+	/**
+	 * Give up on the ZIP file. The underlying stream will be closed without
+	 * writing the central directory, so the result won't look like a valid ZIP
+	 * file.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public void abort () throws IOException
+	{
+		failed = true;
+		out.close ();
+	}
+	
+	
+	/**
+	 * Write the central directory and close the underlying stream. If writing
+	 * any entry failed, the central directory will be skipped, as the data
+	 * between the entries is garbage.
+	 * 
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred, or that the ZIP
+	 *           file is incomplete
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		if (failed)
+		{
+			out.close ();
+			throw new IOException (
+				"zip stream is incomplete, as writing an entry failed");
+		}
+		
+		try
+		{
+			long cdOffset = out.getCount ();
+			for (CentralDirectoryEntry entry : entries)
+				writeCentralDirectoryHeader (entry);
+			long cdSize = out.getCount () - cdOffset;
+			
+			if (entries.size () >= LIMIT16 || cdOffset >= LIMIT32
+				|| cdSize >= LIMIT32)
+			{
+				// ZIP64 end of central directory record
+				long zip64Offset = out.getCount ();
+				writeInt (0x06064b50L);
+				writeLong (44);
+				writeShort (45);
+				writeShort (45);
+				writeInt (0);
+				writeInt (0);
+				writeLong (entries.size ());
+				writeLong (entries.size ());
+				writeLong (cdSize);
+				writeLong (cdOffset);
+				
+				// ZIP64 end of central directory locator
+				writeInt (0x07064b50L);
+				writeInt (0);
+				writeLong (zip64Offset);
+				writeInt (1);
+			}
+			
+			// end of central directory record
+			writeInt (0x06054b50L);
+			writeShort (0);
+			writeShort (0);
+			writeShort (Math.min (entries.size (), LIMIT16));
+			writeShort (Math.min (entries.size (), LIMIT16));
+			writeInt (Math.min (cdSize, LIMIT32));
+			writeInt (Math.min (cdOffset, LIMIT32));
+			writeShort (0);
+		}
+		finally
+		{
+			out.close ();
+		}
+	}
+	
+	
+	/**
+	 * Write the local file header of an entry.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @param zip64
+	 *          should we prepare the entry for ZIP64?
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeLocalHeader (CentralDirectoryEntry entry, boolean zip64)
+		throws IOException
+	{
+		boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+		writeInt (0x04034b50L);
+		writeShort (zip64 ? 45 : 20);
+		writeShort (entry.flags);
+		writeShort (entry.method);
+		writeInt (entry.dosTime);
+		if (descriptor)
+		{
+			writeInt (0);
+			writeInt (zip64 ? LIMIT32 : 0);
+			writeInt (zip64 ? LIMIT32 : 0);
+		}
+		else
+		{
+			writeInt (entry.crc);
+			writeInt (zip64 ? LIMIT32 : entry.compressedSize);
+			writeInt (zip64 ? LIMIT32 : entry.size);
+		}
+		writeShort (entry.name.length);
+		writeShort (zip64 ? 20 : 0);
+		out.write (entry.name);
+		if (zip64)
+		{
+			writeShort (0x0001);
+			writeShort (16);
+			writeLong (descriptor ? 0 : entry.size);
+			writeLong (descriptor ? 0 : entry.compressedSize);
+		}
+	}
+	
+	
+	/**
+	 * Write the central directory header of an entry.
+	 * 
+	 * @param entry
+	 *          the entry
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeCentralDirectoryHeader (CentralDirectoryEntry entry)
+		throws IOException
+	{
+		boolean bigSize = entry.size >= LIMIT32;
+		boolean bigCompressedSize = entry.compressedSize >= LIMIT32;
+		boolean bigOffset = entry.offset >= LIMIT32;
+		int extra = (bigSize ? 8 : 0) + (bigCompressedSize ? 8 : 0)
+			+ (bigOffset ? 8 : 0);
+		boolean zip64 = extra > 0;
+		
+		writeInt (0x02014b50L);
+		writeShort (zip64 ? 45 : 20);
+		writeShort (zip64 ? 45 : 20);
+		writeShort (entry.flags);
+		writeShort (entry.method);
+		writeInt (entry.dosTime);
+		writeInt (entry.crc);
+		writeInt (bigCompressedSize ? LIMIT32 : entry.compressedSize);
+		writeInt (bigSize ? LIMIT32 : entry.size);
+		writeShort (entry.name.length);
+		writeShort (zip64 ? extra + 4 : 0);
+		writeShort (0);
+		writeShort (0);
+		writeShort (0);
+		writeInt (entry.directory ? 0x10 : 0);
+		writeInt (bigOffset ? LIMIT32 : entry.offset);
+		out.write (entry.name);
+		if (zip64)
+		{
+			writeShort (0x0001);
+			writeShort (extra);
+			if (bigSize)
+				writeLong (entry.size);
+			if (bigCompressedSize)
+				writeLong (entry.compressedSize);
+			if (bigOffset)
+				writeLong (entry.offset);
+		}
+	}
+	
+	
+	/**
+	 * Write a 16 bit value in little endian byte order.
+	 * 
+	 * @param v
+	 *          the value
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeShort (int v) throws IOException
+	{
+		out.write (v & 0xff);
+		out.write ( (v >>> 8) & 0xff);
+	}
+	
+	
+	/**
+	 * Write a 32 bit value in little endian byte order.
+	 * 
+	 * @param v
+	 *          the value
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeInt (long v) throws IOException
+	{
+		writeShort ((int) (v & 0xffff));
+		writeShort ((int) ( (v >>> 16) & 0xffff));
+	}
+	
+	
+	/**
+	 * Write a 64 bit value in little endian byte order.
+	 * 
+	 * @param v
+	 *          the value
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private void writeLong (long v) throws IOException
+	{
+		writeInt (v & LIMIT32);
+		writeInt (v >>> 32);
+	}
+	
+	
+	/**
+	 * Convert a Java time to the MS-DOS date and time format.
+	 * 
+	 * @param time
+	 *          the time in milliseconds since the epoch
+	 * @return the MS-DOS date (upper 16 bits) and time (lower 16 bits)
+	 */
+	static long toDosTime (long time)
+	{
+		Calendar cal = new GregorianCalendar ();
+		cal.setTimeInMillis (time);
+		int year = cal.get (Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ( (long) (year - 1980) << 25)
+			| ( (long) (cal.get (Calendar.MONTH) + 1) << 21)
+			| ( (long) cal.get (Calendar.DAY_OF_MONTH) << 16)
+			| (cal.get (Calendar.HOUR_OF_DAY) << 11)
+			| (cal.get (Calendar.MINUTE) << 5) | (cal.get (Calendar.SECOND) >> 1);
+	}
+	
+	/**
+	 * An entry of the central directory.
+	 */
+	private static class CentralDirectoryEntry
+	{
+		
+		/** The UTF-8 encoded name. */
+		private byte[]	name;
+		
+		/** The MS-DOS date and time. */
+		private long		dosTime;
+		
+		/** The compression method. */
+		private int			method;
+		
+		/** The general purpose flags. */
+		private int			flags;
+		
+		/** The offset of the local file header. */
+		private long		offset;
+		
+		/** The CRC-32. */
+		private long		crc;
+		
+		/** The uncompressed size. */
+		private long		size;
+		
+		/** The compressed size. */
+		private long		compressedSize;
+		
+		/** Is it a directory? */
+		private boolean	directory;
+		
+		
+		/**
+		 * Instantiates a new central directory entry.
+		 * 
+		 * @param name
+		 *          the name
+		 * @param time
+		 *          the modification time
+		 * @param method
+		 *          the compression method
+		 * @param flags
+		 *          the general purpose flags
+		 * @param offset
+		 *          the offset of the local file header
+		 */
+		public CentralDirectoryEntry (String name, long time, int method,
+			int flags, long offset)
+		{
+			this.name = name.getBytes (StandardCharsets.UTF_8);
+			this.dosTime = toDosTime (time);
+			this.method = method;
+			this.flags = flags;
+			this.offset = offset;
+		}
+	}
+	
+	/**
+	 * An output stream counting the bytes written.
+	 */
+	private static class CountingOutputStream
+		extends FilterOutputStream
+	{
+		
+		/** The number of bytes written. */
+		private long	count;
+		
+		
+		/**
+		 * Instantiates a new counting output stream.
+		 * 
+		 * @param out
+		 *          the underlying stream
+		 */
+		public CountingOutputStream (OutputStream out)
+		{
+			super (out);
+		}
+		
+		
+		/**
+		 * Gets the number of bytes written.
+		 * 
+		 * @return the count
+		 */
+		public long getCount ()
+		{
+			return count;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write (int b) throws IOException
+		{
+			out.write (b);
+			count++;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException
+		{
+			out.write (b, off, len);
+			count += len;
+		}
+	}
+}
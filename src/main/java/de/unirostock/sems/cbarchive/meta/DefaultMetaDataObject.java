@@ -32,6 +32,8 @@
  */
 package de.unirostock.sems.cbarchive.meta;
 
+import java.util.List;
+
 import org.jdom2.Element;
 
 
@@ -73,6 +75,21 @@ public class DefaultMetaDataObject
 	}
 	
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * de.unirostock.sems.cbarchive.meta.MetaDataObject#getExportElements(java.
+	 * lang.String)
+	 */
+	@Override
+	List<Element> getExportElements (String about)
+	{
+		// no need to copy anything, we'll only stream the elements
+		return description.getChildren ();
+	}
+	
+	
 	/**
 	 * Try to read a meta data object.
 	 * 
@@ -32,21 +32,25 @@
  */
 package de.unirostock.sems.cbarchive.meta;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 
-import org.jdom2.Document;
-import org.jdom2.Element;
 import org.jdom2.JDOMException;
 
 import de.binfalse.bflog.LOGGER;
@@ -103,113 +107,210 @@ public class MetaDataFile
 			IOException,
 			CombineArchiveException
 	{
-		Document doc = null;
+		MetaDataStreamReader reader = null;
 		try
 		{
-			doc = Utils.readXmlDocument (file);
+			reader = new MetaDataStreamReader (file);
 		}
-		catch (JDOMException e)
+		catch (XMLStreamException e)
 		{
-			LOGGER.error (e, "cannot read manifest of archive");
-			errors.add ("cannot read manifest of archive. xml seems to be invalid.");
+			LOGGER.error (e, "cannot read meta data file ", file);
+			errors.add ("cannot read meta data file " + file
+				+ ". xml seems to be invalid.");
 			if (!continueOnError)
-				throw e;
+				throw new JDOMException ("cannot read meta data file " + file, e);
 			return;
 		}
 		catch (IOException e)
 		{
-			LOGGER.error (e, "cannot read manifest of archive.");
-			errors.add ("cannot read manifest of archive. io error.");
+			LOGGER.error (e, "cannot read meta data file ", file);
+			errors.add ("cannot read meta data file " + file + ". io error.");
 			if (!continueOnError)
 				throw e;
 			return;
 		}
 		
-		List<Element> nl = Utils.getElementsByTagName (doc.getRootElement (),
-			"Description", Utils.rdfNS);
-		for (int i = 0; i < nl.size (); i++)
+		// paths of the meta data files, for meta data about meta data
+		Set<String> metaDataPaths = new HashSet<String> ();
+		if (metaDataFiles != null)
+			for (Path p : metaDataFiles)
+				metaDataPaths.add (p.toString ());
+		
+		try
+		{
+			for (int i = 0; reader.next (); i++)
+				readDescription (reader, i, file.toString (), entries, archive,
+					metaMetaHolder, metaDataPaths, continueOnError, errors);
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot read meta data file ", file);
+			errors.add ("cannot read meta data file " + file
+				+ ". xml seems to be invalid.");
+			if (!continueOnError)
+				throw new JDOMException ("cannot read meta data file " + file, e);
+		}
+		finally
+		{
+			reader.close ();
+		}
+	}
+	
+	
+	/**
+	 * Read meta data from a stream, e.g. while streaming through an archive.
+	 * Descriptions are associated to the <code>entities</code> they are about,
+	 * mapped by their location (starting with <code>/</code>). The stream will
+	 * not be closed.
+	 * 
+	 * @param in
+	 *          the stream providing the meta data
+	 * @param name
+	 *          the name of the meta data file, used in error messages
+	 * @param entities
+	 *          the entities of the corresponding archive, mapped by their
+	 *          location
+	 * @param archive
+	 *          the holder of descriptions about the archive itself
+	 * @param metaMetaHolder
+	 *          the holder of descriptions about meta data files
+	 * @param metaDataPaths
+	 *          the locations of the meta data files in the archive
+	 * @param continueOnError
+	 *          ignore errors and continue (as far as possible)
+	 * @param errors
+	 *          the list of occurred errors
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws CombineArchiveException
+	 *           if a description cannot be associated to an entity
+	 */
+	public static void readMetaData (final InputStream in, String name,
+		Map<String, ? extends MetaDataHolder> entities, MetaDataHolder archive,
+		MetaDataHolder metaMetaHolder, Set<String> metaDataPaths,
+		boolean continueOnError, List<String> errors)
+		throws IOException,
+			CombineArchiveException
+	{
+		// the reader would close the stream
+		InputStream shielded = new FilterInputStream (in)
 		{
-			Element current = nl.get (i);
-			String about = current.getAttributeValue ("about", Utils.rdfNS);
-			if (about == null)
-			{
-				LOGGER.error ("meta description " + i + " in " + file
-					+ " does not contain an `about` value. so we cannot assign it to an entity.");
-				errors.add ("meta description " + i + " in " + file
-					+ " does not contain an `about` value. so we cannot assign it to an entity.");
-				if (!continueOnError)
-					throw new CombineArchiveException ("meta description " + i + " in "
-						+ file
-						+ " does not contain an `about` value. so we cannot assign it to an entity.");
-				continue;
-			}
-			
-			if (about.equals (".") || about.equals ("/"))
-			{
-				// this entry describes the archive itself
-				if (!addMetaToEntry (archive, current, null))
-					LOGGER.warn ("could not parse description for ", about);
-				continue;
-			}
-			
-			if (about.startsWith ("./"))
-				about = about.substring (2);
-			while (about.startsWith ("/"))
-				about = about.substring (1);
-			about = "/" + about;
-			MetaDataHolder currentEntry = null;
-			String fragmentIdentifier = null;
-			
-			about = Utils.pathFixer (Paths.get (about).normalize ().toString ());
-			
-			// try to find the corresponding entry
-			for (ArchiveEntry entry : entries.values ())
-			{
-				if (about.startsWith (entry.getFilePath ())
-					&& (about.length () == entry.getFilePath ().length ()
-						|| about.charAt (entry.getFilePath ().length ()) == '#'))
-				{
-					currentEntry = entry;
-					if (about.length () > entry.getFilePath ().length ()
-						&& about.charAt (entry.getFilePath ().length ()) == '#')
-						fragmentIdentifier = about
-							.substring (entry.getFilePath ().length () - 1);
-					break;
-				}
-			}
-			
-			if (currentEntry == null && metaDataFiles != null)
-			{
-				for (Path p : metaDataFiles)
-				{
-					String path = p.toString ();
-					if (about.startsWith (path) && (about.length () == path.length ()
-						|| about.charAt (path.length ()) == '#'))
-					{
-						currentEntry = metaMetaHolder;
-						if (about.length () > path.length ()
-							&& about.charAt (path.length ()) == '#')
-							fragmentIdentifier = about.substring (path.length () - 1);
-						break;
-					}
-				}
-			}
 			
-			if (currentEntry == null)
+			@Override
+			public void close () throws IOException
 			{
-				LOGGER.error ("found no entry for description ", i, " in ", file,
-					" (about=", about, ").");
-				errors.add ("found no entry for description " + i + " in " + file
-					+ " (about=" + about + ").");
-				if (!continueOnError)
-					throw new CombineArchiveException ("found no entry for description "
-						+ current + "(" + i + ") in " + file + " (about=" + about + ").");
-				continue;
 			}
-			
-			if (!addMetaToEntry (currentEntry, current, fragmentIdentifier))
+		};
+		
+		try (MetaDataStreamReader reader = new MetaDataStreamReader (shielded))
+		{
+			for (int i = 0; reader.next (); i++)
+				readDescription (reader, i, name, entities, archive, metaMetaHolder,
+					metaDataPaths, continueOnError, errors);
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot read meta data file ", name);
+			errors.add ("cannot read meta data file " + name
+				+ ". xml seems to be invalid.");
+			if (!continueOnError)
+				throw new IOException ("cannot read meta data file " + name, e);
+		}
+	}
+	
+	
+	/**
+	 * Read the current description of a meta data file and associate it to the
+	 * entity it is about.
+	 * 
+	 * @param reader
+	 *          the reader, positioned at the description
+	 * @param i
+	 *          the number of the description in the file
+	 * @param file
+	 *          the name of the file containing meta data
+	 * @param entries
+	 *          the entries available in the corresponding archive
+	 * @param archive
+	 *          the archive which contains this file
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @param metaDataPaths
+	 *          the paths of the meta data files in the archive
+	 * @param continueOnError
+	 *          ignore errors and continue (as far as possible)
+	 * @param errors
+	 *          the list of occurred errors
+	 * @throws CombineArchiveException
+	 *           the combine archive exception
+	 */
+	private static void readDescription (MetaDataStreamReader reader, int i,
+		String file, Map<String, ? extends MetaDataHolder> entries,
+		MetaDataHolder archive, MetaDataHolder metaMetaHolder,
+		Set<String> metaDataPaths,
+		boolean continueOnError, List<String> errors)
+		throws CombineArchiveException
+	{
+		String about = reader.getAbout ();
+		if (about == null)
+		{
+			LOGGER.error ("meta description " + i + " in " + file
+				+ " does not contain an `about` value. so we cannot assign it to an entity.");
+			errors.add ("meta description " + i + " in " + file
+				+ " does not contain an `about` value. so we cannot assign it to an entity.");
+			if (!continueOnError)
+				throw new CombineArchiveException ("meta description " + i + " in "
+					+ file
+					+ " does not contain an `about` value. so we cannot assign it to an entity.");
+			return;
+		}
+		
+		if (about.equals (".") || about.equals ("/"))
+		{
+			// this entry describes the archive itself
+			if (!addMetaToEntry (archive, reader.getMetaDataObject (), null))
 				LOGGER.warn ("could not parse description for ", about);
+			return;
+		}
+		
+		// split off the fragment identifier, the rest is the entity's location
+		String location = about;
+		String fragmentIdentifier = null;
+		int fragmentStart = about.indexOf ('#');
+		if (fragmentStart >= 0)
+		{
+			if (about.length () > fragmentStart + 1)
+				fragmentIdentifier = about.substring (fragmentStart + 1);
+			location = about.substring (0, fragmentStart);
 		}
+		
+		if (location.startsWith ("./"))
+			location = location.substring (2);
+		while (location.startsWith ("/"))
+			location = location.substring (1);
+		location = Utils
+			.pathFixer (Paths.get ("/" + location).normalize ().toString ());
+		
+		// try to find the corresponding entry
+		MetaDataHolder currentEntry = entries.get (location);
+		if (currentEntry == null && metaDataPaths.contains (location))
+			currentEntry = metaMetaHolder;
+		
+		if (currentEntry == null)
+		{
+			LOGGER.error ("found no entry for description ", i, " in ", file,
+				" (about=", about, ").");
+			errors.add ("found no entry for description " + i + " in " + file
+				+ " (about=" + about + ").");
+			if (!continueOnError)
+				throw new CombineArchiveException ("found no entry for description "
+					+ i + " in " + file + " (about=" + about + ").");
+			return;
+		}
+		
+		if (!addMetaToEntry (currentEntry, reader.getMetaDataObject (),
+			fragmentIdentifier))
+			LOGGER.warn ("could not parse description for ", about);
 	}
 	
 	
@@ -231,31 +332,31 @@ public class MetaDataFile
 			IOException
 	{
 		int added = 0;
-		Document doc = Utils.readXmlDocument (file);
-		
-		List<Element> nl = Utils.getElementsByTagName (doc.getRootElement (),
-			"Description", Utils.rdfNS);
-		for (int i = 0; i < nl.size (); i++)
+		try (MetaDataStreamReader reader = new MetaDataStreamReader (file))
 		{
-			Element current = nl.get (i);
-			String fragmentIdentifier = null;
-			String about = current.getAttributeValue ("about", Utils.rdfNS);
-			if (about != null)
+			while (reader.next ())
 			{
-				// is there a fragment identifier
-				int p = about.indexOf ("#");
-				if (p >= 0 && about.length () > p + 1)
-					fragmentIdentifier = about.substring (p + 1);
+				String fragmentIdentifier = null;
+				String about = reader.getAbout ();
+				if (about != null)
+				{
+					// is there a fragment identifier
+					int p = about.indexOf ("#");
+					if (p >= 0 && about.length () > p + 1)
+						fragmentIdentifier = about.substring (p + 1);
+				}
+				
+				// the about will be set to the entry's path when adding the object
+				if (!addMetaToEntry (entry, reader.getMetaDataObject (),
+					fragmentIdentifier))
+					LOGGER.warn ("could not parse description for ", about);
+				else
+					added++;
 			}
-			if (fragmentIdentifier != null)
-				current.setAttribute ("about", entry.getEntityPath () + "#" + fragmentIdentifier, Utils.rdfNS);
-			else
-				current.setAttribute ("about", entry.getEntityPath (), Utils.rdfNS);
-			
-			if (!addMetaToEntry (entry, current, fragmentIdentifier))
-				LOGGER.warn ("could not parse description for ", about);
-			else
-				added++;
+		}
+		catch (XMLStreamException e)
+		{
+			throw new JDOMException ("cannot read meta data file " + file, e);
 		}
 		return added;
 	}
@@ -267,50 +368,21 @@ public class MetaDataFile
 	 * This function won't associate the same meta data twice to the same object.
 	 * 
 	 * @param entity
-	 *          the entity that is described by <code>subtree</code>
-	 * @param subtree
-	 *          the current xml subtree which describes <code>entry</code>
+	 *          the entity that is described by <code>object</code>
+	 * @param object
+	 *          the meta data object which describes <code>entity</code>
 	 * @param fragmentIdentifier
 	 *          the fragment identifier
 	 * @return true, if successful
 	 */
-	private static boolean addMetaToEntry (MetaDataHolder entity, Element subtree,
-		String fragmentIdentifier)
+	private static boolean addMetaToEntry (MetaDataHolder entity,
+		MetaDataObject object, String fragmentIdentifier)
 	{
-		if (entity == null)
-			return false;
-		
-		MetaDataObject object = null;
-		
-		// is that omex?
-		object = OmexMetaDataObject.tryToRead (subtree);
-		
-		/*
-		 * ···································
-		 * optional: other meta data formats..
-		 * ···································
-		 */
-		
-		if (object == null)
-		{
-			// is it default?
-			object = DefaultMetaDataObject.tryToRead (subtree);
-		}
-		
-		if (object != null)
-		{
-			object.setAbout (entity, fragmentIdentifier);
-			
-			// do not add the same meta twice...
-			for (MetaDataObject obj : entity.getDescriptions ())
-				if (object.equals (obj))
-					return true;
-				
-			entity.addDescription (fragmentIdentifier, object);
-		}
-		else
+		if (entity == null || object == null)
 			return false;
 		
+		// the entity won't add the same meta twice...
+		entity.addDescription (fragmentIdentifier, object);
 		return true;
 	}
 	
@@ -318,7 +390,7 @@ public class MetaDataFile
 	/**
 	 * Write the meta data about the {@link CombineArchive archive} and its
 	 * {@link ArchiveEntry entries} given in <code>archive</code> and
-	 * <code>entries</code> to a single meta data files.
+	 * <code>entries</code> to multiple meta data files.
 	 * 
 	 * <p>
 	 * This method will create one meta data file per entry. Meta data files will
@@ -346,58 +418,75 @@ public class MetaDataFile
 		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
 		MetaDataHolder metaMetaHolder) throws IOException, TransformerException
 	{
-		List<File> outputs = new ArrayList<File> ();
-		
-		// archive itself
-		File output = getMetaOutputFile (baseDir);
-		
-		Document xmlDoc = new Document ();
-		Element rdf = new Element ("RDF", Utils.rdfNS);
-		xmlDoc.addContent (rdf);
-		rdf.addNamespaceDeclaration (Utils.dcNS);
-		rdf.addNamespaceDeclaration (Utils.vcNS);
-		
-		exportMetaData (archive, rdf);
-		
-		// meta of meta
-		exportMetaData (metaMetaHolder, rdf);
-		
-		try (BufferedWriter bw = new BufferedWriter (new FileWriter (output)))
-		{
-			bw.write (Utils.prettyPrintDocument (xmlDoc));
-		}
-		catch (IOException | TransformerException e)
-		{
-			LOGGER.error (e, "cannot write omex descriptions to ", output);
-			throw e;
-		}
-		outputs.add (output);
-		
-		// all entries
-		for (ArchiveEntry e : entries.values ())
-		{
-			output = getMetaOutputFile (baseDir);
-			
-			xmlDoc = new Document ();
-			rdf = new Element ("RDF", Utils.rdfNS);
-			xmlDoc.addContent (rdf);
-			rdf.addNamespaceDeclaration (Utils.dcNS);
-			rdf.addNamespaceDeclaration (Utils.vcNS);
-			exportMetaData (e, rdf);
-			
-			try (BufferedWriter bw = new BufferedWriter (new FileWriter (output)))
-			{
-				bw.write (Utils.prettyPrintDocument (xmlDoc));
-			}
-			catch (IOException | TransformerException ex)
-			{
-				LOGGER.error (ex, "cannot write omex descriptions to ", output);
-				throw ex;
-			}
-			
-			outputs.add (output);
-		}
-		
+		return toFiles (writeFiles (baseDir.toPath (), entries, archive,
+			metaMetaHolder));
+	}
+	
+	
+	/**
+	 * Write the meta data about the {@link CombineArchive archive} and its
+	 * {@link ArchiveEntry entries} given in <code>archive</code> and
+	 * <code>entries</code> to multiple meta data files.
+	 * 
+	 * <p>
+	 * Same as {@link #writeFiles(File,HashMap,CombineArchive,MetaDataHolder)},
+	 * but <code>baseDir</code> may be located in any file system, e.g. in the
+	 * ZIP file system of an archive. The XML documents are streamed directly to
+	 * the target files.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base directory to store the files
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive which will contain the files
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @return the list of files that were created
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static List<Path> writeFiles (Path baseDir,
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder) throws IOException
+	{
+		return writeFiles (baseDir, entries, archive, metaMetaHolder, false);
+	}
+	
+	
+	/**
+	 * Write the meta data about the {@link CombineArchive archive} and its
+	 * {@link ArchiveEntry entries} given in <code>archive</code> and
+	 * <code>entries</code> to multiple meta data files.
+	 * 
+	 * <p>
+	 * Same as {@link #writeFiles(Path,HashMap,CombineArchive,MetaDataHolder)},
+	 * but optionally writes compact documents without indentation.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base directory to store the files
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive which will contain the files
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @param compact
+	 *          write compact documents?
+	 * @return the list of files that were created
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static List<Path> writeFiles (Path baseDir,
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder, boolean compact) throws IOException
+	{
+		List<Path> outputs = new ArrayList<Path> ();
+		for (List<MetaDataHolder> entities : groupEntities (entries, archive,
+			metaMetaHolder, true))
+			outputs.add (writeMetaData (baseDir, entities, compact));
 		return outputs;
 	}
 	
@@ -424,8 +513,7 @@ public class MetaDataFile
 	 *          the archive which will contain the files
 	 * @param metaMetaHolder
 	 *          the meta data of meta data
-	 * @return the list of files th
-	 *         the meta data of meta dataat were created (should be always of size
+	 * @return the list of files that were created (should be always of size
 	 *         one)
 	 * @throws IOException
 	 *           Signals that an I/O exception has occurred.
@@ -436,37 +524,292 @@ public class MetaDataFile
 		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
 		MetaDataHolder metaMetaHolder) throws IOException, TransformerException
 	{
-		File output = getMetaOutputFile (baseDir);
-		
-		Document xmlDoc = new Document ();
-		Element rdf = new Element ("RDF", Utils.rdfNS);
-		xmlDoc.addContent (rdf);
-		rdf.addNamespaceDeclaration (Utils.dcNS);
-		rdf.addNamespaceDeclaration (Utils.vcNS);
+		return toFiles (writeFile (baseDir.toPath (), entries, archive,
+			metaMetaHolder));
+	}
+	
+	
+	/**
+	 * Write the meta data about the {@link CombineArchive archive} and its
+	 * {@link ArchiveEntry entries} given in <code>archive</code> and
+	 * <code>entries</code> to a single meta data file.
+	 * 
+	 * <p>
+	 * Same as {@link #writeFile(File,HashMap,CombineArchive,MetaDataHolder)},
+	 * but <code>baseDir</code> may be located in any file system, e.g. in the
+	 * ZIP file system of an archive. The XML document is streamed directly to
+	 * the target file.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base directory to store the file
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive which will contain the files
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @return the list of files that were created (should be always of size
+	 *         one)
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static List<Path> writeFile (Path baseDir,
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder) throws IOException
+	{
+		return writeFile (baseDir, entries, archive, metaMetaHolder, false);
+	}
+	
+	
+	/**
+	 * Write the meta data about the {@link CombineArchive archive} and its
+	 * {@link ArchiveEntry entries} given in <code>archive</code> and
+	 * <code>entries</code> to a single meta data file.
+	 * 
+	 * <p>
+	 * Same as {@link #writeFile(Path,HashMap,CombineArchive,MetaDataHolder)},
+	 * but optionally writes a compact document without indentation.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base directory to store the file
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive which will contain the files
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @param compact
+	 *          write a compact document?
+	 * @return the list of files that were created (should be always of size
+	 *         one)
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static List<Path> writeFile (Path baseDir,
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder, boolean compact) throws IOException
+	{
+		List<Path> outputs = new ArrayList<Path> ();
+		for (List<MetaDataHolder> entities : groupEntities (entries, archive,
+			metaMetaHolder, false))
+			outputs.add (writeMetaData (baseDir, entities, compact));
+		return outputs;
+	}
+	
+	
+	/**
+	 * Checks whether the meta data files in <code>baseDir</code> are up to date.
+	 * 
+	 * <p>
+	 * The meta data is serialised exactly like
+	 * {@link #writeFiles(Path,HashMap,CombineArchive,MetaDataHolder,boolean)} or
+	 * {@link #writeFile(Path,HashMap,CombineArchive,MetaDataHolder,boolean)}
+	 * would do after deleting <code>files</code>, but instead of writing the
+	 * documents they are compared to the existing <code>files</code>. Thus, if
+	 * this method returns <code>true</code> there is no need to rewrite the meta
+	 * data.
+	 * </p>
+	 * 
+	 * @param baseDir
+	 *          the base directory of the meta data files
+	 * @param files
+	 *          the existing meta data files
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive which contains the files
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @param multipleFiles
+	 *          are there multiple meta data files, one for each entry?
+	 * @param compact
+	 *          are the documents compact?
+	 * @return true, if writing the meta data would result in exactly the same
+	 *         <code>files</code>
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static boolean isUpToDate (Path baseDir, List<Path> files,
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder, boolean multipleFiles, boolean compact)
+		throws IOException
+	{
+		List<List<MetaDataHolder>> groups = groupEntities (entries, archive,
+			metaMetaHolder, multipleFiles);
+		if (groups.size () != files.size ())
+			return false;
 		
-		// archive itself
-		exportMetaData (archive, rdf);
+		for (int i = 0; i < groups.size (); i++)
+		{
+			Path file = files.get (i);
+			if (!file.equals (baseDir.resolve (getMetaFileName (i)))
+				|| !Files.isRegularFile (file))
+				return false;
+			
+			try (InputStream in = Files.newInputStream (file))
+			{
+				Utils.ComparingOutputStream out = new Utils.ComparingOutputStream (in);
+				streamMetaData (out, groups.get (i), compact);
+				if (!out.isEqual ())
+					return false;
+			}
+			catch (XMLStreamException e)
+			{
+				LOGGER.error (e, "cannot serialise omex descriptions");
+				throw new IOException ("cannot serialise omex descriptions", e);
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Groups the entities whose meta data needs to be written. Every group
+	 * corresponds to one meta data file.
+	 * 
+	 * @param entries
+	 *          the archive entries
+	 * @param archive
+	 *          the archive
+	 * @param metaMetaHolder
+	 *          the meta data of meta data
+	 * @param multipleFiles
+	 *          create a group for each entry?
+	 * @return the groups of entities
+	 */
+	private static List<List<MetaDataHolder>> groupEntities (
+		HashMap<String, ArchiveEntry> entries, CombineArchive archive,
+		MetaDataHolder metaMetaHolder, boolean multipleFiles)
+	{
+		List<List<MetaDataHolder>> groups = new ArrayList<List<MetaDataHolder>> ();
 		
-		// meta of meta
-		exportMetaData (metaMetaHolder, rdf);
+		// archive itself and meta of meta
+		List<MetaDataHolder> entities = new ArrayList<MetaDataHolder> ();
+		entities.add (archive);
+		entities.add (metaMetaHolder);
+		groups.add (entities);
 		
 		// all entries
 		for (ArchiveEntry e : entries.values ())
-			exportMetaData (e, rdf);
+		{
+			if (multipleFiles)
+			{
+				entities = new ArrayList<MetaDataHolder> ();
+				groups.add (entities);
+			}
+			entities.add (e);
+		}
 		
-		try (BufferedWriter bw = new BufferedWriter (new FileWriter (output)))
+		return groups;
+	}
+	
+	
+	/**
+	 * Streams the meta data of some entities to a new file in
+	 * <code>baseDir</code>.
+	 * 
+	 * @param baseDir
+	 *          the base directory
+	 * @param entities
+	 *          the entities whose meta data should be written
+	 * @param compact
+	 *          write a compact document?
+	 * @return the file that was written
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	private static Path writeMetaData (Path baseDir,
+		List<MetaDataHolder> entities, boolean compact) throws IOException
+	{
+		Path output = getMetaOutputFile (baseDir);
+		try (OutputStream out = Files.newOutputStream (output))
 		{
-			bw.write (Utils.prettyPrintDocument (xmlDoc));
+			streamMetaData (out, entities, compact);
 		}
-		catch (IOException | TransformerException e)
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot write omex descriptions to ", output);
+			throw new IOException ("cannot write omex descriptions to " + output, e);
+		}
+		catch (IOException e)
 		{
 			LOGGER.error (e, "cannot write omex descriptions to ", output);
 			throw e;
 		}
-		
-		List<File> outputs = new ArrayList<File> ();
-		outputs.add (output);
-		return outputs;
+		return output;
+	}
+	
+	
+	/**
+	 * Writes the meta data of some entities as a single document to a stream.
+	 * 
+	 * <p>
+	 * This allows to write meta data files without any file system, e.g.
+	 * directly into a ZIP stream. The stream will not be closed.
+	 * </p>
+	 * 
+	 * @param out
+	 *          the stream to write to
+	 * @param entities
+	 *          the entities whose meta data should be written
+	 * @param compact
+	 *          write a compact document?
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 */
+	public static void writeMetaData (OutputStream out,
+		List<MetaDataHolder> entities, boolean compact) throws IOException
+	{
+		try
+		{
+			streamMetaData (out, entities, compact);
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot write omex descriptions");
+			throw new IOException ("cannot write omex descriptions", e);
+		}
+	}
+	
+	
+	/**
+	 * Streams the meta data of some entities as a single document.
+	 * 
+	 * @param out
+	 *          the stream to write to
+	 * @param entities
+	 *          the entities whose meta data should be written
+	 * @param compact
+	 *          write a compact document?
+	 * @throws XMLStreamException
+	 *           the XML stream exception
+	 */
+	private static void streamMetaData (OutputStream out,
+		List<MetaDataHolder> entities, boolean compact) throws XMLStreamException
+	{
+		MetaDataStreamWriter writer = new MetaDataStreamWriter (out, compact);
+		writer.writeStartDocument ();
+		for (MetaDataHolder entity : entities)
+			writer.writeDescriptions (entity);
+		writer.writeEndDocument ();
+	}
+	
+	
+	/**
+	 * Converts a list of paths to a list of files.
+	 * 
+	 * @param paths
+	 *          the paths
+	 * @return the files
+	 */
+	private static List<File> toFiles (List<Path> paths)
+	{
+		List<File> files = new ArrayList<File> ();
+		for (Path p : paths)
+			files.add (p.toFile ());
+		return files;
 	}
 	
 	
@@ -477,39 +820,27 @@ public class MetaDataFile
 	 *          the base directory
 	 * @return the output file
 	 */
-	private static File getMetaOutputFile (File baseDir)
+	private static Path getMetaOutputFile (Path baseDir)
 	{
-		File output = new File (
-			baseDir.getAbsolutePath () + File.separator + "metadata.rdf");
 		int it = 0;
-		while (output.exists ())
-			output = new File (baseDir.getAbsolutePath () + File.separator
-				+ "metadata-" + ++it + ".rdf");
+		Path output = baseDir.resolve (getMetaFileName (it));
+		while (Files.exists (output))
+			output = baseDir.resolve (getMetaFileName (++it));
 		
 		return output;
 	}
 	
 	
 	/**
-	 * Export the meta data of an entity.
+	 * Gets the name of the <code>n</code>-th meta data file.
 	 * 
-	 * @param entity
-	 *          the entity
-	 * @param rdf
-	 *          the RDF node which will host the description
+	 * @param n
+	 *          the number of the file
+	 * @return the file name
 	 */
-	private static void exportMetaData (MetaDataHolder entity, Element rdf)
+	private static String getMetaFileName (int n)
 	{
-		for (MetaDataObject meta : entity.getDescriptions ())
-		{
-			Element Description = new Element ("Description", Utils.rdfNS);
-			String about = meta.getAbout ();
-			if (!about.startsWith("."))
-				about = "." + about;
-			Description.setAttribute ("about", about, Utils.rdfNS);
-			rdf.addContent (Description);
-			meta.injectDescription (Description);
-		}
+		return n == 0 ? "metadata.rdf" : "metadata-" + n + ".rdf";
 	}
 	
 	
@@ -32,8 +32,11 @@
  */
 package de.unirostock.sems.cbarchive.meta;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 
@@ -48,13 +51,23 @@ public abstract class MetaDataHolder
 	/** The descriptions about the entity. */
 	protected List<MetaDataObject> descriptions;
 	
+	/** The index of the descriptions, to quickly find duplicates. */
+	private Map<MetaDataObject, MetaDataObject>	descriptionIndex;
+	
+	/** The descriptions that changed since they were indexed. */
+	private List<MetaDataObject>								changedDescriptions;
+	
+	/** The number of edits of the descriptions when they were indexed. */
+	private long																indexedEdits;
+	
 	
 	/**
 	 * Instantiates a new MetaDataHolder.
 	 */
 	public MetaDataHolder ()
 	{
-		descriptions = new ArrayList<MetaDataObject> ();
+		descriptions = new DescriptionList ();
+		changedDescriptions = new ArrayList<MetaDataObject> ();
 	}
 	
 	
@@ -66,6 +79,20 @@ public abstract class MetaDataHolder
 	public abstract String getEntityPath ();
 	
 	
+	/**
+	 * Makes sure the descriptions of this entity are available.
+	 * <p>
+	 * Holders whose meta data is parsed on demand override this method to read
+	 * the meta data before the descriptions are accessed for the first time. The
+	 * default implementation does nothing.
+	 * </p>
+	 */
+	protected void loadDescriptions ()
+	{
+		// nothing to do by default
+	}
+	
+	
 	/**
 	 * Gets the {@link MetaDataObject MetaDataObjects} describing this entity.
 	 * <p>
@@ -78,6 +105,7 @@ public abstract class MetaDataHolder
 	 */
 	public List<MetaDataObject> getDescriptions ()
 	{
+		loadDescriptions ();
 		return this.descriptions;
 	}
 	
@@ -91,10 +119,77 @@ public abstract class MetaDataHolder
 	 */
 	public boolean removeDescription (MetaDataObject toDelete)
 	{
+		loadDescriptions ();
+		// the list is modified, so the index will be rebuilt when it's needed
 		return descriptions.remove (toDelete);
 	}
 	
 	
+	/**
+	 * Signals that one of our descriptions is about to change, so that its hash
+	 * will change as well. The description is removed from the index and
+	 * re-indexed with its new hash as soon as the index is needed again.
+	 * 
+	 * @param description
+	 *          the description that is about to change, its hash must still be
+	 *          the one it was indexed with
+	 */
+	void descriptionChanging (MetaDataObject description)
+	{
+		if (descriptionIndex == null)
+			return;
+		if (descriptionIndex.get (description) == description)
+		{
+			descriptionIndex.remove (description);
+			changedDescriptions.add (description);
+		}
+		else
+			// not the indexed instance, e.g. a duplicate: start over
+			descriptionIndex = null;
+	}
+	
+	
+	/**
+	 * Gets the index of the descriptions. Descriptions that changed since they
+	 * were indexed are re-indexed, and the whole index will be rebuilt if the
+	 * list of descriptions was modified in any way since it was indexed.
+	 * 
+	 * @return the index
+	 */
+	private Map<MetaDataObject, MetaDataObject> getDescriptionIndex ()
+	{
+		long edits = getDescriptionEdits ();
+		if (descriptionIndex == null || edits < 0 || edits != indexedEdits)
+		{
+			descriptionIndex = new HashMap<MetaDataObject, MetaDataObject> ();
+			for (MetaDataObject description : descriptions)
+				descriptionIndex.put (description, description);
+			changedDescriptions.clear ();
+			indexedEdits = edits;
+		}
+		else
+		{
+			for (MetaDataObject changed : changedDescriptions)
+				descriptionIndex.put (changed, changed);
+			changedDescriptions.clear ();
+		}
+		return descriptionIndex;
+	}
+	
+	
+	/**
+	 * Gets the number of edits of the list of descriptions.
+	 * 
+	 * @return the number of edits, or -1 if the list doesn't count its edits
+	 */
+	private long getDescriptionEdits ()
+	{
+		if (descriptions instanceof DescriptionList)
+			return ((DescriptionList) descriptions).edits;
+		return -1;
+	}
+	
+	
 	/**
 	 * Adds another meta object describing this entry.
 	 * 
@@ -106,14 +201,17 @@ public abstract class MetaDataHolder
 	public void addDescription (String fragmentIdentifier,
 		MetaDataObject description)
 	{
+		loadDescriptions ();
 		description.setAbout (this, fragmentIdentifier);
 		
 		// we do not need to store meta data twice...
-		for (MetaDataObject descr : descriptions)
-			if (description.equals (descr))
-				return;
-			
+		Map<MetaDataObject, MetaDataObject> index = getDescriptionIndex ();
+		if (index.containsKey (description))
+			return;
+		
+		index.put (description, description);
 		this.descriptions.add (description);
+		indexedEdits = getDescriptionEdits ();
 	}
 	
 	
@@ -127,4 +225,101 @@ public abstract class MetaDataHolder
 	{
 		addDescription (null, description);
 	}
+	
+	/**
+	 * The Class DescriptionList is the list of descriptions, which counts every
+	 * modification. Even modifications that don't change the size of the list,
+	 * such as {@link List#set(int,Object)}, make us rebuild the index.
+	 */
+	private static class DescriptionList
+		extends AbstractList<MetaDataObject>
+	{
+		
+		/** The descriptions. */
+		private ArrayList<MetaDataObject>	list	= new ArrayList<MetaDataObject> ();
+		
+		/** The number of modifications. */
+		private long											edits;
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public MetaDataObject get (int index)
+		{
+			return list.get (index);
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size ()
+		{
+			return list.size ();
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#set(int, java.lang.Object)
+		 */
+		@Override
+		public MetaDataObject set (int index, MetaDataObject element)
+		{
+			MetaDataObject old = list.set (index, element);
+			edits++;
+			return old;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#add(int, java.lang.Object)
+		 */
+		@Override
+		public void add (int index, MetaDataObject element)
+		{
+			list.add (index, element);
+			edits++;
+			modCount++;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#remove(int)
+		 */
+		@Override
+		public MetaDataObject remove (int index)
+		{
+			MetaDataObject old = list.remove (index);
+			edits++;
+			modCount++;
+			return old;
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractList#removeRange(int, int)
+		 */
+		@Override
+		protected void removeRange (int fromIndex, int toIndex)
+		{
+			list.subList (fromIndex, toIndex).clear ();
+			edits++;
+			modCount++;
+		}
+	}
 }
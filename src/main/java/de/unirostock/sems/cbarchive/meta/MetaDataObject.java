@@ -32,14 +32,14 @@
  */
 package de.unirostock.sems.cbarchive.meta;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.xml.transform.TransformerException;
-
-import org.jdom2.Document;
+import org.jdom2.Attribute;
+import org.jdom2.Content;
 import org.jdom2.Element;
+import org.jdom2.Text;
 
-import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.Utils;
 
 
@@ -58,9 +58,18 @@ public abstract class MetaDataObject
 	/** The fragment identifier. */
 	protected String					fragmentIdentifier;
 	
-	/** The description. */
+	/**
+	 * The description. Subclasses may leave it null until
+	 * {@link #createXmlDescription()} is needed.
+	 */
 	protected Element					description;
 	
+	/** The structural hash of the description, see {@link #hashCode()}. */
+	private int								structuralHash;
+	
+	/** Is the structural hash up to date? */
+	private boolean						structuralHashValid;
+	
 	
 	/**
 	 * Instantiates a new meta data object.
@@ -84,9 +93,12 @@ public abstract class MetaDataObject
 	 */
 	public void setAbout (MetaDataHolder about)
 	{
+		if (fragmentIdentifier != null)
+			descriptionChanged ();
 		this.about = about;
 		this.fragmentIdentifier = null;
-		description.setAttribute ("about", getAbout (), Utils.rdfNS);
+		if (description != null)
+			description.setAttribute ("about", getAbout (), Utils.rdfNS);
 	}
 	
 	
@@ -100,9 +112,14 @@ public abstract class MetaDataObject
 	 */
 	public void setAbout (MetaDataHolder about, String fragmentIdentifier)
 	{
+		// the fragment identifier is part of the hash
+		if (fragmentIdentifier == null ? this.fragmentIdentifier != null
+			: !fragmentIdentifier.equals (this.fragmentIdentifier))
+			descriptionChanged ();
 		this.about = about;
 		this.fragmentIdentifier = fragmentIdentifier;
-		description.setAttribute ("about", getAbout (), Utils.rdfNS);
+		if (description != null)
+			description.setAttribute ("about", getAbout (), Utils.rdfNS);
 	}
 	
 	
@@ -123,6 +140,18 @@ public abstract class MetaDataObject
 	}
 	
 	
+	/**
+	 * Gets the fragment identifier.
+	 * 
+	 * @return the fragment identifier pointing into the described entity, or
+	 *         null if this object describes the whole entity
+	 */
+	public String getFragmentIdentifier ()
+	{
+		return fragmentIdentifier;
+	}
+	
+	
 	/**
 	 * Inject the description into <code>parent</code>.
 	 * 
@@ -132,6 +161,24 @@ public abstract class MetaDataObject
 	public abstract void injectDescription (Element parent);
 	
 	
+	/**
+	 * Gets the XML elements to export for this description. By default we
+	 * inject the description into a new <code>rdf:Description</code> element
+	 * about <code>about</code> and return its children.
+	 * 
+	 * @param about
+	 *          the about of the exported description
+	 * @return the elements describing {@link #getAbout()}
+	 */
+	List<Element> getExportElements (String about)
+	{
+		Element parent = new Element ("Description", Utils.rdfNS);
+		parent.setAttribute ("about", about, Utils.rdfNS);
+		injectDescription (parent);
+		return parent.getChildren ();
+	}
+	
+	
 	/**
 	 * Get the XML description of {@link #getAbout()}.
 	 * 
@@ -139,16 +186,51 @@ public abstract class MetaDataObject
 	 */
 	public Element getXmlDescription ()
 	{
+		// the caller may modify the tree
+		descriptionChanged ();
+		if (description == null)
+			description = createXmlDescription ();
 		description.setAttribute ("about", getAbout (), Utils.rdfNS);
 		return description;
 	}
 	
 	
+	/**
+	 * Creates the XML description if it wasn't created yet. Subclasses that
+	 * leave the {@link #description} null need to override this method.
+	 * 
+	 * @return the XML subtree rooting the description
+	 */
+	protected Element createXmlDescription ()
+	{
+		throw new IllegalStateException ("no XML description available");
+	}
+	
+	
+	/**
+	 * Signals that the meta data is about to be modified or replaced.
+	 * Subclasses need to call this method before they touch anything that
+	 * {@link #contentHash()} is based on, so that the holder can re-index this
+	 * object and the cached hash gets recomputed.
+	 */
+	protected void descriptionChanged ()
+	{
+		// if the hash isn't valid we're not indexed
+		if (structuralHashValid && about != null)
+			about.descriptionChanging (this);
+		structuralHashValid = false;
+	}
+	
+	
 	/**
 	 * Checks if two meta data objects are equal, but it neglects the paths to the
 	 * meta data holder.
 	 * 
-	 * Thus, it just checks the fragment identifier and the actual meta data
+	 * Thus, it just checks the fragment identifier and the actual meta data.
+	 * The XML descriptions are compared structurally: namespaces, names,
+	 * attributes (except for the <code>rdf:about</code> of the root) and the
+	 * trimmed text need to match, while comments and the order of attributes do
+	 * not matter.
 	 *
 	 * @param otherMeta
 	 *          the other meta data object
@@ -163,24 +245,214 @@ public abstract class MetaDataObject
 			|| (fragmentIdentifier != null && otherMeta.fragmentIdentifier != null
 				&& fragmentIdentifier.equals (otherMeta.fragmentIdentifier)))
 		{
-			try
+			// cheap check first
+			if (hashCode () != otherMeta.hashCode ())
+				return false;
+			return contentEquals (otherMeta);
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Checks if the actual meta data of two objects is equal. By default, the
+	 * XML descriptions are compared structurally.
+	 * 
+	 * @param otherMeta
+	 *          the other meta data object
+	 * @return true, if both objects carry the same meta data
+	 */
+	protected boolean contentEquals (MetaDataObject otherMeta)
+	{
+		return structurallyEqual (description, otherMeta.description, true);
+	}
+	
+	
+	/**
+	 * Computes a hash of the actual meta data that is consistent with
+	 * {@link #contentEquals(MetaDataObject)}.
+	 * 
+	 * @return the hash
+	 */
+	protected int contentHash ()
+	{
+		return structuralHash (description, true);
+	}
+	
+	
+	/**
+	 * Computes a hash of an XML subtree that is consistent with
+	 * {@link #structurallyEqual(Element, Element, boolean)}.
+	 * 
+	 * @param element
+	 *          the root of the subtree
+	 * @param root
+	 *          is that the root of the description? (we'll skip its
+	 *          <code>rdf:about</code>)
+	 * @return the hash
+	 */
+	private static int structuralHash (Element element, boolean root)
+	{
+		if (element == null)
+			return 0;
+		
+		int hash = element.getNamespaceURI ().hashCode () * 31
+			+ element.getName ().hashCode ();
+		
+		// attributes are unordered
+		int attributes = 0;
+		for (Attribute attr : element.getAttributes ())
+			if (!root || !isAbout (attr))
+				attributes += (attr.getNamespaceURI ().hashCode () * 31
+					+ attr.getName ().hashCode ()) * 31 + attr.getValue ().hashCode ();
+		hash = hash * 31 + attributes;
+		
+		for (Object child : getCanonicalContent (element))
+			hash = hash * 31 + (child instanceof Element
+				? structuralHash ((Element) child, false) : child.hashCode ());
+		
+		return hash;
+	}
+	
+	
+	/**
+	 * Compares two XML subtrees structurally.
+	 * 
+	 * @param one
+	 *          the root of the first subtree
+	 * @param two
+	 *          the root of the second subtree
+	 * @param root
+	 *          are these the roots of the descriptions? (we'll skip their
+	 *          <code>rdf:about</code>)
+	 * @return true, if both subtrees are equal
+	 */
+	private static boolean structurallyEqual (Element one, Element two,
+		boolean root)
+	{
+		if (one == null || two == null)
+			return one == two;
+		
+		if (!one.getName ().equals (two.getName ())
+			|| !one.getNamespaceURI ().equals (two.getNamespaceURI ()))
+			return false;
+		
+		int numAttributes = 0;
+		for (Attribute attr : one.getAttributes ())
+		{
+			if (root && isAbout (attr))
+				continue;
+			numAttributes++;
+			if (!attr.getValue ().equals (
+				two.getAttributeValue (attr.getName (), attr.getNamespace ())))
+				return false;
+		}
+		for (Attribute attr : two.getAttributes ())
+			if (!root || !isAbout (attr))
+				numAttributes--;
+		if (numAttributes != 0)
+			return false;
+		
+		List<Object> contentOne = getCanonicalContent (one);
+		List<Object> contentTwo = getCanonicalContent (two);
+		if (contentOne.size () != contentTwo.size ())
+			return false;
+		for (int i = 0; i < contentOne.size (); i++)
+		{
+			Object childOne = contentOne.get (i);
+			Object childTwo = contentTwo.get (i);
+			if (childOne instanceof Element && childTwo instanceof Element)
 			{
-				Element elementOne = description.clone ().setAttribute ("about", "", Utils.rdfNS);
-				Element elementTwo = otherMeta.description.clone ().setAttribute ("about", "", Utils.rdfNS);
-				
-				String one = Utils
-					.prettyPrintDocument (new Document (elementOne));
-				String two = Utils
-					.prettyPrintDocument (new Document (elementTwo));
-				return one.equals (two);
+				if (!structurallyEqual ((Element) childOne, (Element) childTwo, false))
+					return false;
 			}
-			catch (IOException | TransformerException e)
+			else if (!childOne.equals (childTwo))
+				return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Gets the content of an element that is relevant for comparisons: child
+	 * elements and the trimmed text between them. Empty texts, comments, and
+	 * processing instructions are dropped.
+	 * 
+	 * @param element
+	 *          the element
+	 * @return the list of elements and strings
+	 */
+	private static List<Object> getCanonicalContent (Element element)
+	{
+		List<Object> content = new ArrayList<Object> ();
+		StringBuilder text = new StringBuilder ();
+		for (Content c : element.getContent ())
+		{
+			if (c instanceof Text)
+				text.append ( ((Text) c).getText ());
+			else if (c instanceof Element)
 			{
-				e.printStackTrace ();
-				LOGGER.error (e, "cannot convert jdom element tree to string");
+				addText (content, text);
+				content.add (c);
 			}
 		}
-		return false;
+		addText (content, text);
+		return content;
+	}
+	
+	
+	/**
+	 * Adds the trimmed text to the content, if it is not empty, and resets the
+	 * text buffer.
+	 * 
+	 * @param content
+	 *          the content list
+	 * @param text
+	 *          the collected text
+	 */
+	private static void addText (List<Object> content, StringBuilder text)
+	{
+		String trimmed = text.toString ().trim ();
+		if (trimmed.length () > 0)
+			content.add (trimmed);
+		text.setLength (0);
+	}
+	
+	
+	/**
+	 * Checks if an attribute is the <code>rdf:about</code>.
+	 * 
+	 * @param attr
+	 *          the attribute
+	 * @return true, if it is the <code>rdf:about</code>
+	 */
+	private static boolean isAbout (Attribute attr)
+	{
+		return attr.getName ().equals ("about")
+			&& attr.getNamespaceURI ().equals (Utils.rdfNS.getURI ());
+	}
+	
+	
+	/**
+	 * Computes a hash code that is consistent with {@link #equals(Object)}.
+	 * <p>
+	 * The hash is computed from the meta data, see {@link #contentHash()}, and
+	 * the fragment identifier. The hash of the meta data is computed once and
+	 * cached until the description changes.
+	 * </p>
+	 * 
+	 * @return the hash code
+	 */
+	@Override
+	public int hashCode ()
+	{
+		if (!structuralHashValid)
+		{
+			structuralHash = contentHash ();
+			structuralHashValid = true;
+		}
+		return structuralHash * 31
+			+ (fragmentIdentifier == null ? 0 : fragmentIdentifier.hashCode ());
 	}
 	
 	
@@ -0,0 +1,847 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package de.unirostock.sems.cbarchive.meta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.IllegalAddException;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.Utils;
+import de.unirostock.sems.cbarchive.meta.omex.OmexDescription;
+import de.unirostock.sems.cbarchive.meta.omex.VCard;
+
+
+
+/**
+ * The Class MetaDataStreamReader streams through a meta data file and reports
+ * the <code>rdf:Description</code>s one after the other.
+ * <p>
+ * OMEX descriptions are recognised while streaming through the document, so
+ * we do not need to build an XML tree for them. Only descriptions that end up
+ * as {@link DefaultMetaDataObject} are converted into a jDOM subtree.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+class MetaDataStreamReader
+	implements Closeable
+{
+	
+	/** Marks the end of an element in the recorded tokens. */
+	private static final Object				END_ELEMENT	= new Object ();
+	
+	/** The stream providing the document. */
+	private InputStream								in;
+	
+	/** The XML reader. */
+	private XMLStreamReader						reader;
+	
+	/** The descriptions we've seen so far, in document order. */
+	private LinkedList<DescriptionReader>	descriptions;
+	
+	/** The current description. */
+	private DescriptionReader					current;
+	
+	/** The file containing the meta data, null if we read from a stream. */
+	private Path											file;
+	
+	/** The number of descriptions we've seen so far. */
+	private int												numDescriptions;
+	
+	
+	/**
+	 * Instantiates a new meta data stream reader.
+	 *
+	 * @param file
+	 *          the file containing the meta data
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws XMLStreamException
+	 *           if we cannot create an XML reader
+	 */
+	public MetaDataStreamReader (Path file)
+		throws IOException,
+			XMLStreamException
+	{
+		this (Files.newInputStream (file));
+		this.file = file;
+	}
+	
+	
+	/**
+	 * Instantiates a new meta data stream reader reading from a stream.
+	 * <p>
+	 * As the stream cannot be read twice, the XML tokens of all descriptions will
+	 * be recorded in case we need to fall back to a
+	 * {@link DefaultMetaDataObject}.
+	 * </p>
+	 *
+	 * @param in
+	 *          the stream providing the meta data, will be closed when closing
+	 *          this reader
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws XMLStreamException
+	 *           if we cannot create an XML reader
+	 */
+	public MetaDataStreamReader (InputStream in)
+		throws IOException,
+			XMLStreamException
+	{
+		this.in = in;
+		try
+		{
+			reader = Utils.createXmlStreamReader (in);
+		}
+		catch (XMLStreamException e)
+		{
+			in.close ();
+			throw e;
+		}
+		descriptions = new LinkedList<DescriptionReader> ();
+	}
+	
+	
+	/**
+	 * Move on to the next description in the document.
+	 *
+	 * @return true, if there is another description
+	 * @throws XMLStreamException
+	 *           if the document is not well-formed
+	 */
+	public boolean next () throws XMLStreamException
+	{
+		while (true)
+		{
+			if (!descriptions.isEmpty () && descriptions.getFirst ().isDone ())
+			{
+				current = descriptions.removeFirst ();
+				return true;
+			}
+			if (!reader.hasNext ())
+			{
+				current = null;
+				return false;
+			}
+			
+			switch (reader.next ())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					if (reader.getLocalName ().equals ("Description")
+						&& Utils.rdfNS.getURI ().equals (reader.getNamespaceURI ()))
+						descriptions.add (new DescriptionReader (
+							reader.getAttributeValue (Utils.rdfNS.getURI (), "about"),
+							numDescriptions++, file == null));
+					if (!descriptions.isEmpty ())
+					{
+						StartElement start = new StartElement (reader);
+						for (DescriptionReader d : descriptions)
+							if (!d.isDone ())
+								d.startElement (start);
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					for (DescriptionReader d : descriptions)
+						if (!d.isDone ())
+							d.endElement ();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (!descriptions.isEmpty ())
+					{
+						String text = reader.getText ();
+						for (DescriptionReader d : descriptions)
+							if (!d.isDone ())
+								d.characters (text);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Gets the <code>rdf:about</code> of the current description.
+	 *
+	 * @return the about, or null if the description does not have an about
+	 */
+	public String getAbout ()
+	{
+		return current.about;
+	}
+	
+	
+	/**
+	 * Gets the meta data object encoded in the current description. That is an
+	 * {@link OmexMetaDataObject} if the description can be understood as OMEX,
+	 * or a {@link DefaultMetaDataObject} otherwise.
+	 *
+	 * @return the meta data object
+	 */
+	public MetaDataObject getMetaDataObject ()
+	{
+		MetaDataObject object = current.toMetaDataObject ();
+		if (object != null)
+			return object;
+		
+		// we dropped the tokens too early, so read the description again
+		try
+		{
+			Element element = readSubtree (current.ordinal);
+			if (element != null)
+				return new DefaultMetaDataObject (element);
+			LOGGER.error ("cannot find description ", current.ordinal, " in ", file);
+		}
+		catch (IOException | XMLStreamException e)
+		{
+			LOGGER.error (e, "cannot read description ", current.ordinal, " in ",
+				file);
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Reads the XML subtree of a certain description from the file.
+	 *
+	 * @param ordinal
+	 *          the number of the description in document order
+	 * @return the root of the subtree, or null if there is no such description
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws XMLStreamException
+	 *           if the document is not well-formed
+	 */
+	private Element readSubtree (int ordinal)
+		throws IOException,
+			XMLStreamException
+	{
+		try (InputStream in = Files.newInputStream (file))
+		{
+			XMLStreamReader reader = Utils.createXmlStreamReader (in);
+			try
+			{
+				int n = 0;
+				int depth = 0;
+				List<Object> tokens = null;
+				while (reader.hasNext ())
+				{
+					switch (reader.next ())
+					{
+						case XMLStreamConstants.START_ELEMENT:
+							if (tokens == null
+								&& reader.getLocalName ().equals ("Description")
+								&& Utils.rdfNS.getURI ().equals (reader.getNamespaceURI ())
+								&& n++ == ordinal)
+								tokens = new ArrayList<Object> ();
+							if (tokens != null)
+							{
+								tokens.add (new StartElement (reader));
+								depth++;
+							}
+							break;
+						case XMLStreamConstants.END_ELEMENT:
+							if (tokens != null)
+							{
+								tokens.add (END_ELEMENT);
+								if (--depth == 0)
+									return buildElement (tokens);
+							}
+							break;
+						case XMLStreamConstants.CHARACTERS:
+						case XMLStreamConstants.CDATA:
+						case XMLStreamConstants.SPACE:
+							if (tokens != null)
+								tokens.add (reader.getText ());
+							break;
+						default:
+							break;
+					}
+				}
+				return null;
+			}
+			finally
+			{
+				reader.close ();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Builds a jDOM subtree from recorded tokens.
+	 *
+	 * @param tokens
+	 *          the tokens: start elements, texts, and ends of elements
+	 * @return the root of the subtree
+	 */
+	private static Element buildElement (List<Object> tokens)
+	{
+		Element root = null;
+		Deque<Element> open = new ArrayDeque<Element> ();
+		for (Object token : tokens)
+		{
+			if (token instanceof StartElement)
+			{
+				Element element = ((StartElement) token).toElement ();
+				if (open.isEmpty ())
+					root = element;
+				else
+					open.peek ().addContent (element);
+				open.push (element);
+			}
+			else if (token == END_ELEMENT)
+				open.pop ();
+			else
+				open.peek ().addContent (new Text ((String) token));
+		}
+		return root;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close () throws IOException
+	{
+		try
+		{
+			reader.close ();
+		}
+		catch (XMLStreamException e)
+		{
+			LOGGER.warn (e, "couldn't close xml reader");
+		}
+		in.close ();
+	}
+	
+	/**
+	 * A start element as reported by the XML reader.
+	 */
+	private static class StartElement
+	{
+		
+		/** The namespace URI. */
+		private String		namespaceUri;
+		
+		/** The prefix. */
+		private String		prefix;
+		
+		/** The local name. */
+		private String		localName;
+		
+		/** The attributes: namespace URI, prefix, local name and value. */
+		private String[]	attributes;
+		
+		/** The declared namespaces: prefix and URI. */
+		private String[]	namespaces;
+		
+		
+		/**
+		 * Instantiates a new start element.
+		 *
+		 * @param reader
+		 *          the reader, positioned at a start element
+		 */
+		public StartElement (XMLStreamReader reader)
+		{
+			namespaceUri = emptyIfNull (reader.getNamespaceURI ());
+			prefix = emptyIfNull (reader.getPrefix ());
+			localName = reader.getLocalName ();
+			attributes = new String[reader.getAttributeCount () * 4];
+			for (int i = 0; i < reader.getAttributeCount (); i++)
+			{
+				attributes[i * 4] = emptyIfNull (reader.getAttributeNamespace (i));
+				attributes[i * 4 + 1] = emptyIfNull (reader.getAttributePrefix (i));
+				attributes[i * 4 + 2] = reader.getAttributeLocalName (i);
+				attributes[i * 4 + 3] = reader.getAttributeValue (i);
+			}
+			namespaces = new String[reader.getNamespaceCount () * 2];
+			for (int i = 0; i < reader.getNamespaceCount (); i++)
+			{
+				namespaces[i * 2] = emptyIfNull (reader.getNamespacePrefix (i));
+				namespaces[i * 2 + 1] = emptyIfNull (reader.getNamespaceURI (i));
+			}
+		}
+		
+		
+		/**
+		 * Checks if this is an element of a certain namespace.
+		 *
+		 * @param ns
+		 *          the namespace
+		 * @return true, if the element lives in <code>ns</code>
+		 */
+		public boolean isIn (Namespace ns)
+		{
+			return namespaceUri.equals (ns.getURI ());
+		}
+		
+		
+		/**
+		 * Creates the corresponding jDOM element (w/o content).
+		 *
+		 * @return the element
+		 */
+		public Element toElement ()
+		{
+			Element element = new Element (localName,
+				Namespace.getNamespace (prefix, namespaceUri));
+			for (int i = 0; i < namespaces.length; i += 2)
+			{
+				try
+				{
+					element.addNamespaceDeclaration (
+						Namespace.getNamespace (namespaces[i], namespaces[i + 1]));
+				}
+				catch (IllegalAddException e)
+				{
+					// collides with the element's namespace, jdom will declare it anyway
+				}
+			}
+			for (int i = 0; i < attributes.length; i += 4)
+			{
+				Namespace ns = attributes[i].length () == 0 ? Namespace.NO_NAMESPACE
+					: Namespace.getNamespace (attributes[i + 1], attributes[i]);
+				element.setAttribute (
+					new Attribute (attributes[i + 2], attributes[i + 3], ns));
+			}
+			return element;
+		}
+		
+		
+		/**
+		 * Returns an empty string instead of null.
+		 *
+		 * @param str
+		 *          the string
+		 * @return the string, or an empty string if <code>str</code> is null
+		 */
+		private static String emptyIfNull (String str)
+		{
+			return str == null ? "" : str;
+		}
+	}
+	
+	/**
+	 * Reads a single description. It collects the OMEX fields on the fly and
+	 * records the XML tokens for a possible fall back, until it is clear that
+	 * the description can be understood as OMEX.
+	 * <p>
+	 * The OMEX fields are collected just like {@link OmexDescription} and
+	 * {@link VCard} do when reading an XML subtree: the first
+	 * <code>dcterms:description</code>, all <code>dcterms:creator</code>s, the
+	 * first <code>dcterms:created</code>, and all <code>dcterms:modified</code>.
+	 * </p>
+	 */
+	private static class DescriptionReader
+	{
+		
+		/** The about. */
+		private String						about;
+		
+		/** The number of this description in document order. */
+		private int								ordinal;
+		
+		/** Keep the tokens even if this is an OMEX description? */
+		private boolean						keepTokens;
+		
+		/** The current depth, relative to the description. */
+		private int								depth;
+		
+		/** Did we see the end of the description? */
+		private boolean						done;
+		
+		/**
+		 * The recorded tokens: start elements, texts, and ends of elements. Null
+		 * if we stopped recording, as this is an OMEX description.
+		 */
+		private List<Object>			tokens;
+		
+		/** Did we fail to read the OMEX fields? */
+		private boolean						broken;
+		
+		/** The description. */
+		private String						description;
+		
+		/** The depth of the <code>dcterms:description</code> we are reading. */
+		private int								descriptionDepth;
+		
+		/** The creators. */
+		private List<VCard>				creators;
+		
+		/** The creators whose elements are currently open. */
+		private Deque<VCard>			openCreators;
+		
+		/** The depths of the open creators. */
+		private Deque<Integer>		openCreatorDepths;
+		
+		/** The VCard field we are reading. */
+		private String						field;
+		
+		/** The depth of the VCard field we are reading. */
+		private int								fieldDepth;
+		
+		/** The date created. */
+		private Date							created;
+		
+		/** Did we already see a <code>dcterms:created</code>? */
+		private boolean						createdSeen;
+		
+		/** The depth of the <code>dcterms:created</code> we are reading. */
+		private int								createdDepth;
+		
+		/** The dates modified. */
+		private List<Date>				modified;
+		
+		/** The depth of the <code>dcterms:modified</code> we are reading. */
+		private int								modifiedDepth;
+		
+		/** The date of the current created/modified element. */
+		private String						date;
+		
+		/** The depth of the <code>dcterms:W3CDTF</code> we are reading. */
+		private int								dateDepth;
+		
+		/** The text of the element that we are currently reading. */
+		private StringBuilder			text;
+		
+		
+		/**
+		 * Instantiates a new description reader.
+		 *
+		 * @param about
+		 *          the about of the description
+		 * @param ordinal
+		 *          the number of this description in document order
+		 * @param keepTokens
+		 *          keep the tokens even if this is an OMEX description, e.g. because
+		 *          the document cannot be read again
+		 */
+		public DescriptionReader (String about, int ordinal, boolean keepTokens)
+		{
+			this.about = about;
+			this.ordinal = ordinal;
+			this.keepTokens = keepTokens;
+			tokens = new ArrayList<Object> ();
+			creators = new ArrayList<VCard> ();
+			openCreators = new ArrayDeque<VCard> ();
+			openCreatorDepths = new ArrayDeque<Integer> ();
+			modified = new ArrayList<Date> ();
+			descriptionDepth = -1;
+			fieldDepth = -1;
+			createdDepth = -1;
+			modifiedDepth = -1;
+			dateDepth = -1;
+			text = new StringBuilder ();
+		}
+		
+		
+		/**
+		 * Checks if the whole description was read.
+		 *
+		 * @return true, if done
+		 */
+		public boolean isDone ()
+		{
+			return done;
+		}
+		
+		
+		/**
+		 * Process the start of an element.
+		 *
+		 * @param start
+		 *          the start element
+		 */
+		public void startElement (StartElement start)
+		{
+			depth++;
+			if (tokens != null)
+				tokens.add (start);
+			
+			if (start.isIn (Utils.dcNS))
+			{
+				String name = start.localName;
+				if (name.equals ("description") && description == null
+					&& descriptionDepth < 0)
+				{
+					descriptionDepth = depth;
+					text.setLength (0);
+				}
+				else if (name.equals ("creator"))
+				{
+					VCard creator = new VCard ();
+					creators.add (creator);
+					openCreators.push (creator);
+					openCreatorDepths.push (depth);
+				}
+				else if (name.equals ("created") && !createdSeen)
+				{
+					createdSeen = true;
+					createdDepth = depth;
+					date = null;
+				}
+				else if (name.equals ("modified") && modifiedDepth < 0
+					&& createdDepth < 0)
+				{
+					modifiedDepth = depth;
+					date = null;
+				}
+				else if (name.equals ("W3CDTF") && dateDepth < 0 && date == null
+					&& (createdDepth >= 0 || modifiedDepth >= 0))
+				{
+					dateDepth = depth;
+					text.setLength (0);
+				}
+			}
+			else if (start.isIn (Utils.vcNS) && fieldDepth < 0
+				&& !openCreators.isEmpty ())
+			{
+				String name = start.localName;
+				if (name.equals ("family-name") || name.equals ("given-name")
+					|| name.equals ("email") || name.equals ("organization-name"))
+				{
+					field = name;
+					fieldDepth = depth;
+					text.setLength (0);
+				}
+			}
+		}
+		
+		
+		/**
+		 * Process some text.
+		 *
+		 * @param str
+		 *          the text
+		 */
+		public void characters (String str)
+		{
+			if (tokens != null)
+				tokens.add (str);
+			
+			// we only need the text directly below the elements of interest
+			if (depth == descriptionDepth || depth == fieldDepth
+				|| depth == dateDepth)
+				text.append (str);
+		}
+		
+		
+		/**
+		 * Process the end of an element.
+		 */
+		public void endElement ()
+		{
+			if (tokens != null)
+				tokens.add (END_ELEMENT);
+			
+			if (depth == descriptionDepth)
+			{
+				description = text.toString ();
+				descriptionDepth = -1;
+			}
+			if (depth == fieldDepth)
+			{
+				for (VCard creator : openCreators)
+					setField (creator, field, text.toString ());
+				fieldDepth = -1;
+			}
+			if (depth == dateDepth)
+			{
+				date = text.toString ();
+				dateDepth = -1;
+			}
+			if (depth == createdDepth)
+			{
+				if (date != null)
+					created = parseDate (date);
+				createdDepth = -1;
+			}
+			if (depth == modifiedDepth)
+			{
+				if (date != null)
+				{
+					Date d = parseDate (date);
+					if (d != null)
+						modified.add (d);
+				}
+				modifiedDepth = -1;
+			}
+			if (!openCreatorDepths.isEmpty () && openCreatorDepths.peek () == depth)
+			{
+				openCreators.pop ();
+				openCreatorDepths.pop ();
+			}
+			
+			// no need for the tokens once we know it's OMEX
+			if (tokens != null && !keepTokens && !broken && hasOmexContent ())
+				tokens = null;
+			
+			depth--;
+			if (depth == 0)
+				done = true;
+		}
+		
+		
+		/**
+		 * Checks if we found some OMEX content, just like
+		 * {@link OmexDescription#isEmpty()} does.
+		 *
+		 * @return true, if there is some OMEX content
+		 */
+		private boolean hasOmexContent ()
+		{
+			if ( (description != null && description.length () > 0)
+				|| created != null)
+				return true;
+			for (VCard creator : creators)
+				if (!creator.isEmpty ())
+					return true;
+			return false;
+		}
+		
+		
+		/**
+		 * Sets a field of a VCard, unless it was already set.
+		 *
+		 * @param creator
+		 *          the creator
+		 * @param field
+		 *          the field
+		 * @param value
+		 *          the value
+		 */
+		private static void setField (VCard creator, String field, String value)
+		{
+			switch (field)
+			{
+				case "family-name":
+					if (creator.getFamilyName () == null)
+						creator.setFamilyName (value);
+					break;
+				case "given-name":
+					if (creator.getGivenName () == null)
+						creator.setGivenName (value);
+					break;
+				case "email":
+					if (creator.getEmail () == null)
+						creator.setEmail (value);
+					break;
+				case "organization-name":
+					if (creator.getOrganization () == null)
+						creator.setOrganization (value);
+					break;
+				default:
+					break;
+			}
+		}
+		
+		
+		/**
+		 * Parses a date. If that fails, this description cannot be read as OMEX.
+		 *
+		 * @param str
+		 *          the date string
+		 * @return the date, or null if we cannot parse the date
+		 */
+		private Date parseDate (String str)
+		{
+			try
+			{
+				return Utils.dateFormater.parse (str);
+			}
+			catch (ParseException e)
+			{
+				LOGGER.debug (e, "could not parse OMEX description");
+				broken = true;
+				return null;
+			}
+		}
+		
+		
+		/**
+		 * Creates the meta data object encoded in this description.
+		 *
+		 * @return the meta data object, or null if we need to fall back to a
+		 *         {@link DefaultMetaDataObject} but dropped the tokens already
+		 */
+		public MetaDataObject toMetaDataObject ()
+		{
+			if (!broken)
+			{
+				OmexDescription desc = new OmexDescription (creators, modified, created,
+					description);
+				// the XML tree will be created when needed
+				if (!desc.isEmpty ())
+					return new OmexMetaDataObject (desc, null);
+			}
+			
+			/*
+			 * ···································
+			 * optional: other meta data formats..
+			 * ···································
+			 */
+			
+			if (tokens == null)
+				return null;
+			return new DefaultMetaDataObject (buildElement (tokens));
+		}
+	}
+}
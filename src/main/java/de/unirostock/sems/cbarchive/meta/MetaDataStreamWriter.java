@@ -0,0 +1,369 @@
+/**
+ * CombineArchive - a JAVA library to read/write/create/... CombineArchives
+ * Copyright (c) 2014, Martin Scharm <combinearchive-code@binfalse.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package de.unirostock.sems.cbarchive.meta;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom2.Attribute;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+
+import de.unirostock.sems.cbarchive.Utils;
+
+
+
+/**
+ * The Class MetaDataStreamWriter streams meta data to an RDF document.
+ * <p>
+ * The descriptions of every {@link MetaDataHolder} are written one after the
+ * other, so we never need to keep the whole document in memory. In compact
+ * mode we do not indent the document, which results in smaller files.
+ * </p>
+ * 
+ * @author Martin Scharm
+ */
+class MetaDataStreamWriter
+{
+	
+	/** The indentation of a single level. */
+	private static final String	INDENT	= "  ";
+	
+	/** The XML writer. */
+	private XMLStreamWriter			writer;
+	
+	/** Should we skip indentation? */
+	private boolean							compact;
+	
+	/** The namespace bindings in scope, pairs of prefix and URI. */
+	private List<String>				bindings;
+	
+	/** The number of bindings when entering the open elements. */
+	private Deque<Integer>			scopes;
+	
+	
+	/**
+	 * Instantiates a new meta data stream writer.
+	 * 
+	 * @param out
+	 *          the stream to write the document to
+	 * @param compact
+	 *          write a compact document without indentation?
+	 * @throws XMLStreamException
+	 *           if we cannot create an XML writer
+	 */
+	public MetaDataStreamWriter (OutputStream out, boolean compact)
+		throws XMLStreamException
+	{
+		this.writer = Utils.createXmlStreamWriter (out);
+		this.compact = compact;
+		bindings = new ArrayList<String> ();
+		scopes = new ArrayDeque<Integer> ();
+	}
+	
+	
+	/**
+	 * Start the document, that is the XML declaration and the
+	 * <code>rdf:RDF</code> root element.
+	 * 
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	public void writeStartDocument () throws XMLStreamException
+	{
+		writer.writeStartDocument ("UTF-8", "1.0");
+		newLine (0);
+		startElement (Utils.rdfNS, "RDF");
+		declareNamespace (Utils.dcNS);
+		declareNamespace (Utils.vcNS);
+	}
+	
+	
+	/**
+	 * Write the descriptions of an entity.
+	 * 
+	 * @param entity
+	 *          the entity whose descriptions should be written
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	public void writeDescriptions (MetaDataHolder entity)
+		throws XMLStreamException
+	{
+		for (MetaDataObject meta : entity.getDescriptions ())
+		{
+			String about = meta.getAbout ();
+			if (!about.startsWith ("."))
+				about = "." + about;
+			
+			List<Element> content = meta.getExportElements (about);
+			
+			newLine (1);
+			startElement (Utils.rdfNS, "Description");
+			writer.writeAttribute (Utils.rdfNS.getPrefix (), Utils.rdfNS.getURI (),
+				"about", about);
+			for (Element element : content)
+			{
+				newLine (2);
+				writeElement (element, 2, !compact);
+			}
+			if (!content.isEmpty ())
+				newLine (1);
+			endElement ();
+		}
+	}
+	
+	
+	/**
+	 * Finish the document and flush the writer. The underlying stream will not
+	 * be closed.
+	 * 
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	public void writeEndDocument () throws XMLStreamException
+	{
+		newLine (0);
+		endElement ();
+		newLine (0);
+		writer.writeEndDocument ();
+		writer.flush ();
+		writer.close ();
+	}
+	
+	
+	/**
+	 * Write an XML subtree.
+	 * 
+	 * @param element
+	 *          the root of the subtree
+	 * @param depth
+	 *          the depth of <code>element</code> in the document
+	 * @param indent
+	 *          should we indent the children of <code>element</code>?
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	private void writeElement (Element element, int depth, boolean indent)
+		throws XMLStreamException
+	{
+		List<Content> content = element.getContent ();
+		
+		if (content.isEmpty ())
+			writer.writeEmptyElement (element.getNamespacePrefix (),
+				element.getName (), element.getNamespaceURI ());
+		else
+			writer.writeStartElement (element.getNamespacePrefix (),
+				element.getName (), element.getNamespaceURI ());
+		scopes.push (bindings.size ());
+		
+		declareNamespace (element.getNamespace ());
+		for (Namespace ns : element.getAdditionalNamespaces ())
+			declareNamespace (ns);
+		for (Attribute attribute : element.getAttributes ())
+		{
+			Namespace ns = attribute.getNamespace ();
+			if (ns.getURI ().length () == 0)
+				writer.writeAttribute (attribute.getName (), attribute.getValue ());
+			else
+			{
+				declareNamespace (ns);
+				writer.writeAttribute (ns.getPrefix (), ns.getURI (),
+					attribute.getName (), attribute.getValue ());
+			}
+		}
+		
+		if (content.isEmpty ())
+		{
+			leaveScope ();
+			return;
+		}
+		
+		// do not mess with the white space of mixed content
+		boolean indentChildren = indent && !hasText (content);
+		boolean hasChildren = false;
+		for (Content c : content)
+		{
+			if (c instanceof Element)
+			{
+				if (indentChildren)
+					newLine (depth + 1);
+				writeElement ((Element) c, depth + 1, indentChildren);
+				hasChildren = true;
+			}
+			else if (c instanceof Text)
+			{
+				if (!indentChildren)
+					writer.writeCharacters (((Text) c).getText ());
+			}
+			else if (c instanceof Comment)
+			{
+				if (indentChildren)
+					newLine (depth + 1);
+				writer.writeComment (((Comment) c).getText ());
+				hasChildren = true;
+			}
+		}
+		if (indentChildren && hasChildren)
+			newLine (depth);
+		endElement ();
+	}
+	
+	
+	/**
+	 * Checks if there is some non-whitespace text in the content of an element.
+	 * 
+	 * @param content
+	 *          the content of the element
+	 * @return true, if there is text
+	 */
+	private static boolean hasText (List<Content> content)
+	{
+		for (Content c : content)
+			if (c instanceof Text && ((Text) c).getTextTrim ().length () > 0)
+				return true;
+		return false;
+	}
+	
+	
+	/**
+	 * Start an element.
+	 * 
+	 * @param ns
+	 *          the namespace of the element
+	 * @param name
+	 *          the name of the element
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	private void startElement (Namespace ns, String name)
+		throws XMLStreamException
+	{
+		writer.writeStartElement (ns.getPrefix (), name, ns.getURI ());
+		scopes.push (bindings.size ());
+		declareNamespace (ns);
+	}
+	
+	
+	/**
+	 * End the current element.
+	 * 
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	private void endElement () throws XMLStreamException
+	{
+		writer.writeEndElement ();
+		leaveScope ();
+	}
+	
+	
+	/**
+	 * Forget the namespaces that were declared by the current element.
+	 */
+	private void leaveScope ()
+	{
+		int size = scopes.pop ();
+		while (bindings.size () > size)
+			bindings.remove (bindings.size () - 1);
+	}
+	
+	
+	/**
+	 * Declare a namespace for the current element, unless its prefix is already
+	 * bound to the same URI.
+	 * 
+	 * @param ns
+	 *          the namespace
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	private void declareNamespace (Namespace ns) throws XMLStreamException
+	{
+		String prefix = ns.getPrefix ();
+		String uri = ns.getURI ();
+		if (uri.equals (lookupNamespace (prefix)))
+			return;
+		
+		if (prefix.length () == 0)
+			writer.writeDefaultNamespace (uri);
+		else
+			writer.writeNamespace (prefix, uri);
+		bindings.add (prefix);
+		bindings.add (uri);
+	}
+	
+	
+	/**
+	 * Find the URI that is bound to a prefix.
+	 * 
+	 * @param prefix
+	 *          the prefix
+	 * @return the namespace URI, or an empty string if the prefix is not bound
+	 */
+	private String lookupNamespace (String prefix)
+	{
+		for (int i = bindings.size () - 2; i >= 0; i -= 2)
+			if (bindings.get (i).equals (prefix))
+				return bindings.get (i + 1);
+		return prefix.equals ("xml") ? Namespace.XML_NAMESPACE.getURI () : "";
+	}
+	
+	
+	/**
+	 * Start a new line, unless we're in compact mode.
+	 * 
+	 * @param depth
+	 *          the indentation depth of the new line
+	 * @throws XMLStreamException
+	 *           if writing fails
+	 */
+	private void newLine (int depth) throws XMLStreamException
+	{
+		if (compact)
+			return;
+		StringBuilder str = new StringBuilder ("\n");
+		for (int i = 0; i < depth; i++)
+			str.append (INDENT);
+		writer.writeCharacters (str.toString ());
+	}
+}
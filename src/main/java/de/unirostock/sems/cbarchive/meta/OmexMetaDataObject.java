@@ -32,11 +32,16 @@
  */
 package de.unirostock.sems.cbarchive.meta;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 import org.jdom2.Element;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.Utils;
 import de.unirostock.sems.cbarchive.meta.omex.OmexDescription;
+import de.unirostock.sems.cbarchive.meta.omex.VCard;
 
 
 
@@ -72,7 +77,9 @@ public class OmexMetaDataObject
 	 * @param description
 	 *          the description
 	 * @param describingElement
-	 *          the element rooting the subtree that describes about
+	 *          the element rooting the subtree that describes about, or null to
+	 *          create the subtree from <code>description</code> when it is
+	 *          needed
 	 */
 	public OmexMetaDataObject (OmexDescription description,
 		Element describingElement)
@@ -92,6 +99,7 @@ public class OmexMetaDataObject
 	@Override
 	public void injectDescription (Element parent)
 	{
+		descriptionChanged ();
 		description.toXML (parent);
 		super.description = parent;
 	}
@@ -104,10 +112,101 @@ public class OmexMetaDataObject
 	 */
 	public OmexDescription getOmexDescription ()
 	{
+		// the caller may modify the description
+		descriptionChanged ();
 		return description;
 	}
 	
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataObject#createXmlDescription()
+	 */
+	@Override
+	protected Element createXmlDescription ()
+	{
+		// use a copy, toXML would modify the description
+		return createDummyXmltree (description.clone ());
+	}
+	
+	
+	/**
+	 * Compares the OMEX fields, just like comparing the XML trees they would
+	 * be exported to.
+	 * 
+	 * @param otherMeta
+	 *          the other meta data object
+	 * @return true, if both objects carry the same OMEX description
+	 */
+	@Override
+	protected boolean contentEquals (MetaDataObject otherMeta)
+	{
+		if (! (otherMeta instanceof OmexMetaDataObject))
+			return false;
+		return getComparableFields (description).equals (
+			getComparableFields ( ((OmexMetaDataObject) otherMeta).description));
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.unirostock.sems.cbarchive.meta.MetaDataObject#contentHash()
+	 */
+	@Override
+	protected int contentHash ()
+	{
+		return getComparableFields (description).hashCode ();
+	}
+	
+	
+	/**
+	 * Collects the fields of an OMEX description as they would appear in the
+	 * XML tree: the non-empty description, the non-empty creators, and the
+	 * formatted dates.
+	 * 
+	 * @param description
+	 *          the OMEX description
+	 * @return the comparable fields
+	 */
+	private static List<String> getComparableFields (OmexDescription description)
+	{
+		List<String> fields = new ArrayList<String> ();
+		fields.add (trim (description.getDescription ()));
+		if (description.getCreators () != null)
+			for (VCard vc : description.getCreators ())
+				if (!vc.isEmpty ())
+				{
+					fields.add (trim (vc.getFamilyName ()));
+					fields.add (trim (vc.getGivenName ()));
+					fields.add (trim (vc.getEmail ()));
+					fields.add (trim (vc.getOrganization ()));
+				}
+		fields.add ("");
+		if (description.getCreated () != null)
+			fields.add (Utils.dateFormater.format (description.getCreated ()));
+		fields.add ("");
+		if (description.getModified () != null)
+			for (Date date : description.getModified ())
+				fields.add (Utils.dateFormater.format (date));
+		return fields;
+	}
+	
+	
+	/**
+	 * Trims a string, treating null like an empty string.
+	 * 
+	 * @param str
+	 *          the string
+	 * @return the trimmed string
+	 */
+	private static String trim (String str)
+	{
+		return str == null ? "" : str.trim ();
+	}
+	
+	
 	/**
 	 * Creates a dummy XML tree that represents the OMEX description.
 	 * 
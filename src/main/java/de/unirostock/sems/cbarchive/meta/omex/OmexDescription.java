@@ -406,34 +406,29 @@ public class OmexDescription
 		creators = new ArrayList<VCard> ();
 		modified = new ArrayList<Date> ();
 		
-		List<Element> list = Utils.getElementsByTagName (parent, "description",
+		Element element = Utils.getFirstElementByTagName (parent, "description",
 			Utils.dcNS);
-		if (list.size () > 0)
-			description = list.get (0).getText ();
+		if (element != null)
+			description = element.getText ();
 		
-		list = Utils.getElementsByTagName (parent, "creator", Utils.dcNS);
-		if (list.size () > 0)
-			for (int i = 0; i < list.size (); i++)
-				creators.add (new VCard (list.get (i)));
+		for (Element creator : Utils.getElementsByTagName (parent, "creator",
+			Utils.dcNS))
+			creators.add (new VCard (creator));
 		
-		list = Utils.getElementsByTagName (parent, "created", Utils.dcNS);
-		if (list.size () > 0)
+		element = Utils.getFirstElementByTagName (parent, "created", Utils.dcNS);
+		if (element != null)
 		{
-			list = Utils.getElementsByTagName (list.get (0), "W3CDTF", Utils.dcNS);
-			if (list.size () > 0)
-				created = Utils.dateFormater.parse (list.get (0).getText ());
+			element = Utils.getFirstElementByTagName (element, "W3CDTF", Utils.dcNS);
+			if (element != null)
+				created = Utils.dateFormater.parse (element.getText ());
 		}
 		
-		list = Utils.getElementsByTagName (parent, "modified", Utils.dcNS);
-		if (list.size () > 0)
+		for (Element mod : Utils.getElementsByTagName (parent, "modified",
+			Utils.dcNS))
 		{
-			for (int i = 0; i < list.size (); i++)
-			{
-				List<Element> date = Utils.getElementsByTagName (list.get (i),
-					"W3CDTF", Utils.dcNS);
-				if (date.size () > 0)
-					modified.add (Utils.dateFormater.parse (date.get (0).getText ()));
-			}
+			Element date = Utils.getFirstElementByTagName (mod, "W3CDTF", Utils.dcNS);
+			if (date != null)
+				modified.add (Utils.dateFormater.parse (date.getText ()));
 		}
 		
 	}
@@ -32,8 +32,6 @@
  */
 package de.unirostock.sems.cbarchive.meta.omex;
 
-import java.util.List;
-
 import org.jdom2.Element;
 import org.json.simple.JSONObject;
 
@@ -118,20 +116,20 @@ public class VCard
 	 */
 	public VCard (Element element)
 	{
-		List<Element> list = Utils.getElementsByTagName (element, "family-name",
+		Element field = Utils.getFirstElementByTagName (element, "family-name",
+			Utils.vcNS);
+		if (field != null)
+			familyName = field.getText ();
+		field = Utils.getFirstElementByTagName (element, "given-name", Utils.vcNS);
+		if (field != null)
+			givenName = field.getText ();
+		field = Utils.getFirstElementByTagName (element, "email", Utils.vcNS);
+		if (field != null)
+			email = field.getText ();
+		field = Utils.getFirstElementByTagName (element, "organization-name",
 			Utils.vcNS);
-		if (list.size () > 0)
-			familyName = list.get (0).getText ();
-		list = Utils.getElementsByTagName (element, "given-name", Utils.vcNS);
-		if (list.size () > 0)
-			givenName = list.get (0).getText ();
-		list = Utils.getElementsByTagName (element, "email", Utils.vcNS);
-		if (list.size () > 0)
-			email = list.get (0).getText ();
-		list = Utils
-			.getElementsByTagName (element, "organization-name", Utils.vcNS);
-		if (list.size () > 0)
-			organization = list.get (0).getText ();
+		if (field != null)
+			organization = field.getText ();
 	}
 	
 	
@@ -11,27 +11,49 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.TransformerException;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
 import org.json.simple.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -523,6 +545,33 @@ public class TestArchive
 		assertEquals (
 			"unexpected number of entries in archive after submitting last commit with same path",
 			2 * (testFiles.size () - 1), ca.getNumEntries ());
+		assertEquals ("expected different number of sbml entries",
+			2 * (testFiles.size () - 1), ca.getNumEntriesWithFormat (
+				new URI ("http://identifiers.org/combine.specifications/sbml")));
+		
+		// changing the format should be reflected by the archive
+		URI cellml = new URI ("http://identifiers.org/combine.specifications/cellml");
+		ArchiveEntry formatEntry = ca.getEntry ("/file1.ext");
+		formatEntry.setFormat (cellml);
+		assertTrue ("expected to have cellml entries",
+			ca.hasEntriesWithFormat (cellml));
+		assertEquals ("expected to find the cellml entry", formatEntry,
+			ca.getEntriesWithFormat (cellml).get (0));
+		assertEquals ("expected different number of sbml entries",
+			2 * (testFiles.size () - 1) - 1, ca.getNumEntriesWithFormat (
+				new URI ("http://identifiers.org/combine.specifications/sbml")));
+		ca.moveEntry ("/file1.ext", "/file1.cellml");
+		assertEquals ("expected different number of cellml entries", 1,
+			ca.getNumEntriesWithFormat (cellml));
+		assertEquals ("expected to find the moved cellml entry", "/file1.cellml",
+			ca.getEntriesWithFormat (cellml).get (0).getFilePath ());
+		ca.removeEntry ("/file1.cellml");
+		assertFalse ("expected to not have cellml entries",
+			ca.hasEntriesWithFormat (cellml));
+		assertEquals ("expected to not find cellml entries", 0,
+			ca.getEntriesWithFormat (cellml).size ());
+		ca.addEntry (testFiles.get (1), "file1.ext",
+			new URI ("http://identifiers.org/combine.specifications/sbml"));
 		
 		// test replacing a file
 		File tmp1 = File.createTempFile ("combineArchiveTestFile", "tmp");
@@ -712,206 +761,1983 @@ public class TestArchive
 	
 	
 	/**
-	 * Test main entries.
+	 * Test main entries.
+	 */
+	@Test
+	public void testMainEntries ()
+	{
+		// lets create the archive
+		for (int i = 0; i < 6; i++)
+		{
+			if (testFiles.get (i).isDirectory ())
+			{
+				try
+				{
+					Utils.delete (testFiles.get (i));
+					testFiles.get (i).createNewFile ();
+				}
+				catch (IOException e)
+				{
+					LOGGER.error (e, "couldn't recreate testfiles.");
+				}
+			}
+		}
+		testFiles.get (0).delete ();
+		
+		CombineArchive ca = null;
+		try
+		{
+			ca = new CombineArchive (testFiles.get (0));
+		}
+		catch (IOException | JDOMException | ParseException
+			| CombineArchiveException e)
+		{
+			LOGGER.error (e, "couldn't read archive");
+			fail ("couldn't read archive");
+		}
+		
+		List<ArchiveEntry> entries = new ArrayList<ArchiveEntry> ();
+		for (int i = 1; i < testFiles.size (); i++)
+		{
+			try
+			{
+				if (i % 2 == 0)
+				{
+					ArchiveEntry ae = ca.addEntry (testFiles.get (i),
+						"/sub" + i + "/file" + i + ".ext",
+						new URI ("http://identifiers.org/combine.specifications/sbml"));
+					entries.add (ae);
+					if (i == 2)
+						ca.addMainEntry (ae);
+				}
+				else
+				{
+					entries.add (
+						ca.addEntry (testFiles.get (i), "/sub" + i + "/file" + i + ".ext",
+							new URI ("http://identifiers.org/combine.specifications/sbml"),
+							true));
+				}
+			}
+			catch (IOException | URISyntaxException e)
+			{
+				LOGGER.error (e, "couldn't add entry ", i, " to archive");
+				fail ("couldn't add entry " + i + " to archive");
+			}
+		}
+		
+		assertEquals ("expected 4 master files", 4, ca.getMainEntries ().size ());
+		assertNotNull ("main entries not backwards compatible", ca.getMainEntry ());
+		
+		int c1 = 0, c2 = 0;
+		for (ArchiveEntry entry : ca.getEntries ())
+		{
+			if (entry.isMainEntry ())
+				c1++;
+			if (ca.getMainEntries ().contains (entry))
+				c2++;
+		}
+		assertEquals ("expected 4 master files", c1, c2);
+		assertEquals ("expected 4 master files", 4, c1);
+		
+		List<VCard> creators = new ArrayList<VCard> ();
+		creators.add (new VCard ("Scharm", "Martin", "martin.scharm@uni-rostock.de",
+			"University of Rostock"));
+		creators.add (new VCard ("Waltemath", "Dagmar",
+			"dagmar.waltemath@uni-rostock.de", "University of Rostock"));
+		
+		for (ArchiveEntry e : entries)
+			e.addDescription (
+				new OmexMetaDataObject (new OmexDescription (creators, new Date ())));
+		
+		assertEquals ("unexpected number of entries in archive after creation",
+			testFiles.size () - 1, ca.getNumEntries ());
+		
+		int nMain = ca.getMainEntries ().size ();
+		ArchiveEntry ae = ca.getMainEntries ().get (0);
+		assertEquals ("unexpected first main entry", ae, ca.getMainEntry ());
+		ca.addMainEntry (ae);
+		assertEquals ("main entry was added twice", nMain,
+			ca.getMainEntries ().size ());
+		
+		// the list behaves like any other list
+		List<ArchiveEntry> mainEntries = ca.getMainEntries ();
+		ArchiveEntry last = mainEntries.get (nMain - 1);
+		Collections.sort (mainEntries, new Comparator<ArchiveEntry> ()
+		{
+			
+			@Override
+			public int compare (ArchiveEntry a, ArchiveEntry b)
+			{
+				return b.getFilePath ().compareTo (a.getFilePath ());
+			}
+		});
+		for (int i = 1; i < nMain; i++)
+			assertTrue ("expected main entries to be sorted", mainEntries.get (i - 1)
+				.getFilePath ().compareTo (mainEntries.get (i).getFilePath ()) > 0);
+		mainEntries.remove (ae);
+		assertFalse ("expected changes to the list to be reflected",
+			ca.isMainEntry (ae));
+		mainEntries.add (0, ae);
+		assertTrue ("expected changes to the list to be reflected",
+			ca.isMainEntry (ae));
+		assertEquals ("expected entry to be inserted", ae, ca.getMainEntry ());
+		assertEquals ("unexpected replaced entry", ae, mainEntries.set (0, last));
+		assertFalse ("expected replaced entry to not be a main entry anymore",
+			ca.isMainEntry (ae));
+		mainEntries.set (0, ae);
+		assertEquals ("unexpected number of main entries", nMain,
+			mainEntries.size ());
+		assertTrue ("expected entry to be a main entry again", ca.isMainEntry (ae));
+		
+		ca.removeMainEntry (ae);
+		assertFalse ("expected entry to not be a main entry anymore",
+			ae.isMainEntry ());
+		assertFalse ("expected entry to not be a main entry anymore",
+			ca.isMainEntry (ae));
+		assertEquals ("unexpected number of main entries", --nMain,
+			ca.getMainEntries ().size ());
+		
+		ae = ca.getMainEntries ().get (0);
+		try
+		{
+			assertTrue ("couldn't remove entry", ca.removeEntry (ae));
+			assertFalse ("double-removed entry?", ca.removeEntry (ae));
+		}
+		catch (IOException e)
+		{
+			LOGGER.error (e, "error removing an entry");
+			fail ("couldn't remove entry");
+		}
+		assertEquals ("unexpected number of main entries", --nMain,
+			ca.getMainEntries ().size ());
+		
+		ae = ca.getMainEntries ().get (0);
+		try
+		{
+			assertTrue ("couldn't remove entry",
+				ca.removeEntry (ae.getEntityPath ()));
+			assertFalse ("double-removed entry?",
+				ca.removeEntry (ae.getEntityPath ()));
+		}
+		catch (IOException e)
+		{
+			LOGGER.error (e, "error removing an entry");
+			fail ("couldn't remove entry");
+		}
+		assertEquals ("unexpected number of main entries", --nMain,
+			ca.getMainEntries ().size ());
+		
+		try
+		{
+			ca.pack ();
+			ca.close ();
+		}
+		catch (IOException | TransformerException e)
+		{
+			LOGGER.error (e, "couldn't pack/close archive");
+			fail ("couldn't pack/close archive");
+		}
+		
+	}
+	
+	
+	/**
+	 * Test meta of meta -> can we have meta data of the meta data file?
+	 */
+	@Test
+	public void testMetaOfMeta ()
+	{
+		try
+		{
+			LOGGER.setLogToStdErr (false);
+			
+			File theCopy = testFiles.get (0);
+			Files.copy (new File ("test/showcase-w-meta-of-meta.omex").toPath (),
+				theCopy.toPath (), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			
+			CombineArchive ca = new CombineArchive (theCopy, false);
+			int numDescrCa = ca.getDescriptions ().size ();
+			int numDescrMeta = ca.getMetaOfMeta ().getDescriptions ().size ();
+			int numDescrAllEntries = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntries += ae.getDescriptions ().size ();
+			
+			// write to mutliple files
+			ca.pack (true);
+			ca.close ();
+			
+			// check the new archive
+			ca = new CombineArchive (theCopy, false);
+			int numDescrAllEntriesTmp = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
+			assertEquals (
+				"expected same number of descriptions for the archive before and after writing to mutltiple meta files",
+				numDescrCa, ca.getDescriptions ().size ());
+			assertEquals (
+				"expected same number of descriptions for the archive's meta data before and after writing to mutltiple meta files",
+				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
+			assertEquals (
+				"expected same number of descriptions for the archive's entries before and after writing to mutltiple meta files",
+				numDescrAllEntries, numDescrAllEntriesTmp);
+			
+			// write to single file
+			ca.pack (false);
+			ca.close ();
+			
+			// check the new archive
+			ca = new CombineArchive (theCopy, false);
+			numDescrAllEntriesTmp = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
+			assertEquals (
+				"expected same number of descriptions for the archive before and after writing to single meta file",
+				numDescrCa, ca.getDescriptions ().size ());
+			assertEquals (
+				"expected same number of descriptions for the archive's meta data before and after writing to single meta file",
+				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
+			assertEquals (
+				"expected same number of descriptions for the archive's entries before and after writing to single meta file",
+				numDescrAllEntries, numDescrAllEntriesTmp);
+			
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		LOGGER.setLogToStdErr (true);
+		
+	}
+	
+	
+	/**
+	 * Test lazy meta data -> do we get the same descriptions if we postpone
+	 * parsing the meta data?
+	 */
+	@Test
+	public void testLazyMetaData ()
+	{
+		try
+		{
+			LOGGER.setLogToStdErr (false);
+			
+			File theCopy = testFiles.get (0);
+			Files.copy (new File ("test/showcase-w-meta-of-meta.omex").toPath (),
+				theCopy.toPath (), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			
+			CombineArchive ca = new CombineArchive (theCopy, false);
+			int numDescrCa = ca.getDescriptions ().size ();
+			int numDescrMeta = ca.getMetaOfMeta ().getDescriptions ().size ();
+			int numDescrAllEntries = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntries += ae.getDescriptions ().size ();
+			int numEntries = ca.getNumEntries ();
+			ca.close ();
+			
+			// only ask an entry -> the whole meta data should be available
+			ca = new CombineArchive (theCopy, false, true);
+			assertFalse ("did not expect meta data to be loaded",
+				ca.isMetaDataLoaded ());
+			assertEquals ("expected to see the same entries in lazy mode",
+				numEntries, ca.getNumEntries ());
+			int numDescrAllEntriesTmp = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
+			assertTrue ("expected meta data to be loaded", ca.isMetaDataLoaded ());
+			assertEquals (
+				"expected same number of descriptions for the archive's entries in lazy mode",
+				numDescrAllEntries, numDescrAllEntriesTmp);
+			assertEquals (
+				"expected same number of descriptions for the archive in lazy mode",
+				numDescrCa, ca.getDescriptions ().size ());
+			assertEquals (
+				"expected same number of descriptions for the archive's meta data in lazy mode",
+				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
+			assertFalse ("did not expect errors", ca.hasErrors ());
+			ca.close ();
+			
+			// packing must not lose the meta data that was never touched
+			ca = new CombineArchive (theCopy, false, true);
+			ca.pack ();
+			ca.close ();
+			
+			ca = new CombineArchive (theCopy, false, true);
+			numDescrAllEntriesTmp = 0;
+			for (ArchiveEntry ae : ca.getEntries ())
+				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
+			assertEquals (
+				"expected same number of descriptions for the archive's entries after packing in lazy mode",
+				numDescrAllEntries, numDescrAllEntriesTmp);
+			assertEquals (
+				"expected same number of descriptions for the archive's meta data after packing in lazy mode",
+				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		LOGGER.setLogToStdErr (true);
+	}
+	
+	
+	/**
+	 * Test reading an archive with plenty of entries and descriptions pointing
+	 * into these entries.
+	 */
+	@Test
+	public void testManyFragmentDescriptions ()
+	{
+		try
+		{
+			LOGGER.setLogToStdErr (false);
+			
+			int numEntries = 500;
+			File archiveFile = testFiles.get (0);
+			archiveFile.delete ();
+			CombineArchive ca = new CombineArchive (archiveFile);
+			VCard creator = new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock");
+			for (int i = 0; i < numEntries; i++)
+			{
+				ArchiveEntry entry = ca.addEntry (testFiles.get (1),
+					"/sub" + (i % 10) + "/file" + i + ".xml",
+					new URI ("http://identifiers.org/combine.specifications/sbml"));
+				entry.addDescription (new OmexMetaDataObject (
+					new OmexDescription (creator, new Date ())));
+				entry.addDescription ("species" + i, new OmexMetaDataObject (
+					new OmexDescription (creator, new Date (), "species " + i)));
+			}
+			ca.pack ();
+			ca.close ();
+			
+			long start = System.currentTimeMillis ();
+			ca = new CombineArchive (archiveFile);
+			LOGGER.info ("reading ", numEntries, " entries with ", 2 * numEntries,
+				" descriptions took ", System.currentTimeMillis () - start, " ms");
+			assertFalse ("did not expect errors", ca.hasErrors ());
+			assertEquals ("unexpected number of entries", numEntries,
+				ca.getNumEntries ());
+			for (int i = 0; i < numEntries; i++)
+			{
+				ArchiveEntry entry = ca
+					.getEntry ("/sub" + (i % 10) + "/file" + i + ".xml");
+				assertEquals ("expected two descriptions for " + entry.getFilePath (),
+					2, entry.getDescriptions ().size ());
+				int fragments = 0;
+				for (MetaDataObject meta : entry.getDescriptions ())
+					if (meta.getAbout ().equals (entry.getFilePath () + "#species" + i))
+						fragments++;
+				assertEquals ("expected exactly one description of the fragment", 1,
+					fragments);
+			}
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		LOGGER.setLogToStdErr (true);
+	}
+	
+	
+	/**
+	 * Test reading OMEX and non-OMEX descriptions from a meta data file.
+	 */
+	@Test
+	public void testStreamedMetaData ()
+	{
+		try
+		{
+			File rdf = testFiles.get (2);
+			try (BufferedWriter bw = new BufferedWriter (new FileWriter (rdf)))
+			{
+				bw.write ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\""
+					+ " xmlns:dcterms=\"http://purl.org/dc/terms/\""
+					+ " xmlns:vCard=\"http://www.w3.org/2006/vcard/ns#\""
+					+ " xmlns:my=\"http://example.org/my#\">\n"
+					// omex
+					+ "<rdf:Description rdf:about=\"./file\">"
+					+ "<dcterms:description>some <![CDATA[description]]></dcterms:description>"
+					+ "<dcterms:creator><rdf:Bag><rdf:li rdf:parseType=\"Resource\">"
+					+ "<vCard:hasName rdf:parseType=\"Resource\">"
+					+ "<vCard:family-name>Scharm</vCard:family-name>"
+					+ "<vCard:given-name>Martin</vCard:given-name></vCard:hasName>"
+					+ "<vCard:email>martin@example.org</vCard:email>"
+					+ "</rdf:li></rdf:Bag></dcterms:creator>"
+					+ "<dcterms:created rdf:parseType=\"Resource\">"
+					+ "<dcterms:W3CDTF>2014-01-01T10:00:00Z</dcterms:W3CDTF></dcterms:created>"
+					+ "<dcterms:modified rdf:parseType=\"Resource\">"
+					+ "<dcterms:W3CDTF>2014-02-01T10:00:00Z</dcterms:W3CDTF></dcterms:modified>"
+					+ "<dcterms:modified rdf:parseType=\"Resource\">"
+					+ "<dcterms:W3CDTF>2014-03-01T10:00:00Z</dcterms:W3CDTF></dcterms:modified>"
+					+ "</rdf:Description>\n"
+					// something else
+					+ "<rdf:Description rdf:about=\"./file#frag\">"
+					+ "<my:stuff my:attr=\"value\">some <my:nested>text</my:nested></my:stuff>"
+					+ "</rdf:Description>\n"
+					// omex with an invalid date
+					+ "<rdf:Description rdf:about=\"./file\">"
+					+ "<dcterms:created rdf:parseType=\"Resource\">"
+					+ "<dcterms:W3CDTF>yesterday</dcterms:W3CDTF></dcterms:created>"
+					+ "</rdf:Description>\n" + "</rdf:RDF>");
+			}
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ArchiveEntry entry = ca.addEntry (testFiles.get (1), "/file",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			
+			assertEquals ("expected to read 3 descriptions", 3,
+				entry.addAllDescriptions (rdf));
+			List<MetaDataObject> descriptions = entry.getDescriptions ();
+			assertEquals ("expected to find 3 descriptions", 3, descriptions.size ());
+			
+			assertTrue ("expected to find an omex description",
+				descriptions.get (0) instanceof OmexMetaDataObject);
+			OmexDescription omex = ((OmexMetaDataObject) descriptions.get (0))
+				.getOmexDescription ();
+			assertEquals ("unexpected description", "some description",
+				omex.getDescription ());
+			assertEquals ("expected to find 1 creator", 1, omex.getCreators ()
+				.size ());
+			assertEquals ("unexpected family name", "Scharm", omex.getCreators ()
+				.get (0).getFamilyName ());
+			assertEquals ("unexpected given name", "Martin", omex.getCreators ()
+				.get (0).getGivenName ());
+			assertEquals ("unexpected email", "martin@example.org", omex
+				.getCreators ().get (0).getEmail ());
+			assertEquals ("unexpected creation date",
+				Utils.dateFormater.parse ("2014-01-01T10:00:00Z"), omex.getCreated ());
+			assertEquals ("expected to find 2 modification dates", 2, omex
+				.getModified ().size ());
+			
+			assertTrue ("expected to find a default description",
+				descriptions.get (1) instanceof DefaultMetaDataObject);
+			assertEquals ("unexpected about", "/file#frag", descriptions.get (1)
+				.getAbout ());
+			Namespace myNs = Namespace.getNamespace ("http://example.org/my#");
+			Element stuff = descriptions.get (1).getXmlDescription ()
+				.getChild ("stuff", myNs);
+			assertNotNull ("expected to find the stuff element", stuff);
+			assertEquals ("unexpected attribute", "value",
+				stuff.getAttributeValue ("attr", myNs));
+			assertEquals ("unexpected content", "some text", stuff.getValue ());
+			
+			assertTrue ("expected an unparsable omex description to be default",
+				descriptions.get (2) instanceof DefaultMetaDataObject);
+			
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test writing compact meta data files.
+	 */
+	@Test
+	public void testCompactMetaData ()
+	{
+		try
+		{
+			long[] sizes = new long[2];
+			for (int run = 0; run < 2; run++)
+			{
+				boolean compact = run == 1;
+				testFiles.get (0).delete ();
+				CombineArchive ca = new CombineArchive (testFiles.get (0));
+				ArchiveEntry entry = ca.addEntry (testFiles.get (1), "/sub/file",
+					new URI ("http://identifiers.org/combine.specifications/sbml"));
+				List<VCard> creators = new ArrayList<VCard> ();
+				creators.add (new VCard ("Scharm", "Martin",
+					"martin.scharm@uni-rostock.de", "University of Rostock"));
+				entry.addDescription (new OmexMetaDataObject (new OmexDescription (
+					creators, new Date (), "some <description> & more")));
+				Element metaParent = new Element ("stuff");
+				Element metaElement = new Element ("myMetaElement",
+					Namespace.getNamespace ("my", "http://example.org/my#"));
+				metaElement.setAttribute ("someAttribute", "someValue");
+				metaElement.addContent ("some ");
+				metaElement.addContent (new Element ("nested", metaElement
+					.getNamespace ()).setText ("mixed"));
+				metaElement.addContent (" content");
+				metaParent.addContent (metaElement);
+				entry.addDescription ("someFragment",
+					new DefaultMetaDataObject (metaParent));
+				ca.pack (false, compact);
+				ca.close ();
+				
+				ca = new CombineArchive (testFiles.get (0));
+				assertFalse ("did not expect errors", ca.hasErrors ());
+				entry = ca.getEntry ("/sub/file");
+				assertEquals ("unexpected number of descriptions", 2, entry
+					.getDescriptions ().size ());
+				for (MetaDataObject meta : entry.getDescriptions ())
+				{
+					if (meta instanceof OmexMetaDataObject)
+						assertEquals ("unexpected description",
+							"some <description> & more", ((OmexMetaDataObject) meta)
+								.getOmexDescription ().getDescription ());
+					else
+					{
+						Element read = meta.getXmlDescription ().getChild (
+							"myMetaElement", metaElement.getNamespace ());
+						assertNotNull ("expected to find my meta element", read);
+						assertEquals ("unexpected attribute", "someValue",
+							read.getAttributeValue ("someAttribute"));
+						assertEquals ("unexpected content", "some mixed content",
+							read.getValue ());
+					}
+				}
+				
+				File extracted = Files.createTempDirectory ("combineArchive").toFile ();
+				ca.extractTo (extracted);
+				sizes[run] = new File (extracted, CombineArchive.METADATA_LOCATION)
+					.length ();
+				Utils.delete (extracted);
+				ca.close ();
+			}
+			assertTrue ("expected compact meta data to be smaller",
+				sizes[1] < sizes[0]);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test writing an archive to another file using concurrent compression.
+	 */
+	@Test
+	public void testWriteTo ()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool (4);
+		try
+		{
+			// a large file that needs to be split into multiple chunks
+			File large = testFiles.get (5);
+			Random random = new Random (42);
+			try (BufferedWriter bw = new BufferedWriter (new FileWriter (large)))
+			{
+				for (int i = 0; i < 300000; i++)
+					bw.write ("line " + i + " value " + random.nextInt (1000) + "\n");
+			}
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ca.addEntry (large, "/large/file.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"), true);
+			for (int i = 1; i < 5; i++)
+				ca.addEntry (testFiles.get (i), "/sub" + i + "/file" + i,
+					new URI ("http://identifiers.org/combine.specifications/sbml"));
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			ca.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			
+			File[] targets = new File[2];
+			for (int run = 0; run < 2; run++)
+			{
+				targets[run] = File.createTempFile ("combineArchive", "writeTo");
+				testFiles.add (targets[run]);
+				ca.writeTo (targets[run], run == 0 ? executor : null);
+			}
+			ca.close ();
+			
+			for (File target : targets)
+			{
+				// the zip should be valid, including crc and sizes
+				int n = 0;
+				try (ZipInputStream zis = new ZipInputStream (new FileInputStream (
+					target)))
+				{
+					ZipEntry entry;
+					while ( (entry = zis.getNextEntry ()) != null)
+					{
+						byte[] buf = new byte[8192];
+						long size = 0;
+						for (int r = zis.read (buf); r >= 0; r = zis.read (buf))
+							size += r;
+						if (entry.getName ().equals ("large/file.txt"))
+							assertEquals ("unexpected size of large file", large.length (),
+								size);
+						n++;
+					}
+				}
+				assertTrue ("expected to find some zip entries", n > 6);
+				
+				CombineArchive written = new CombineArchive (target);
+				assertFalse ("did not expect errors", written.hasErrors ());
+				assertEquals ("unexpected number of entries", 5,
+					written.getNumEntries ());
+				assertEquals ("unexpected number of main entries", 1, written
+					.getMainEntries ().size ());
+				assertEquals ("unexpected number of archive descriptions", 1,
+					written.getDescriptions ().size ());
+				File extracted = File.createTempFile ("combineArchive", "extracted");
+				testFiles.add (extracted);
+				written.getEntry ("/large/file.txt").extractFile (extracted);
+				assertTrue ("large file differs", Arrays.equals (
+					Files.readAllBytes (large.toPath ()),
+					Files.readAllBytes (extracted.toPath ())));
+				written.close ();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+	
+	
+	/**
+	 * Test that packing an unmodified archive does not touch the ZIP file and
+	 * that unmodified entries are copied when writing to another file.
+	 */
+	@Test
+	public void testIncrementalPack ()
+	{
+		try
+		{
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			for (int i = 1; i < 4; i++)
+				ca.addEntry (testFiles.get (i), "/sub" + i + "/file" + i,
+					new URI ("http://identifiers.org/combine.specifications/sbml"), i == 1);
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			ca.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			ca.getEntry ("/sub2/file2").addDescription (new OmexMetaDataObject (
+				new OmexDescription (creators, new Date ())));
+			ca.pack ();
+			ca.close ();
+			
+			// reopen and pack without modifications
+			byte[] original = Files.readAllBytes (testFiles.get (0).toPath ());
+			ca = new CombineArchive (testFiles.get (0));
+			ca.pack ();
+			ca.close ();
+			assertTrue ("packing an unmodified archive changed the file",
+				Arrays.equals (original,
+					Files.readAllBytes (testFiles.get (0).toPath ())));
+			
+			// modify one entry and write to another file
+			ca = new CombineArchive (testFiles.get (0));
+			ca.replaceFile (testFiles.get (4), ca.getEntry ("/sub3/file3"));
+			File target = File.createTempFile ("combineArchive", "incremental");
+			testFiles.add (target);
+			ca.writeTo (target);
+			ca.close ();
+			
+			try (ZipFile before = new ZipFile (testFiles.get (0));
+				ZipFile after = new ZipFile (target))
+			{
+				for (String name : new String[] { "sub1/file1", "sub2/file2",
+					"manifest.xml", "metadata.rdf" })
+				{
+					ZipEntry a = before.getEntry (name);
+					ZipEntry b = after.getEntry (name);
+					assertNotNull ("missing entry " + name, b);
+					assertEquals ("unexpected crc of " + name, a.getCrc (), b.getCrc ());
+					assertEquals ("unexpected compressed size of " + name,
+						a.getCompressedSize (), b.getCompressedSize ());
+				}
+			}
+			
+			CombineArchive written = new CombineArchive (target);
+			assertFalse ("did not expect errors", written.hasErrors ());
+			assertEquals ("unexpected number of entries", 3, written.getNumEntries ());
+			assertEquals ("unexpected number of main entries", 1, written
+				.getMainEntries ().size ());
+			assertEquals ("unexpected number of entry descriptions", 1, written
+				.getEntry ("/sub2/file2").getDescriptions ().size ());
+			for (int i = 1; i < 4; i++)
+			{
+				File extracted = File.createTempFile ("combineArchive", "extracted");
+				testFiles.add (extracted);
+				written.getEntry ("/sub" + i + "/file" + i).extractFile (extracted);
+				assertTrue ("unexpected contents of entry " + i, Arrays.equals (Files
+					.readAllBytes (testFiles.get (i == 3 ? 4 : i).toPath ()), Files
+					.readAllBytes (extracted.toPath ())));
+			}
+			written.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test the compression policy.
+	 */
+	@Test
+	public void testCompressionPolicy ()
+	{
+		try
+		{
+			// random data doesn't compress, repeated lines do
+			File picture = testFiles.get (4);
+			byte[] random = new byte[100000];
+			new Random (42).nextBytes (random);
+			Files.write (picture.toPath (), random);
+			File text = testFiles.get (5);
+			try (BufferedWriter bw = new BufferedWriter (new FileWriter (text)))
+			{
+				for (int i = 0; i < 10000; i++)
+					bw.write ("some text\n");
+			}
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ArchiveEntry pictureEntry = ca.addEntry (picture, "/img/picture.png",
+				new URI ("http://purl.org/NET/mediatypes/image/png"));
+			ArchiveEntry textEntry = ca.addEntry (text, "/text.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			ArchiveEntry dataEntry = ca.addEntry (testFiles.get (1), "/data.H5",
+				new URI ("http://purl.org/NET/mediatypes/application/octet-stream"));
+			
+			assertEquals ("unexpected method for png", ZipEntry.STORED,
+				pictureEntry.getCompressionMethod ());
+			assertEquals ("unexpected method for text", ZipEntry.DEFLATED,
+				textEntry.getCompressionMethod ());
+			assertEquals ("unexpected method for hdf5 extension", ZipEntry.STORED,
+				dataEntry.getCompressionMethod ());
+			assertTrue ("random data should not compress",
+				pictureEntry.getCompressionRatio () > .99);
+			assertTrue ("text should compress well",
+				textEntry.getCompressionRatio () < .1);
+			
+			File stored = File.createTempFile ("combineArchive", "stored");
+			testFiles.add (stored);
+			ca.writeTo (stored);
+			
+			// deflate everything at maximum level
+			ca.setCompressionPolicy (new CompressionPolicy (Deflater.BEST_COMPRESSION));
+			assertEquals ("unexpected method for png", ZipEntry.DEFLATED,
+				pictureEntry.getCompressionMethod ());
+			File deflated = File.createTempFile ("combineArchive", "deflated");
+			testFiles.add (deflated);
+			ca.writeTo (deflated);
+			ca.close ();
+			
+			try (ZipFile zip = new ZipFile (stored))
+			{
+				assertEquals ("png should be stored", ZipEntry.STORED, zip.getEntry (
+					"img/picture.png").getMethod ());
+				assertEquals ("text should be deflated", ZipEntry.DEFLATED, zip
+					.getEntry ("text.txt").getMethod ());
+			}
+			try (ZipFile zip = new ZipFile (deflated))
+			{
+				assertEquals ("png should be deflated", ZipEntry.DEFLATED, zip
+					.getEntry ("img/picture.png").getMethod ());
+			}
+			
+			for (File target : new File[] { stored, deflated })
+			{
+				// ZipInputStream verifies sizes and checksums
+				try (ZipInputStream zis = new ZipInputStream (new FileInputStream (
+					target)))
+				{
+					byte[] buf = new byte[8192];
+					while (zis.getNextEntry () != null)
+						while (zis.read (buf) >= 0)
+							;
+				}
+				
+				CombineArchive written = new CombineArchive (target);
+				assertFalse ("did not expect errors", written.hasErrors ());
+				File extracted = File.createTempFile ("combineArchive", "extracted");
+				testFiles.add (extracted);
+				written.getEntry ("/img/picture.png").extractFile (extracted);
+				assertTrue ("picture differs", Arrays.equals (random,
+					Files.readAllBytes (extracted.toPath ())));
+				written.close ();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test adding a directory tree in bulk.
+	 */
+	@Test
+	public void testAddEntries ()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool (3);
+		try
+		{
+			Path dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			Files.createDirectories (dir.resolve ("models/sub"));
+			Files.createDirectories (dir.resolve ("empty"));
+			Files.write (dir.resolve ("models/model.sbml"), "sbml".getBytes ());
+			Files.write (dir.resolve ("models/sub/other.sbml"), "other".getBytes ());
+			Files.write (dir.resolve ("readme.txt"), "text".getBytes ());
+			// symbolic links are skipped
+			try
+			{
+				Files.createSymbolicLink (dir.resolve ("link.txt"),
+					dir.resolve ("readme.txt"));
+				Files.createSymbolicLink (dir.resolve ("linkdir"),
+					dir.resolve ("models"));
+			}
+			catch (UnsupportedOperationException | IOException e)
+			{
+				// the file system doesn't support links
+			}
+			
+			final URI sbml = new URI (
+				"http://identifiers.org/combine.specifications/sbml");
+			final URI text = new URI ("http://purl.org/NET/mediatypes/text/plain");
+			FormatResolver resolver = new FormatResolver ()
+			{
+				
+				@Override
+				public URI getFormat (Path file)
+				{
+					return file.toString ().endsWith (".sbml") ? sbml : text;
+				}
+			};
+			PathFilter mainSelector = new PathFilter ()
+			{
+				
+				@Override
+				public boolean accept (Path path)
+				{
+					return path.getFileName ().toString ().equals ("model.sbml");
+				}
+			};
+			
+			for (int run = 0; run < 2; run++)
+			{
+				testFiles.get (0).delete ();
+				CombineArchive ca = new CombineArchive (testFiles.get (0));
+				List<ArchiveEntry> added = run == 0
+					? ca.addEntries (dir, resolver, mainSelector, executor)
+					: ca.addEntries (dir, resolver, mainSelector);
+				assertEquals ("unexpected number of added entries", 3, added.size ());
+				assertEquals ("unexpected number of entries", 3, ca.getNumEntries ());
+				assertEquals ("unexpected number of sbml entries", 2,
+					ca.getNumEntriesWithFormat (sbml));
+				assertEquals ("unexpected number of main entries", 1, ca
+					.getMainEntries ().size ());
+				assertEquals ("unexpected main entry", "/models/model.sbml", ca
+					.getMainEntries ().get (0).getFilePath ());
+				
+				// adding again replaces the entries
+				ca.addEntries (dir, resolver, null, executor);
+				assertEquals ("unexpected number of entries", 3, ca.getNumEntries ());
+				ca.pack ();
+				ca.close ();
+				
+				ca = new CombineArchive (testFiles.get (0));
+				assertFalse ("did not expect errors", ca.hasErrors ());
+				assertEquals ("unexpected number of entries", 3, ca.getNumEntries ());
+				File extracted = File.createTempFile ("combineArchive", "extracted");
+				testFiles.add (extracted);
+				ca.getEntry ("/models/sub/other.sbml").extractFile (extracted);
+				assertEquals ("unexpected contents", "other", new String (Files
+					.readAllBytes (extracted.toPath ())));
+				ca.close ();
+			}
+			
+			// reserved names are rejected before anything is added
+			Files.write (dir.resolve ("manifest.xml"), "manifest".getBytes ());
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			try
+			{
+				ca.addEntries (dir, resolver, null, executor);
+				fail ("expected an IllegalArgumentException");
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+			assertEquals ("did not expect any entries", 0, ca.getNumEntries ());
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+	
+	
+	/**
+	 * Test adding entries from streams, buffers, and channels.
+	 */
+	@Test
+	public void testAddFromStream ()
+	{
+		try
+		{
+			URI format = new URI ("http://purl.org/NET/mediatypes/text/plain");
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			
+			ca.addEntry (new ByteArrayInputStream ("stream".getBytes ()),
+				"/from/stream.txt", format, true);
+			
+			ByteBuffer heap = ByteBuffer.wrap ("xxheap".getBytes ());
+			heap.position (2);
+			ca.addEntry (heap, "/from/heap.txt", format, false);
+			assertEquals ("position of buffer changed", 2, heap.position ());
+			
+			ByteBuffer direct = ByteBuffer.allocateDirect (6);
+			direct.put ("direct".getBytes ());
+			direct.flip ();
+			ca.addEntry (direct, "direct.txt", format, false);
+			
+			ca.addEntry (Channels.newChannel (new ByteArrayInputStream ("channel"
+				.getBytes ())), "/from/channel.txt", format, false);
+			
+			// a failing stream must not destroy an existing entry
+			InputStream broken = new InputStream ()
+			{
+				
+				private int	n	= 0;
+				
+				
+				@Override
+				public int read () throws IOException
+				{
+					if (n++ > 10)
+						throw new IOException ("broken stream");
+					return 'x';
+				}
+			};
+			try
+			{
+				ca.addEntry (broken, "/from/stream.txt", format, false);
+				fail ("expected an IOException");
+			}
+			catch (IOException e)
+			{
+			}
+			
+			for (String reserved : new String[] { "/manifest.xml", "/metadata.rdf",
+				"metadata-3.rdf" })
+				try
+				{
+					ca.addEntry (new ByteArrayInputStream (new byte[0]), reserved,
+						format, false);
+					fail ("expected an IllegalArgumentException for " + reserved);
+				}
+				catch (IllegalArgumentException e)
+				{
+				}
+			
+			assertEquals ("unexpected number of entries", 4, ca.getNumEntries ());
+			ca.pack ();
+			ca.close ();
+			
+			ca = new CombineArchive (testFiles.get (0));
+			assertFalse ("did not expect errors", ca.hasErrors ());
+			assertEquals ("unexpected number of entries", 4, ca.getNumEntries ());
+			assertEquals ("unexpected number of main entries", 1, ca
+				.getMainEntries ().size ());
+			String[][] expected = new String[][] {
+				{ "/from/stream.txt", "stream" }, { "/from/heap.txt", "heap" },
+				{ "/direct.txt", "direct" }, { "/from/channel.txt", "channel" } };
+			for (String[] e : expected)
+			{
+				File extracted = File.createTempFile ("combineArchive", "extracted");
+				testFiles.add (extracted);
+				ca.getEntry (e[0]).extractFile (extracted);
+				assertEquals ("unexpected contents of " + e[0], e[1], new String (Files
+					.readAllBytes (extracted.toPath ())));
+			}
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream (ca.getEntry (
+				"/from/stream.txt").getPath ().getParent ()))
+			{
+				for (Path p : dir)
+					assertFalse ("found left over part file " + p, p.getFileName ()
+						.toString ().endsWith (".part"));
+			}
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test copying entries between archives.
+	 */
+	@Test
+	public void testCopyEntry ()
+	{
+		try
+		{
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			
+			testFiles.get (0).delete ();
+			CombineArchive source = new CombineArchive (testFiles.get (0));
+			ArchiveEntry model = source.addEntry (testFiles.get (1), "/model.xml",
+				new URI ("http://identifiers.org/combine.specifications/sbml"), true);
+			model.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			model.addDescription ("species1", new OmexMetaDataObject (
+				new OmexDescription (creators, new Date ())));
+			
+			File targetFile = testFiles.get (5);
+			targetFile.delete ();
+			CombineArchive target = new CombineArchive (targetFile);
+			ArchiveEntry copy = target.copyEntryFrom (model, "/copy/model.xml", true);
+			assertEquals ("unexpected format", model.getFormat (), copy.getFormat ());
+			assertEquals ("unexpected number of descriptions", 2, copy
+				.getDescriptions ().size ());
+			assertFalse ("copy should not be a main entry", copy.isMainEntry ());
+			
+			// copy within the same archive, without meta data
+			ArchiveEntry local = source.copyEntryFrom (model, "/local.xml", false);
+			assertEquals ("unexpected number of descriptions", 0, local
+				.getDescriptions ().size ());
+			assertEquals ("source lost its descriptions", 2, model.getDescriptions ()
+				.size ());
+			try
+			{
+				source.copyEntryFrom (model, "model.xml", false);
+				fail ("expected an IllegalArgumentException");
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+			
+			source.pack ();
+			source.close ();
+			target.pack ();
+			target.close ();
+			
+			target = new CombineArchive (targetFile);
+			assertFalse ("did not expect errors", target.hasErrors ());
+			copy = target.getEntry ("/copy/model.xml");
+			assertNotNull ("copy not found", copy);
+			assertEquals ("unexpected number of descriptions", 2, copy
+				.getDescriptions ().size ());
+			int fragments = 0;
+			for (MetaDataObject meta : copy.getDescriptions ())
+				if ("species1".equals (meta.getFragmentIdentifier ()))
+				{
+					fragments++;
+					assertEquals ("unexpected about", "/copy/model.xml#species1",
+						meta.getAbout ());
+				}
+			assertEquals ("expected one fragment description", 1, fragments);
+			File extracted = File.createTempFile ("combineArchive", "extracted");
+			testFiles.add (extracted);
+			copy.extractFile (extracted);
+			assertTrue ("copy differs", Arrays.equals (Files.readAllBytes (testFiles
+				.get (1).toPath ()), Files.readAllBytes (extracted.toPath ())));
+			target.close ();
+			
+			source = new CombineArchive (testFiles.get (0));
+			assertEquals ("unexpected number of entries", 2, source.getNumEntries ());
+			source.getEntry ("/local.xml").extractFile (extracted);
+			assertTrue ("local copy differs", Arrays.equals (Files
+				.readAllBytes (testFiles.get (1).toPath ()), Files
+				.readAllBytes (extracted.toPath ())));
+			source.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test reading entries through streams and channels.
+	 */
+	@Test
+	public void testEntryStreams ()
+	{
+		try
+		{
+			byte[] data = new byte[200000];
+			Random random = new Random (42);
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) ('a' + random.nextInt (4));
+			Files.write (testFiles.get (1).toPath (), data);
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ca.addEntry (testFiles.get (1), "/data.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			ca.pack ();
+			ca.close ();
+			
+			ca = new CombineArchive (testFiles.get (0));
+			ArchiveEntry entry = ca.getEntry ("/data.txt");
+			assertEquals ("unexpected size", data.length, entry.getSize ());
+			assertTrue ("entry should be compressed",
+				entry.getCompressedSize () < data.length);
+			CRC32 crc = new CRC32 ();
+			crc.update (data);
+			assertEquals ("unexpected crc", crc.getValue (), entry.getCrc ());
+			
+			ByteArrayOutputStream read = new ByteArrayOutputStream ();
+			try (InputStream in = entry.openStream ())
+			{
+				byte[] buf = new byte[4096];
+				for (int n = in.read (buf); n >= 0; n = in.read (buf))
+					read.write (buf, 0, n);
+			}
+			assertTrue ("stream returned wrong data", Arrays.equals (data,
+				read.toByteArray ()));
+			
+			try (SeekableByteChannel channel = entry.openChannel ())
+			{
+				assertEquals ("unexpected channel size", data.length, channel.size ());
+				
+				// forward, backward, and direct buffers
+				int[] positions = new int[] { 150000, 10, 10, 199990, 70000 };
+				for (int k = 0; k < positions.length; k++)
+				{
+					ByteBuffer buf = k % 2 == 0 ? ByteBuffer.allocate (100)
+						: ByteBuffer.allocateDirect (100);
+					channel.position (positions[k]);
+					while (buf.hasRemaining () && channel.read (buf) >= 0)
+						;
+					buf.flip ();
+					byte[] chunk = new byte[buf.remaining ()];
+					buf.get (chunk);
+					assertTrue ("channel returned wrong data at " + positions[k],
+						Arrays.equals (Arrays.copyOfRange (data, positions[k],
+							Math.min (data.length, positions[k] + 100)), chunk));
+					assertEquals ("unexpected position", positions[k] + chunk.length,
+						channel.position ());
+				}
+				
+				channel.position (data.length);
+				assertEquals ("expected end of channel", -1,
+					channel.read (ByteBuffer.allocate (10)));
+				try
+				{
+					channel.write (ByteBuffer.allocate (10));
+					fail ("expected a NonWritableChannelException");
+				}
+				catch (NonWritableChannelException e)
+				{
+				}
+			}
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test mapping stored entries into memory.
+	 */
+	@Test
+	public void testMapStored ()
+	{
+		try
+		{
+			byte[] random = new byte[300000];
+			new Random (42).nextBytes (random);
+			Files.write (testFiles.get (1).toPath (), random);
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ArchiveEntry picture = ca.addEntry (testFiles.get (1), "/img/picture.png",
+				new URI ("http://purl.org/NET/mediatypes/image/png"));
+			ca.addEntry (testFiles.get (2), "/text.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			assertNull ("entries of a new archive cannot be mapped", picture.map ());
+			
+			// write the archive so that the picture is stored
+			File stored = File.createTempFile ("combineArchive", "stored");
+			testFiles.add (stored);
+			ca.writeTo (stored);
+			ca.close ();
+			
+			ca = new CombineArchive (stored);
+			picture = ca.getEntry ("/img/picture.png");
+			MappedByteBuffer mapped = picture.map ();
+			assertNotNull ("stored entry should be mappable", mapped);
+			assertTrue ("mapped buffer should be read-only", mapped.isReadOnly ());
+			byte[] contents = new byte[mapped.remaining ()];
+			mapped.get (contents);
+			assertTrue ("mapped data differs", Arrays.equals (random, contents));
+			
+			assertNull ("deflated entries cannot be mapped", ca.getEntry (
+				"/text.txt").map ());
+			
+			// modified entries cannot be mapped anymore
+			ca.replaceFile (testFiles.get (3), picture);
+			assertNull ("modified entries cannot be mapped", picture.map ());
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test positional reads of entries.
+	 */
+	@Test
+	public void testRangeReads ()
+	{
+		try
+		{
+			// spans a few chunks of the parallel deflater
+			byte[] text = new byte[3500000];
+			Random random = new Random (42);
+			for (int i = 0; i < text.length; i++)
+				text[i] = (byte) ('a' + random.nextInt (4));
+			Files.write (testFiles.get (1).toPath (), text);
+			byte[] picture = new byte[300000];
+			random.nextBytes (picture);
+			Files.write (testFiles.get (2).toPath (), picture);
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ca.addEntry (testFiles.get (1), "/trace.csv",
+				new URI ("http://purl.org/NET/mediatypes/text/csv"));
+			ca.addEntry (testFiles.get (2), "/img/picture.png",
+				new URI ("http://purl.org/NET/mediatypes/image/png"));
+			
+			// the picture will be stored
+			File target = File.createTempFile ("combineArchive", "ranges");
+			testFiles.add (target);
+			ca.writeTo (target);
+			ca.close ();
+			
+			ca = new CombineArchive (target);
+			Object[][] entries = new Object[][] {
+				{ ca.getEntry ("/trace.csv"), text },
+				{ ca.getEntry ("/img/picture.png"), picture } };
+			for (Object[] e : entries)
+			{
+				ArchiveEntry entry = (ArchiveEntry) e[0];
+				byte[] data = (byte[]) e[1];
+				
+				// last 64 KB, twice, then some chunks back and forth
+				long[] offsets = new long[] { data.length - 65536,
+					data.length - 65536, 100000, 0, 100000 + 65536, 123,
+					data.length / 2, data.length / 3, data.length / 2 - 65536 };
+				for (long offset : offsets)
+				{
+					ByteBuffer dst = ByteBuffer.allocate (65536);
+					assertEquals ("unexpected number of bytes read", 65536, entry.read (
+						offset, dst));
+					assertTrue ("unexpected data at " + offset, Arrays.equals (Arrays
+						.copyOfRange (data, (int) offset, (int) offset + 65536), dst
+						.array ()));
+				}
+				
+				// reading beyond the end
+				ByteBuffer dst = ByteBuffer.allocateDirect (100);
+				assertEquals ("unexpected number of bytes read", 10, entry.read (
+					data.length - 10, dst));
+				assertEquals ("expected end of entry", -1, entry.read (data.length,
+					dst));
+			}
+			
+			// a modified entry returns the new contents
+			ArchiveEntry trace = ca.getEntry ("/trace.csv");
+			ca.replaceFile (testFiles.get (3), trace);
+			ByteBuffer dst = ByteBuffer.allocate (10);
+			assertEquals ("unexpected number of bytes read", 3, trace.read (0, dst));
+			assertEquals ("unexpected contents", "i:3", new String (dst.array (), 0,
+				3));
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test extracting an archive using multiple threads.
+	 */
+	@Test
+	public void testParallelExtract ()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool (3);
+		try
+		{
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			for (int i = 1; i < 6; i++)
+				ca.addEntry (testFiles.get (i), "/dir" + (i % 2) + "/sub" + i + "/file"
+					+ i, new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			ca.pack ();
+			ca.close ();
+			
+			ca = new CombineArchive (testFiles.get (0));
+			// a modified entry isn't part of the zip on disk yet
+			ca.replaceFile (testFiles.get (1), ca.getEntry ("/dir0/sub4/file4"));
+			for (int run = 0; run < 2; run++)
+			{
+				Path dir = Files.createTempDirectory ("combineArchive");
+				testFiles.add (dir.toFile ());
+				ExtractionReport report = ca.extractTo (dir.toFile (), run == 0
+					? executor : null, run == 0);
+				
+				// 5 entries, manifest, and meta data
+				assertEquals ("unexpected number of extracted files", 7, report
+					.getNumEntries ());
+				assertEquals ("unexpected number of timings", 7, report
+					.getEntryTimes ().size ());
+				assertTrue ("expected some bytes", report.getTotalBytes () > 0);
+				assertTrue ("expected a throughput", report.getThroughput () > 0);
+				
+				for (int i = 1; i < 6; i++)
+				{
+					Path extracted = dir.resolve ("dir" + (i % 2) + "/sub" + i + "/file"
+						+ i);
+					assertTrue ("missing file " + extracted, Files.isRegularFile (
+						extracted));
+					assertEquals ("unexpected contents of " + extracted, i == 4
+						? "i:1"
+						: "i:" + i, new String (Files.readAllBytes (extracted)));
+				}
+				assertTrue ("missing manifest", Files.isRegularFile (dir
+					.resolve ("manifest.xml")));
+			}
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+	
+	
+	/**
+	 * Test extracting selected entries.
+	 */
+	@Test
+	public void testFilteredExtract ()
+	{
+		try
+		{
+			URI sbml = new URI ("http://identifiers.org/combine.specifications/sbml");
+			URI sedml = new URI (
+				"http://identifiers.org/combine.specifications/sed-ml");
+			URI csv = new URI ("http://purl.org/NET/mediatypes/text/csv");
+			
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ca.addEntry (testFiles.get (1), "/model.sbml", sbml, true);
+			ca.addEntry (testFiles.get (2), "/sim/experiment.sedml", sedml);
+			ca.addEntry (testFiles.get (3), "/results/run1.csv", csv);
+			ca.addEntry (testFiles.get (4), "/results/run2.csv", csv);
+			ca.pack ();
+			ca.close ();
+			
+			ca = new CombineArchive (testFiles.get (0));
+			
+			// main entries only
+			Path dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			ExtractionReport report = ca.extractTo (dir.toFile (), new EntryFilter ()
+			{
+				
+				@Override
+				public boolean accept (ArchiveEntry entry)
+				{
+					return entry.isMainEntry ();
+				}
+			});
+			assertEquals ("unexpected number of extracted files", 1, report
+				.getNumEntries ());
+			assertTrue ("missing model", Files.isRegularFile (dir
+				.resolve ("model.sbml")));
+			assertFalse ("did not expect results", Files.exists (dir
+				.resolve ("results")));
+			
+			// glob
+			dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			report = ca.extractTo (dir.toFile (), "/**.sedml");
+			assertEquals ("unexpected number of extracted files", 1, report
+				.getNumEntries ());
+			assertEquals ("unexpected contents", "i:2", new String (Files
+				.readAllBytes (dir.resolve ("sim/experiment.sedml"))));
+			
+			// format
+			dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			report = ca.extractTo (dir.toFile (), csv);
+			assertEquals ("unexpected number of extracted files", 2, report
+				.getNumEntries ());
+			assertTrue ("missing results", Files.isRegularFile (dir
+				.resolve ("results/run2.csv")));
+			assertFalse ("did not expect the model", Files.exists (dir
+				.resolve ("model.sbml")));
+			
+			// manifest driven, with meta data
+			dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			report = ca.extractTo (dir.toFile (), new EntryFilter ()
+			{
+				
+				@Override
+				public boolean accept (ArchiveEntry entry)
+				{
+					return !entry.getFilePath ().startsWith ("/results/");
+				}
+			}, true, null, false);
+			assertEquals ("unexpected number of extracted files", 4, report
+				.getNumEntries ());
+			assertTrue ("missing manifest", Files.isRegularFile (dir
+				.resolve ("manifest.xml")));
+			assertTrue ("missing meta data", Files.isRegularFile (dir
+				.resolve ("metadata.rdf")));
+			assertFalse ("did not expect results", Files.exists (dir
+				.resolve ("results")));
+			ca.close ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test writing an archive to a stream.
+	 */
+	@Test
+	public void testStreamWriter ()
+	{
+		try
+		{
+			URI format = new URI ("http://purl.org/NET/mediatypes/text/plain");
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream ();
+			CombineArchiveStreamWriter writer = new CombineArchiveStreamWriter (out,
+				CompressionPolicy.balanced ().storeExtension ("bin"), null);
+			
+			CombineArchiveStreamWriter.Entry main = writer.addEntry (
+				new ByteArrayInputStream ("main".getBytes ()), "/sub/dir/main.txt",
+				format, true);
+			writer.flush ();
+			assertTrue ("expected the first entry to be written already",
+				out.size () > 0);
+			
+			writer.addEntry (new ByteArrayInputStream ("stored".getBytes ()),
+				"sub/stored.bin", format, false);
+			CombineArchiveStreamWriter.Entry file = writer.addEntry (testFiles
+				.get (1), "./file.bin", format, false);
+			
+			for (String invalid : new String[] { "/manifest.xml", "metadata.rdf",
+				"/metadata-1.rdf", "/sub/dir/main.txt", "../escape.txt" })
+				try
+				{
+					writer.addEntry (new ByteArrayInputStream (new byte[0]), invalid,
+						format, false);
+					fail ("expected an IllegalArgumentException for " + invalid);
+				}
+				catch (IllegalArgumentException e)
+				{
+				}
+			
+			main.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			writer.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			assertEquals ("unexpected number of entries", 3, writer.getEntries ()
+				.size ());
+			writer.close ();
+			writer.close ();
+			
+			// check the zip structure
+			byte[] archive = out.toByteArray ();
+			List<String> names = new ArrayList<String> ();
+			try (ZipInputStream zin = new ZipInputStream (new ByteArrayInputStream (
+				archive)))
+			{
+				ZipEntry ze;
+				while ((ze = zin.getNextEntry ()) != null)
+				{
+					names.add (ze.getName ());
+					if (ze.getName ().equals ("file.bin"))
+						assertEquals ("expected file to be stored", ZipEntry.STORED,
+							ze.getMethod ());
+				}
+			}
+			assertEquals ("unexpected zip entries", Arrays.asList ("sub/",
+				"sub/dir/", "sub/dir/main.txt", "sub/stored.bin", "file.bin",
+				"metadata.rdf", "manifest.xml"), names);
+			
+			// and read it as combine archive
+			testFiles.get (0).delete ();
+			Files.write (testFiles.get (0).toPath (), archive);
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			assertFalse ("did not expect errors", ca.hasErrors ());
+			assertEquals ("unexpected number of entries", 3, ca.getNumEntries ());
+			assertEquals ("unexpected main entry", "/sub/dir/main.txt", ca
+				.getMainEntries ().get (0).getFilePath ());
+			assertEquals ("unexpected number of descriptions", 1, ca
+				.getEntry ("/sub/dir/main.txt").getDescriptions ().size ());
+			assertEquals ("unexpected number of archive descriptions", 1, ca
+				.getDescriptions ().size ());
+			assertEquals ("unexpected number of descriptions", 0, ca
+				.getEntry (file.getFilePath ()).getDescriptions ().size ());
+			File extracted = File.createTempFile ("combineArchive", "extracted");
+			testFiles.add (extracted);
+			ca.getEntry ("/sub/stored.bin").extractFile (extracted);
+			assertEquals ("unexpected contents", "stored", new String (Files
+				.readAllBytes (extracted.toPath ())));
+			ca.getEntry ("/file.bin").extractFile (extracted);
+			assertTrue ("unexpected contents of file", Arrays.equals (Files
+				.readAllBytes (testFiles.get (1).toPath ()), Files
+				.readAllBytes (extracted.toPath ())));
+			ca.close ();
+			
+			// a failing source must break the archive
+			out = new ByteArrayOutputStream ();
+			writer = new CombineArchiveStreamWriter (out);
+			writer.addEntry (new ByteArrayInputStream ("first".getBytes ()),
+				"/first.txt", format, true);
+			InputStream broken = new InputStream ()
+			{
+				
+				private int	n	= 0;
+				
+				
+				@Override
+				public int read () throws IOException
+				{
+					if (n++ > 10)
+						throw new IOException ("broken stream");
+					return 'x';
+				}
+			};
+			try
+			{
+				writer.addEntry (broken, "/broken.txt", format, false);
+				fail ("expected an IOException");
+			}
+			catch (IOException e)
+			{
+			}
+			try
+			{
+				writer.addEntry (new ByteArrayInputStream ("more".getBytes ()),
+					"/more.txt", format, false);
+				fail ("expected an IOException");
+			}
+			catch (IOException e)
+			{
+			}
+			try
+			{
+				writer.close ();
+				fail ("expected an IOException");
+			}
+			catch (IOException e)
+			{
+			}
+			
+			// there must not be a central directory
+			testFiles.get (2).delete ();
+			Files.write (testFiles.get (2).toPath (), out.toByteArray ());
+			try (ZipFile zf = new ZipFile (testFiles.get (2)))
+			{
+				fail ("expected an incomplete zip file");
+			}
+			catch (IOException e)
+			{
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("unexpected error occured");
+		}
+	}
+	
+	
+	/**
+	 * Test writing an archive in a single pass.
 	 */
 	@Test
-	public void testMainEntries ()
+	public void testArchiveWriter ()
 	{
-		// lets create the archive
-		for (int i = 0; i < 6; i++)
+		try
 		{
-			if (testFiles.get (i).isDirectory ())
+			URI format = new URI ("http://purl.org/NET/mediatypes/text/plain");
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			
+			testFiles.get (0).delete ();
+			try (CombineArchiveWriter writer = new CombineArchiveWriter (testFiles
+				.get (0)))
 			{
-				try
-				{
-					Utils.delete (testFiles.get (i));
-					testFiles.get (i).createNewFile ();
-				}
-				catch (IOException e)
+				writer
+					.addEntry (testFiles.get (1), "/model/file.txt", format, true,
+						new OmexMetaDataObject (new OmexDescription (creators,
+							new Date ())))
+					.addEntry (new ByteArrayInputStream ("data".getBytes ()),
+						"data.txt", format, false)
+					.addDescription (
+						new OmexMetaDataObject (new OmexDescription (creators,
+							new Date ())));
+				assertFalse ("archive must not exist before closing the writer",
+					testFiles.get (0).exists ());
+			}
+			
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			assertFalse ("did not expect errors", ca.hasErrors ());
+			assertEquals ("unexpected number of entries", 2, ca.getNumEntries ());
+			assertEquals ("unexpected main entry", "/model/file.txt", ca
+				.getMainEntries ().get (0).getFilePath ());
+			assertEquals ("unexpected number of descriptions", 1, ca
+				.getEntry ("/model/file.txt").getDescriptions ().size ());
+			assertEquals ("unexpected number of archive descriptions", 1, ca
+				.getDescriptions ().size ());
+			File extracted = File.createTempFile ("combineArchive", "extracted");
+			testFiles.add (extracted);
+			ca.getEntry ("/data.txt").extractFile (extracted);
+			assertEquals ("unexpected contents", "data", new String (Files
+				.readAllBytes (extracted.toPath ())));
+			ca.close ();
+			
+			// short names are fine, too
+			Path dir = Files.createTempDirectory ("combineArchive");
+			testFiles.add (dir.toFile ());
+			File shortName = dir.resolve ("a").toFile ();
+			testFiles.add (shortName);
+			try (CombineArchiveWriter w = new CombineArchiveWriter (shortName))
+			{
+				w.addEntry (testFiles.get (1), "/file.txt", format, true);
+			}
+			ca = new CombineArchive (shortName);
+			assertEquals ("unexpected number of entries", 1, ca.getNumEntries ());
+			ca.close ();
+			
+			// a failing entry must not replace the existing archive
+			long size = testFiles.get (0).length ();
+			InputStream broken = new InputStream ()
+			{
+				
+				private int	n	= 0;
+				
+				
+				@Override
+				public int read () throws IOException
 				{
-					LOGGER.error (e, "couldn't recreate testfiles.");
+					if (n++ > 10)
+						throw new IOException ("broken stream");
+					return 'x';
 				}
+			};
+			CombineArchiveWriter writer = new CombineArchiveWriter (testFiles
+				.get (0));
+			try
+			{
+				writer.addEntry (broken, "/broken.txt", format, false);
+				fail ("expected an IOException");
+			}
+			catch (IOException e)
+			{
 			}
-		}
-		testFiles.get (0).delete ();
-		
-		CombineArchive ca = null;
-		try
-		{
-			ca = new CombineArchive (testFiles.get (0));
-		}
-		catch (IOException | JDOMException | ParseException
-			| CombineArchiveException e)
-		{
-			LOGGER.error (e, "couldn't read archive");
-			fail ("couldn't read archive");
-		}
-		
-		List<ArchiveEntry> entries = new ArrayList<ArchiveEntry> ();
-		for (int i = 1; i < testFiles.size (); i++)
-		{
 			try
 			{
-				if (i % 2 == 0)
-				{
-					ArchiveEntry ae = ca.addEntry (testFiles.get (i),
-						"/sub" + i + "/file" + i + ".ext",
-						new URI ("http://identifiers.org/combine.specifications/sbml"));
-					entries.add (ae);
-					if (i == 2)
-						ca.addMainEntry (ae);
-				}
-				else
-				{
-					entries.add (
-						ca.addEntry (testFiles.get (i), "/sub" + i + "/file" + i + ".ext",
-							new URI ("http://identifiers.org/combine.specifications/sbml"),
-							true));
-				}
+				writer.close ();
+				fail ("expected an IOException");
 			}
-			catch (IOException | URISyntaxException e)
+			catch (IOException e)
 			{
-				LOGGER.error (e, "couldn't add entry ", i, " to archive");
-				fail ("couldn't add entry " + i + " to archive");
 			}
+			assertEquals ("archive was modified", size, testFiles.get (0).length ());
+			File[] parts = testFiles.get (0).getParentFile ().listFiles ();
+			for (File part : parts)
+				assertFalse ("found left over part file " + part, part.getName ()
+					.startsWith ("." + testFiles.get (0).getName ()));
 		}
-		
-		assertEquals ("expected 4 master files", 4, ca.getMainEntries ().size ());
-		assertNotNull ("main entries not backwards compatible", ca.getMainEntry ());
-		
-		int c1 = 0, c2 = 0;
-		for (ArchiveEntry entry : ca.getEntries ())
-		{
-			if (entry.isMainEntry ())
-				c1++;
-			if (ca.getMainEntries ().contains (entry))
-				c2++;
-		}
-		assertEquals ("expected 4 master files", c1, c2);
-		assertEquals ("expected 4 master files", 4, c1);
-		
-		List<VCard> creators = new ArrayList<VCard> ();
-		creators.add (new VCard ("Scharm", "Martin", "martin.scharm@uni-rostock.de",
-			"University of Rostock"));
-		creators.add (new VCard ("Waltemath", "Dagmar",
-			"dagmar.waltemath@uni-rostock.de", "University of Rostock"));
-		
-		for (ArchiveEntry e : entries)
-			e.addDescription (
-				new OmexMetaDataObject (new OmexDescription (creators, new Date ())));
-		
-		assertEquals ("unexpected number of entries in archive after creation",
-			testFiles.size () - 1, ca.getNumEntries ());
-		
-		int nMain = ca.getMainEntries ().size ();
-		ArchiveEntry ae = ca.getMainEntries ().get (0);
-		ca.removeMainEntry (ae);
-		assertEquals ("unexpected number of main entries", --nMain,
-			ca.getMainEntries ().size ());
-		
-		ae = ca.getMainEntries ().get (0);
-		try
-		{
-			assertTrue ("couldn't remove entry", ca.removeEntry (ae));
-			assertFalse ("double-removed entry?", ca.removeEntry (ae));
-		}
-		catch (IOException e)
-		{
-			LOGGER.error (e, "error removing an entry");
-			fail ("couldn't remove entry");
-		}
-		assertEquals ("unexpected number of main entries", --nMain,
-			ca.getMainEntries ().size ());
-		
-		ae = ca.getMainEntries ().get (0);
-		try
-		{
-			assertTrue ("couldn't remove entry",
-				ca.removeEntry (ae.getEntityPath ()));
-			assertFalse ("double-removed entry?",
-				ca.removeEntry (ae.getEntityPath ()));
-		}
-		catch (IOException e)
+		catch (Exception e)
 		{
-			LOGGER.error (e, "error removing an entry");
-			fail ("couldn't remove entry");
+			e.printStackTrace ();
+			fail ("unexpected error occured");
 		}
-		assertEquals ("unexpected number of main entries", --nMain,
-			ca.getMainEntries ().size ());
-		
+	}
+	
+	
+	/**
+	 * Test reading an archive from a stream.
+	 */
+	@Test
+	public void testStreamReader ()
+	{
 		try
 		{
-			ca.pack ();
+			URI format = new URI ("http://purl.org/NET/mediatypes/text/plain");
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
+			
+			// manifest and meta data at the end
+			ByteArrayOutputStream out = new ByteArrayOutputStream ();
+			CombineArchiveStreamWriter writer = new CombineArchiveStreamWriter (out);
+			writer.addEntry (new ByteArrayInputStream ("main".getBytes ()),
+				"/sub/main.txt", format, true).addDescription (
+				new OmexMetaDataObject (new OmexDescription (creators, new Date ())));
+			writer.addEntry (new ByteArrayInputStream ("some more data".getBytes ()),
+				"/other.txt", format, false);
+			writer.addDescription (new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ())));
+			writer.close ();
+			byte[] manifestLast = out.toByteArray ();
+			
+			// manifest first
+			testFiles.get (0).delete ();
+			testFiles.get (2).delete ();
+			Files.write (testFiles.get (2).toPath (), manifestLast);
+			CombineArchive ca = new CombineArchive (testFiles.get (2));
+			ca.writeTo (testFiles.get (0));
 			ca.close ();
+			byte[] manifestFirst = Files.readAllBytes (testFiles.get (0).toPath ());
+			
+			// buffer in memory and spill to disk
+			for (byte[] archive : new byte[][] { manifestLast, manifestFirst })
+				for (long threshold : new long[] { 1024 * 1024, 5 })
+				{
+					final HashMap<String, String> contents = new HashMap<String, String> ();
+					CombineArchiveStreamReader reader = new CombineArchiveStreamReader (
+						new ByteArrayInputStream (archive), false, threshold);
+					reader.read (new CombineArchiveStreamReader.EntryHandler ()
+					{
+						
+						@Override
+						public void handleEntry (CombineArchiveStreamWriter.Entry entry,
+							InputStream data) throws IOException
+						{
+							ByteArrayOutputStream read = new ByteArrayOutputStream ();
+							byte[] buf = new byte[4096];
+							for (int n = data.read (buf); n >= 0; n = data.read (buf))
+								read.write (buf, 0, n);
+							data.close ();
+							contents.put (entry.getFilePath (), new String (read
+								.toByteArray ()));
+						}
+					});
+					reader.close ();
+					
+					assertFalse ("did not expect errors", reader.hasErrors ());
+					assertEquals ("unexpected number of entries", 2, reader
+						.getEntries ().size ());
+					assertEquals ("unexpected main entry", "/sub/main.txt", reader
+						.getMainEntries ().get (0).getFilePath ());
+					assertEquals ("unexpected format", format, reader
+						.getEntry ("/other.txt").getFormat ());
+					assertEquals ("unexpected number of descriptions", 1, reader
+						.getEntry ("/sub/main.txt").getDescriptions ().size ());
+					assertEquals ("unexpected number of archive descriptions", 1,
+						reader.getDescriptions ().size ());
+					assertEquals ("unexpected contents", "main",
+						contents.get ("/sub/main.txt"));
+					assertEquals ("unexpected contents", "some more data",
+						contents.get ("/other.txt"));
+				}
+			
+			// an archive without manifest
+			out = new ByteArrayOutputStream ();
+			try (ZipOutputStream zout = new ZipOutputStream (out))
+			{
+				zout.putNextEntry (new ZipEntry ("file.txt"));
+				zout.write ("data".getBytes ());
+			}
+			CombineArchiveStreamReader.EntryHandler ignore =
+				new CombineArchiveStreamReader.EntryHandler ()
+				{
+					
+					@Override
+					public void handleEntry (CombineArchiveStreamWriter.Entry entry,
+						InputStream data) throws IOException
+					{
+						fail ("did not expect entries");
+					}
+				};
+			CombineArchiveStreamReader reader = new CombineArchiveStreamReader (
+				new ByteArrayInputStream (out.toByteArray ()));
+			try
+			{
+				reader.read (ignore);
+				fail ("expected a CombineArchiveException");
+			}
+			catch (CombineArchiveException e)
+			{
+			}
+			reader.close ();
+			reader = new CombineArchiveStreamReader (new ByteArrayInputStream (
+				out.toByteArray ()), true, 0);
+			reader.read (ignore);
+			reader.close ();
+			assertTrue ("expected errors", reader.hasErrors ());
 		}
-		catch (IOException | TransformerException e)
+		catch (Exception e)
 		{
-			LOGGER.error (e, "couldn't pack/close archive");
-			fail ("couldn't pack/close archive");
+			e.printStackTrace ();
+			fail ("unexpected error occured");
 		}
-		
 	}
 	
 	
 	/**
-	 * Test meta of meta -> can we have meta data of the meta data file?
+	 * Test that descriptions are not added twice, even if they were modified
+	 * after adding them.
 	 */
 	@Test
-	public void testMetaOfMeta ()
+	public void testDescriptionDedupe ()
 	{
 		try
 		{
-			LOGGER.setLogToStdErr (false);
+			List<VCard> creators = new ArrayList<VCard> ();
+			creators.add (new VCard ("Scharm", "Martin",
+				"martin.scharm@uni-rostock.de", "University of Rostock"));
 			
-			File theCopy = testFiles.get (0);
-			Files.copy (new File ("test/showcase-w-meta-of-meta.omex").toPath (),
-				theCopy.toPath (), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			testFiles.get (0).delete ();
+			CombineArchive ca = new CombineArchive (testFiles.get (0));
+			ArchiveEntry entry = ca.addEntry (testFiles.get (1), "/file.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
 			
-			CombineArchive ca = new CombineArchive (theCopy, false);
-			int numDescrCa = ca.getDescriptions ().size ();
-			int numDescrMeta = ca.getMetaOfMeta ().getDescriptions ().size ();
-			int numDescrAllEntries = 0;
-			for (ArchiveEntry ae : ca.getEntries ())
-				numDescrAllEntries += ae.getDescriptions ().size ();
+			Element metaParent = new Element ("stuff");
+			Element metaElement = new Element ("myMetaElement");
+			metaElement.setAttribute ("someAttribute", "someValue");
+			metaElement.addContent ("some content");
+			metaParent.addContent (metaElement);
+			MetaDataObject meta = new DefaultMetaDataObject (metaParent);
+			entry.addDescription (meta);
 			
-			// write to mutliple files
-			ca.pack (true);
-			ca.close ();
+			// modify the description and add it again
+			meta.getXmlDescription ().addContent (
+				new Element ("anotherElement").setText ("more content"));
+			entry.addDescription (meta);
+			assertEquals ("description was added twice", 1, entry
+				.getDescriptions ().size ());
+			entry.addDescription (meta.clone ());
+			assertEquals ("copy of description was added", 1, entry
+				.getDescriptions ().size ());
 			
-			// check the new archive
-			ca = new CombineArchive (theCopy, false);
-			int numDescrAllEntriesTmp = 0;
-			for (ArchiveEntry ae : ca.getEntries ())
-				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
-			assertEquals (
-				"expected same number of descriptions for the archive before and after writing to mutltiple meta files",
-				numDescrCa, ca.getDescriptions ().size ());
-			assertEquals (
-				"expected same number of descriptions for the archive's meta data before and after writing to mutltiple meta files",
-				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
-			assertEquals (
-				"expected same number of descriptions for the archive's entries before and after writing to mutltiple meta files",
-				numDescrAllEntries, numDescrAllEntriesTmp);
+			// a changed fragment identifier makes it a different description
+			entry.addDescription ("someFragment", meta.clone ());
+			assertEquals ("expected another description", 2, entry
+				.getDescriptions ().size ());
 			
-			// write to single file
-			ca.pack (false);
-			ca.close ();
+			MetaDataObject omex = new OmexMetaDataObject (new OmexDescription (
+				creators, new Date ()));
+			entry.addDescription (omex);
+			assertEquals ("expected another description", 3, entry
+				.getDescriptions ().size ());
 			
-			// check the new archive
-			ca = new CombineArchive (theCopy, false);
-			numDescrAllEntriesTmp = 0;
-			for (ArchiveEntry ae : ca.getEntries ())
-				numDescrAllEntriesTmp += ae.getDescriptions ().size ();
-			assertEquals (
-				"expected same number of descriptions for the archive before and after writing to single meta file",
-				numDescrCa, ca.getDescriptions ().size ());
-			assertEquals (
-				"expected same number of descriptions for the archive's meta data before and after writing to single meta file",
-				numDescrMeta, ca.getMetaOfMeta ().getDescriptions ().size ());
-			assertEquals (
-				"expected same number of descriptions for the archive's entries before and after writing to single meta file",
-				numDescrAllEntries, numDescrAllEntriesTmp);
+			// writing the meta data touches the descriptions
+			ca.pack ();
+			entry.addDescription (meta);
+			entry.addDescription (meta.clone ());
+			entry.addDescription (omex);
+			entry.addDescription (omex.clone ());
+			assertEquals ("description was added twice after packing", 3, entry
+				.getDescriptions ().size ());
 			
+			// removing still works after changes
+			meta.getXmlDescription ().addContent (new Element ("yetAnother"));
+			assertTrue ("cannot remove description", entry.removeDescription (meta));
+			entry.addDescription (meta.clone ());
+			assertEquals ("unexpected number of descriptions", 3, entry
+				.getDescriptions ().size ());
+			
+			// edits of the list that do not change its size
+			ArchiveEntry other = ca.addEntry (testFiles.get (2), "/other.txt",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"));
+			MetaDataObject a = new DefaultMetaDataObject (new Element ("a"));
+			MetaDataObject b = new DefaultMetaDataObject (new Element ("b"));
+			MetaDataObject c = new DefaultMetaDataObject (new Element ("c"));
+			other.addDescription (a);
+			other.addDescription (b);
+			other.getDescriptions ().set (0, c);
+			c.setAbout (other);
+			other.addDescription (a);
+			assertEquals ("replaced description was not added again", 3, other
+				.getDescriptions ().size ());
+			other.addDescription (c.clone ());
+			assertEquals ("copy of a replacing description was added", 3, other
+				.getDescriptions ().size ());
+			
+			other.getDescriptions ().remove (b);
+			MetaDataObject d = new DefaultMetaDataObject (new Element ("d"));
+			d.setAbout (other);
+			other.getDescriptions ().add (d);
+			other.addDescription (b);
+			assertEquals ("removed description was not added again", 4, other
+				.getDescriptions ().size ());
+			other.addDescription (d.clone ());
+			assertEquals ("copy of an inserted description was added", 4, other
+				.getDescriptions ().size ());
+			
+			// duplicates in the list
+			other.getDescriptions ().add (c);
+			other.addDescription (c.clone ());
+			assertEquals ("copy of a duplicate description was added", 5, other
+				.getDescriptions ().size ());
 			ca.close ();
 		}
 		catch (Exception e)
@@ -919,8 +2745,105 @@ public class TestArchive
 			e.printStackTrace ();
 			fail ("unexpected error occured");
 		}
-		LOGGER.setLogToStdErr (true);
-		
+	}
+	
+	
+	/**
+	 * Builds a synthetic RDF tree containing <code>n</code> descriptions, each
+	 * of which carries a creator with a single <code>vCard:family-name</code>.
+	 * 
+	 * @param n
+	 *          the number of descriptions
+	 * @return the rdf:RDF root element
+	 */
+	private static Element buildRdfTree (int n)
+	{
+		Element root = new Element ("RDF", Utils.rdfNS);
+		for (int i = 0; i < n; i++)
+		{
+			Element description = new Element ("Description", Utils.rdfNS);
+			root.addContent (description);
+			description.addContent (new Element ("description", Utils.dcNS)
+				.setText ("description " + i));
+			Element li = new Element ("li", Utils.rdfNS);
+			description.addContent (new Element ("creator", Utils.dcNS)
+				.addContent (new Element ("Bag", Utils.rdfNS).addContent (li)));
+			Element name = new Element ("hasName", Utils.vcNS);
+			li.addContent (name);
+			name.addContent (new Element ("family-name", Utils.vcNS)
+				.setText ("family" + i));
+			name.addContent (new Element ("given-name", Utils.vcNS)
+				.setText ("given" + i));
+			li.addContent (new Element ("email", Utils.vcNS).setText ("mail" + i));
+		}
+		return root;
+	}
+	
+	
+	/**
+	 * Returns the best of <code>reps</code> runs of searching all
+	 * <code>vCard:family-name</code> elements in <code>root</code>.
+	 * 
+	 * @param root
+	 *          the tree to search
+	 * @param expected
+	 *          the expected number of hits
+	 * @param reps
+	 *          the number of runs
+	 * @return the fastest run in nano seconds
+	 */
+	private static long timeElementsByTagName (Element root, int expected,
+		int reps)
+	{
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < reps; i++)
+		{
+			long start = System.nanoTime ();
+			List<Element> found = Utils.getElementsByTagName (root, "family-name",
+				Utils.vcNS);
+			best = Math.min (best, System.nanoTime () - start);
+			assertEquals ("unexpected number of elements", expected, found.size ());
+		}
+		return best;
+	}
+	
+	
+	/**
+	 * Test that searching elements by tag name scales linearly with the size of
+	 * the tree. The former implementation shifted the whole work list for every
+	 * visited node and needed 50 to 80 times longer for an 8 times larger tree.
+	 */
+	@Test
+	public void testElementsByTagNameScaling ()
+	{
+		int small = 4000;
+		int large = 8 * small;
+		Element smallTree = buildRdfTree (small);
+		Element largeTree = buildRdfTree (large);
+		
+		List<Element> found = Utils.getElementsByTagName (smallTree,
+			"family-name", Utils.vcNS);
+		for (int i = 0; i < small; i++)
+			assertEquals ("unexpected document order", "family" + i,
+				found.get (i).getText ());
+		assertTrue ("expected first element",
+			found.get (0) == Utils.getFirstElementByTagName (smallTree,
+				"family-name", Utils.vcNS));
+		assertNull ("did not expect to find an element",
+			Utils.getFirstElementByTagName (smallTree, "family-name", Utils.dcNS));
+		
+		// warm up before measuring
+		timeElementsByTagName (smallTree, small, 5);
+		timeElementsByTagName (largeTree, large, 5);
+		
+		long smallTime = timeElementsByTagName (smallTree, small, 5);
+		long largeTime = timeElementsByTagName (largeTree, large, 5);
+		LOGGER.info ("searching ", 9 * small + 1, " elements took ",
+			smallTime / 1000, " us, searching ", 9 * large + 1, " elements took ",
+			largeTime / 1000, " us");
+		assertTrue ("searching an 8 times larger tree took "
+			+ ((double) largeTime / smallTime) + " times longer",
+			largeTime < 24 * Math.max (smallTime, 100000));
 	}
 	
 	
@@ -1559,6 +3482,22 @@ public class TestArchive
 				meta1.equals (meta3));
 			assertTrue ("expected the same meta data (3) objects to be equal",
 				meta3.equals (meta3));
+			assertEquals ("expected equal meta data objects to share a hash code",
+				meta1.hashCode (), meta3.hashCode ());
+			
+			// adding an equal object must not result in duplicates
+			ArchiveEntry entry = ca.getEntries ().iterator ().next ();
+			int numDescriptions = entry.getDescriptions ().size ();
+			entry.addDescription (entry.getDescriptions ().get (0).clone ());
+			assertEquals ("did not expect a duplicate description", numDescriptions,
+				entry.getDescriptions ().size ());
+			
+			// modifying the omex description must be reflected
+			MetaDataObject meta4 = meta1.clone ();
+			((OmexMetaDataObject) meta4).getOmexDescription ().setDescription (
+				"something else");
+			assertFalse ("expected modified meta data object to be different",
+				meta1.equals (meta4));
 			
 			meta3.setAbout (null);
 			assertTrue (
@@ -1818,6 +3757,62 @@ public class TestArchive
 			Utils.getExtension ("file.somehting.sbml"));
 		assertNull ("extension detector wrong", Utils.getExtension ("filesbml"));
 		
+		try
+		{
+			assertTrue ("expected the same omex spec uri instance",
+				Utils.getOmexSpecUri () == Utils.getOmexSpecUri ());
+			URI sbml = FormatRegistry
+				.getFormatUri ("http://identifiers.org/combine.specifications/sbml");
+			assertTrue ("expected the same format uri instance",
+				sbml == FormatRegistry.intern (new URI (
+					"http://identifiers.org/combine.specifications/sbml")));
+			assertEquals ("unexpected mime type uri",
+				new URI ("http://purl.org/NET/mediatypes/text/plain"),
+				FormatRegistry.getFormatUri ("text/plain"));
+			assertTrue ("expected omex spec",
+				FormatRegistry.isOmexSpec (new URI (
+					"http://identifiers.org/combine.specifications/omex.version-1")));
+			assertFalse ("did not expect omex spec",
+				FormatRegistry.isOmexSpec (FormatRegistry.OMEX_MANIFEST));
+			try
+			{
+				FormatRegistry.getFormatUri ("no format");
+				fail ("expected an invalid format");
+			}
+			catch (URISyntaxException e)
+			{
+				// that's expected
+			}
+		}
+		catch (URISyntaxException e)
+		{
+			LOGGER.error (e);
+			fail ("format registry tests failed");
+		}
+		
+		// the order of the elements is: children of an element before the
+		// elements in its subtree
+		Element root = new Element ("root");
+		Element b = new Element ("b", Utils.dcNS);
+		Element c = new Element ("a", Utils.dcNS);
+		Element a = new Element ("a", Utils.dcNS);
+		Element d = new Element ("a", Utils.dcNS);
+		root.addContent (b);
+		root.addContent (a);
+		b.addContent (c);
+		a.addContent (d);
+		a.addContent (new Element ("a", Utils.vcNS));
+		assertEquals ("unexpected elements by tag name", Arrays.asList (a, c, d),
+			Utils.getElementsByTagName (root, "a", Utils.dcNS));
+		assertEquals ("unexpected first element by tag name", a,
+			Utils.getFirstElementByTagName (root, "a", Utils.dcNS));
+		assertEquals ("unexpected first element by tag name", c,
+			Utils.getFirstElementByTagName (b, "a", Utils.dcNS));
+		assertNull ("did not expect to find an element",
+			Utils.getFirstElementByTagName (root, "c", Utils.dcNS));
+		assertEquals ("did not expect to find an element", 0, Utils
+			.getElementsByTagName (c, "a", Utils.dcNS).size ());
+		
 		try
 		{
 			File f = File.createTempFile ("combinearchive", "test");